@@ -1,6 +1,44 @@
 package jpainsertinto;
 
+import jpainsertinto.loadgen.LoadDatabase;
+import jpainsertinto.loadgen.LoadGenerator;
+import jpainsertinto.loadgen.LoadGeneratorConfig;
+import jpainsertinto.loadgen.LoadReport;
+
+/**
+ * Load generator for soak and capacity runs, see {@link LoadGeneratorConfig#USAGE} for the options, e.g.
+ * <pre>
+ * mvn compile exec:java -Dexec.mainClass=jpainsertinto.Main -Dexec.classpathScope=compile \
+ *     -Dexec.args="--strategy=upsert_all_do_update --rate=5000 --concurrency=8 --batch-size=50 --duration=10m"
+ * </pre>
+ */
 public class Main {
-    public static void main(String[] args) { }
 
-}
\ No newline at end of file
+    public static void main(String[] args) throws InterruptedException {
+        LoadGeneratorConfig config;
+        try {
+            config = LoadGeneratorConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadGeneratorConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        var report = run(config);
+        System.exit(report.getErrorCount() == 0 ? 0 : 1);
+    }
+
+    public static LoadReport run(final LoadGeneratorConfig config) throws InterruptedException {
+        try (var database = new LoadDatabase(config)) {
+            System.out.println("Running " + config);
+            var report = new LoadGenerator(config, database.getMyObjectDao(),
+                    interval -> System.out.println(interval.toLine())).run();
+            System.out.print(report.toSummary());
+            if (config.getReportFile() != null) {
+                report.writeTo(config.getReportFile());
+                System.out.println("Summary written to " + config.getReportFile());
+            }
+            return report;
+        }
+    }
+}
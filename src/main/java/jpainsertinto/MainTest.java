@@ -1,8 +0,0 @@
-package jpainsertinto;
-
-public class MainTest {
-
-
-
-
-}
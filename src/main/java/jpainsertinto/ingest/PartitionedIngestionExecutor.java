@@ -0,0 +1,193 @@
+package jpainsertinto.ingest;
+
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.MyObjectJpaDao;
+import jpainsertinto.model.MyObjectPojo;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes records in parallel without reordering the writes for any one hash.
+ * Each record goes to one of N lanes picked by its hash, and every lane writes its records in submission order
+ * with {@link MyObjectJpaDao#upsertAll} batches on a thread of its own. Two lanes never write the same hash, so
+ * they don't wait on each other's row locks in the HASH unique index, and each lane uses one pooled connection at
+ * a time - the pool needs at least as many connections as there are lanes.
+ * The lane threads come from the given {@link ThreadFactory}, on Java 21 {@code Thread.ofVirtual().factory()}
+ * runs them on virtual threads.
+ * Every future completes: a failed batch fails its own records and the lane carries on, a lane that stops, or an
+ * executor that has been closed, fails whatever is still queued or submitted to it.
+ */
+@Slf4j
+public class PartitionedIngestionExecutor implements AutoCloseable {
+
+    private static final Submission END_OF_LANE = new Submission(null, null);
+
+    private final MyObjectJpaDao myObjectDao;
+    private final ConflictMode conflictMode;
+    private final int batchSize;
+    private final Lane[] lanes;
+    private volatile boolean closed;
+
+    public PartitionedIngestionExecutor(final MyObjectJpaDao myObjectDao,
+                                        final ConflictMode conflictMode,
+                                        final int laneCount,
+                                        final int batchSize,
+                                        final int laneCapacity) {
+        this(myObjectDao, conflictMode, laneCount, batchSize, laneCapacity, Executors.defaultThreadFactory());
+    }
+
+    public PartitionedIngestionExecutor(final MyObjectJpaDao myObjectDao,
+                                        final ConflictMode conflictMode,
+                                        final int laneCount,
+                                        final int batchSize,
+                                        final int laneCapacity,
+                                        final ThreadFactory threadFactory) {
+        this.myObjectDao = myObjectDao;
+        this.conflictMode = conflictMode;
+        this.batchSize = batchSize;
+        this.lanes = new Lane[laneCount];
+        for (var i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity);
+            lanes[i].thread = threadFactory.newThread(lanes[i]::run);
+            lanes[i].thread.setName("ingestion-lane-" + i);
+            lanes[i].thread.start();
+        }
+    }
+
+    /**
+     * Queues the record on its hash's lane, blocking while that lane is full.
+     * The future completes when the batch it went out in has been committed, and fails straight away with an
+     * IllegalStateException once the executor is closed or the lane has stopped.
+     */
+    public CompletableFuture<Void> submit(final MyObjectPojo myObjectPojo) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("the executor has been closed"));
+        }
+        var future = new CompletableFuture<Void>();
+        var lane = laneFor(myObjectPojo.getHash());
+        try {
+            lane.queue.put(new Submission(myObjectPojo, future));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        }
+        // a lane that stopped as this went in won't take it off the queue any more
+        if (lane.stopped) {
+            lane.failQueued();
+        }
+        return future;
+    }
+
+    /**
+     * Lets every lane write what it already has queued and waits for them to finish.
+     * Anything submitted once close has been called fails.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (!closed) {
+            closed = true;
+            for (var lane : lanes) {
+                lane.queue.put(END_OF_LANE);
+            }
+        }
+        for (var lane : lanes) {
+            lane.thread.join();
+        }
+    }
+
+    private Lane laneFor(final String hash) {
+        // records without a hash never conflict, so any lane will do
+        var index = hash == null
+                ? ThreadLocalRandom.current().nextInt(lanes.length)
+                : Math.floorMod(hash.hashCode(), lanes.length);
+        return lanes[index];
+    }
+
+    private final class Lane {
+
+        private final BlockingQueue<Submission> queue;
+        private Thread thread;
+        private volatile boolean stopped;
+
+        private Lane(final int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void run() {
+            var batch = new ArrayList<Submission>(batchSize);
+            var records = new ArrayList<MyObjectPojo>(batchSize);
+            var ended = false;
+            try {
+                while (!ended) {
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        log.warn("{} interrupted, {} records left unwritten", thread.getName(), queue.size());
+                        return;
+                    }
+                    queue.drainTo(batch, batchSize - 1);
+
+                    var end = batch.indexOf(END_OF_LANE);
+                    if (end >= 0) {
+                        // whatever is behind the end only got in as the executor was closed
+                        batch.subList(end + 1, batch.size()).forEach(submission -> fail(submission,
+                                new IllegalStateException("the executor has been closed")));
+                        batch.subList(end, batch.size()).clear();
+                        ended = true;
+                    }
+
+                    if (!batch.isEmpty()) {
+                        batch.forEach(submission -> records.add(submission.myObjectPojo));
+                        try {
+                            myObjectDao.upsertAll(records, conflictMode);
+                            batch.forEach(submission -> submission.future.complete(null));
+                        } catch (Throwable e) {
+                            log.warn("{} failed to write {} records", thread.getName(), records.size(), e);
+                            batch.forEach(submission -> fail(submission, e));
+                        }
+                    }
+                    batch.clear();
+                    records.clear();
+                }
+            } finally {
+                stopped = true;
+                batch.forEach(submission -> fail(submission,
+                        new IllegalStateException(thread.getName() + " has stopped")));
+                failQueued();
+            }
+        }
+
+        /**
+         * Fails everything left on the queue of a stopped lane, which also frees up a submit blocked on it.
+         */
+        private void failQueued() {
+            Submission submission;
+            while ((submission = queue.poll()) != null) {
+                fail(submission, new IllegalStateException(thread.getName() + " has stopped"));
+            }
+        }
+
+        private void fail(final Submission submission, final Throwable e) {
+            if (submission != END_OF_LANE) {
+                submission.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class Submission {
+        private final MyObjectPojo myObjectPojo;
+        private final CompletableFuture<Void> future;
+
+        private Submission(final MyObjectPojo myObjectPojo, final CompletableFuture<Void> future) {
+            this.myObjectPojo = myObjectPojo;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package jpainsertinto.ingest;
+
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.MyObjectJpaDao;
+import jpainsertinto.model.MyObjectPojo;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sits in front of a {@link MyObjectJpaDao} so producers don't wait on the db for every record.
+ * Records are queued and written by a background thread with {@link MyObjectJpaDao#upsertAll} (DO UPDATE, leaving
+ * rows that already hold the same values alone) once flushSize records are waiting or flushInterval has passed.
+ * Records for the same hash that arrive before the next flush are coalesced, the last one wins, so a hot hash is
+ * written once per flush however often it changes.
+ * At most maxPending records are held, after that {@link #submit} blocks until a flush makes room.
+ * The returned futures are completed on the flush thread. Every one of them completes: a failed flush fails its own
+ * records and the flusher carries on, a flusher that stops fails whatever is still queued.
+ */
+@Slf4j
+public class WriteBehindBuffer implements AutoCloseable {
+
+    private final MyObjectJpaDao myObjectDao;
+    private final int flushSize;
+    private final long flushIntervalNanos;
+
+    private final ConcurrentLinkedQueue<Submission> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Semaphore permits;
+    private final AtomicInteger submitsInProgress = new AtomicInteger();
+    private final Thread flusher;
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    private final AtomicLong recordsSubmitted = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    public WriteBehindBuffer(final MyObjectJpaDao myObjectDao,
+                             final int maxPending,
+                             final int flushSize,
+                             final Duration flushInterval) {
+        if (flushSize < 1 || flushSize > maxPending) {
+            throw new IllegalArgumentException("flushSize must be between 1 and maxPending (" + maxPending
+                    + ") but was " + flushSize);
+        }
+        this.myObjectDao = myObjectDao;
+        this.flushSize = flushSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.permits = new Semaphore(maxPending);
+        this.flusher = new Thread(this::runFlusher, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues the record, blocking while the buffer is full.
+     * The future completes once the record, or a later one for the same hash, is committed, and fails straight away
+     * with an IllegalStateException once the buffer is closed or the flusher has stopped.
+     */
+    public CompletableFuture<Void> submit(final MyObjectPojo myObjectPojo) {
+        var future = new CompletableFuture<Void>();
+        submitsInProgress.incrementAndGet();
+        try {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("write behind buffer is closed"));
+                return future;
+            }
+            if (stopped) {
+                future.completeExceptionally(new IllegalStateException(flusher.getName() + " has stopped"));
+                return future;
+            }
+            permits.acquire();
+            queue.offer(new Submission(myObjectPojo, future));
+            // a flusher that stopped as this went in won't take it off the queue any more
+            if (stopped) {
+                failQueued();
+                return future;
+            }
+            recordsSubmitted.incrementAndGet();
+            if (queued.incrementAndGet() >= flushSize) {
+                LockSupport.unpark(flusher);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } finally {
+            submitsInProgress.decrementAndGet();
+        }
+        return future;
+    }
+
+    /**
+     * Stops taking records and waits for everything already submitted to be written.
+     * Anything submitted once close has been called fails.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        flusher.join();
+    }
+
+    public long getRecordsSubmitted() {
+        return recordsSubmitted.get();
+    }
+
+    /** Records actually sent to the db, the difference to submitted is what coalescing saved */
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    private void runFlusher() {
+        try {
+            var deadline = System.nanoTime() + flushIntervalNanos;
+            while (true) {
+                var remaining = deadline - System.nanoTime();
+                if (!closed && queued.get() < flushSize && remaining > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                    continue;
+                }
+                flush();
+                deadline = System.nanoTime() + flushIntervalNanos;
+                // a submit that started before closed was set may still be about to queue its record
+                if (closed && submitsInProgress.get() == 0 && queue.isEmpty()) {
+                    return;
+                }
+                if (closed) {
+                    Thread.onSpinWait();
+                }
+            }
+        } finally {
+            stopped = true;
+            failQueued();
+        }
+    }
+
+    /**
+     * Fails everything left on the queue once the flusher has stopped, the freed permits let a blocked submit through.
+     */
+    private void failQueued() {
+        for (Submission submission; (submission = queue.poll()) != null; ) {
+            queued.decrementAndGet();
+            permits.release();
+            submission.future.completeExceptionally(new IllegalStateException(flusher.getName() + " has stopped"));
+        }
+    }
+
+    private void flush() {
+        var pendingByHash = new LinkedHashMap<String, Pending>();
+        // null hashes never conflict, so they are not coalesced
+        var pendingWithoutHash = new ArrayList<Pending>();
+        var drained = 0;
+
+        for (Submission submission; (submission = queue.poll()) != null; drained++) {
+            var hash = submission.myObjectPojo.getHash();
+            var pending = hash == null ? null : pendingByHash.get(hash);
+            if (pending == null) {
+                pending = new Pending();
+                if (hash == null) {
+                    pendingWithoutHash.add(pending);
+                } else {
+                    pendingByHash.put(hash, pending);
+                }
+            }
+            pending.myObjectPojo = submission.myObjectPojo;
+            pending.futures.add(submission.future);
+        }
+
+        if (drained == 0) {
+            return;
+        }
+        queued.addAndGet(-drained);
+
+        var pendings = new ArrayList<Pending>(pendingByHash.size() + pendingWithoutHash.size());
+        pendings.addAll(pendingByHash.values());
+        pendings.addAll(pendingWithoutHash);
+        var records = new ArrayList<MyObjectPojo>(pendings.size());
+        pendings.forEach(pending -> records.add(pending.myObjectPojo));
+
+        try {
+            myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE_IF_CHANGED);
+            recordsWritten.addAndGet(records.size());
+            flushes.incrementAndGet();
+            pendings.forEach(pending -> pending.futures.forEach(future -> future.complete(null)));
+        } catch (Throwable e) {
+            log.warn("failed to flush {} records", records.size(), e);
+            pendings.forEach(pending -> pending.futures.forEach(future -> future.completeExceptionally(e)));
+        } finally {
+            permits.release(drained);
+        }
+    }
+
+    private static final class Submission {
+        private final MyObjectPojo myObjectPojo;
+        private final CompletableFuture<Void> future;
+
+        private Submission(final MyObjectPojo myObjectPojo, final CompletableFuture<Void> future) {
+            this.myObjectPojo = myObjectPojo;
+            this.future = future;
+        }
+    }
+
+    private static final class Pending {
+        private MyObjectPojo myObjectPojo;
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>(1);
+    }
+}
@@ -0,0 +1,401 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.model.MyObjectKey;
+import jpainsertinto.model.MyObjectPojo;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Picks how each {@link #upsertAll} batch is written from what recent batches ran into: a plain multi-row INSERT
+ * while nothing conflicts, INSERT ... ON CONFLICT once rows start to, and COPY through a staging table for
+ * batches big enough to pay for it. Whichever is picked the db ends up the same and so does the
+ * {@link UpsertBatchResult}, apart from the number of statements.
+ * <p>
+ * Two things are tracked, both as moving averages over the batches: the share of rows that hit a hash already in
+ * the db, and the time per row of each strategy. A plain INSERT that does hit one fails with a unique violation,
+ * is rolled back and the batch is written again with ON CONFLICT, so it is only picked while the chance of the
+ * batch being clean makes up for the odd retry. A strategy that hasn't been timed yet is tried before the others.
+ * <p>
+ * A strategy that loses stops being timed, so one slow batch, say COPY stuck behind a lock, would keep it out for
+ * good. Any strategy that hasn't run for exploreEvery batches is therefore tried again on the next batch it could
+ * write, and that batch's time replaces the old average instead of being smoothed into it.
+ * <p>
+ * Everything else goes straight to the dao underneath.
+ */
+@Slf4j
+public class AdaptiveMyObjectJpaDao implements MyObjectJpaDao {
+
+    public enum Strategy {
+        /** multi-row INSERT ... VALUES without any conflict handling */
+        INSERT,
+        /** multi-row INSERT ... VALUES ... ON CONFLICT */
+        UPSERT,
+        /** COPY into a staging table merged in with ON CONFLICT */
+        COPY
+    }
+
+    private final static String UNIQUE_VIOLATION = "23505";
+    private final static int DEFAULT_COPY_MIN_ROWS = 5_000;
+    private final static double DEFAULT_SMOOTHING = 0.2;
+    private final static int DEFAULT_EXPLORE_EVERY = 50;
+
+    private final MyObjectJpaDaoImpl delegate;
+    private final int copyMinRows;
+    private final double smoothing;
+    private final int exploreEvery;
+
+    // guarded by this, a batch takes far longer than the few reads and writes here
+    private double conflictRatio;
+    private final double[] nanosPerRow = new double[Strategy.values().length];
+    private long batchesSeen;
+    private final long[] lastTimed = new long[Strategy.values().length];
+
+    private final AtomicLongArray batches = new AtomicLongArray(Strategy.values().length);
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public AdaptiveMyObjectJpaDao(final MyObjectJpaDaoImpl delegate) {
+        this(delegate, DEFAULT_COPY_MIN_ROWS, DEFAULT_SMOOTHING, DEFAULT_EXPLORE_EVERY);
+    }
+
+    /**
+     * @param copyMinRows  the smallest batch, once records sharing a hash are collapsed, that may go through COPY
+     * @param smoothing    the weight of the latest batch in the moving averages, between 0 and 1
+     * @param exploreEvery after how many batches without it a strategy is timed again
+     */
+    @Builder
+    private AdaptiveMyObjectJpaDao(final MyObjectJpaDaoImpl delegate,
+                                   final Integer copyMinRows,
+                                   final Double smoothing,
+                                   final Integer exploreEvery) {
+        this.delegate = delegate;
+        this.copyMinRows = copyMinRows == null ? DEFAULT_COPY_MIN_ROWS : copyMinRows;
+        this.smoothing = smoothing == null ? DEFAULT_SMOOTHING : smoothing;
+        this.exploreEvery = exploreEvery == null ? DEFAULT_EXPLORE_EVERY : exploreEvery;
+        if (this.smoothing <= 0 || this.smoothing > 1) {
+            throw new IllegalArgumentException("smoothing must be above 0 and at most 1 but was " + this.smoothing);
+        }
+        if (this.exploreEvery < 1) {
+            throw new IllegalArgumentException("exploreEvery must be at least 1 but was " + this.exploreEvery);
+        }
+    }
+
+    @Override
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode) {
+        return upsertAll(myObjectPojos, conflictMode, MyObjectJpaDaoImpl.DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode,
+                                       final int batchSize) {
+        if (conflictMode == ConflictMode.FAIL) {
+            return delegate.upsertAll(myObjectPojos, conflictMode, batchSize);
+        }
+        return upsertAll(myObjectPojos, conflictMode, batchSize, null);
+    }
+
+    /**
+     * Writes the batch with the given strategy rather than the one that would be picked, a plain INSERT still
+     * falls back to ON CONFLICT when it runs into a row that is already there.
+     */
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode,
+                                       final int batchSize,
+                                       final Strategy strategy) {
+        // collapsed up front so that the plain INSERT sees the rows the upsert would have
+        var rows = MyObjectJpaDaoImpl.coalesceByHash(myObjectPojos, conflictMode);
+        if (rows.isEmpty()) {
+            return delegate.upsertAll(rows, conflictMode, batchSize);
+        }
+        var chosen = strategy == null ? chooseStrategy(rows.size()) : strategy;
+        batches.incrementAndGet(chosen.ordinal());
+
+        UpsertBatchResult result;
+        var t = System.nanoTime();
+        switch (chosen) {
+            case INSERT:
+                try {
+                    result = delegate.upsertAll(rows, ConflictMode.FAIL, batchSize);
+                    recordLatency(Strategy.INSERT, rows.size(), System.nanoTime() - t);
+                    break;
+                } catch (Exception e) {
+                    if (!isUniqueViolation(e)) {
+                        throw e;
+                    }
+                    // the time lost counts against the plain INSERT
+                    var retry = System.nanoTime();
+                    recordLatency(Strategy.INSERT, rows.size(), retry - t);
+                    fallbacks.incrementAndGet();
+                    batches.incrementAndGet(Strategy.UPSERT.ordinal());
+                    log.debug("plain insert of {} rows hit an existing hash, writing them again with {}",
+                            rows.size(), conflictMode);
+                    t = retry;
+                }
+                // falls through to the upsert
+            case UPSERT:
+                result = delegate.upsertAll(rows, conflictMode, batchSize);
+                recordLatency(Strategy.UPSERT, rows.size(), System.nanoTime() - t);
+                break;
+            case COPY:
+                result = delegate.upsertAllUsingCopy(rows, conflictMode);
+                recordLatency(Strategy.COPY, rows.size(), System.nanoTime() - t);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown strategy " + chosen);
+        }
+        // skipped and unchanged rows hit an existing hash as well, the duplicates within the batch are already gone
+        recordConflicts(rows.size(), result.getRowsUpdated() + rows.size() - result.getRowsAffected());
+
+        return result.toBuilder()
+                .rowsSubmitted(myObjectPojos.size())
+                .build();
+    }
+
+    /**
+     * The strategy with the lowest expected time for a batch of that many rows, given what has been seen so far.
+     * A plain INSERT costs its own time plus, should any of the rows conflict, the upsert on top.
+     * A strategy that is due to be timed again goes first, the one left alone the longest if there are several.
+     */
+    public synchronized Strategy chooseStrategy(final int rowCount) {
+        Strategy stalest = null;
+        for (var strategy : Strategy.values()) {
+            if ((strategy != Strategy.COPY || rowCount >= copyMinRows) && isStale(strategy)
+                    && (stalest == null || lastTimed[strategy.ordinal()] < lastTimed[stalest.ordinal()])) {
+                stalest = strategy;
+            }
+        }
+        if (stalest != null) {
+            return stalest;
+        }
+
+        var insert = nanosPerRow[Strategy.INSERT.ordinal()];
+        var upsert = nanosPerRow[Strategy.UPSERT.ordinal()];
+        var copy = nanosPerRow[Strategy.COPY.ordinal()];
+        var chanceOfConflict = 1 - Math.pow(1 - conflictRatio, rowCount);
+
+        var chosen = Strategy.INSERT;
+        var lowest = insert + chanceOfConflict * upsert;
+        if (upsert < lowest) {
+            chosen = Strategy.UPSERT;
+            lowest = upsert;
+        }
+        if (rowCount >= copyMinRows && copy < lowest) {
+            chosen = Strategy.COPY;
+        }
+        return chosen;
+    }
+
+    /**
+     * @return the moving average of the share of rows that ran into a hash already in the db
+     */
+    public synchronized double getConflictRatio() {
+        return conflictRatio;
+    }
+
+    /**
+     * @return the moving average of the time per row, 0 for a strategy that hasn't been used yet
+     */
+    public synchronized double getNanosPerRow(final Strategy strategy) {
+        return nanosPerRow[strategy.ordinal()];
+    }
+
+    /**
+     * @return how many batches were written with the strategy, a plain INSERT that fell back counts for both
+     */
+    public long getBatches(final Strategy strategy) {
+        return batches.get(strategy.ordinal());
+    }
+
+    /**
+     * @return how many plain INSERTs ran into an existing hash and were written again with ON CONFLICT
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    private synchronized void recordLatency(final Strategy strategy, final int rowCount, final long nanos) {
+        var perRow = (double) nanos / rowCount;
+        var average = nanosPerRow[strategy.ordinal()];
+        nanosPerRow[strategy.ordinal()] = average == 0 || isStale(strategy)
+                ? perRow
+                : average + smoothing * (perRow - average);
+        lastTimed[strategy.ordinal()] = batchesSeen;
+    }
+
+    /** called once per batch, after its latency */
+    private synchronized void recordConflicts(final int rowCount, final long conflicts) {
+        conflictRatio += smoothing * ((double) conflicts / rowCount - conflictRatio);
+        batchesSeen++;
+    }
+
+    /**
+     * A strategy that has been timed but not in the last exploreEvery batches, one that never ran is tried anyway as
+     * its time is still 0.
+     */
+    private boolean isStale(final Strategy strategy) {
+        return nanosPerRow[strategy.ordinal()] != 0 && batchesSeen - lastTimed[strategy.ordinal()] >= exploreEvery;
+    }
+
+    private static boolean isUniqueViolation(final Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void insertUsingQuery(final MyObjectPojo myObjectPojo) {
+        delegate.insertUsingQuery(myObjectPojo);
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQueryWithDoNothing(final MyObjectPojo myObjectPojo) {
+        return delegate.insertUsingNativeQueryWithDoNothing(myObjectPojo);
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQueryWithDoUpdate(final MyObjectPojo myObjectPojo) {
+        return delegate.insertUsingNativeQueryWithDoUpdate(myObjectPojo);
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQuery(final MyObjectPojo myObjectPojo, final ConflictMode conflictMode) {
+        return delegate.insertUsingNativeQuery(myObjectPojo, conflictMode);
+    }
+
+    @Override
+    public void insertUsingMerge(final MyObjectPojo myObjectPojo) {
+        delegate.insertUsingMerge(myObjectPojo);
+    }
+
+    @Override
+    public void insertUsingFindAndMerge(final MyObjectPojo myObjectPojo) {
+        delegate.insertUsingFindAndMerge(myObjectPojo);
+    }
+
+    @Override
+    public void insertUsingNativeJDBC(final MyObjectPojo myObjectPojo) {
+        delegate.insertUsingNativeJDBC(myObjectPojo);
+    }
+
+    @Override
+    public UpsertBatchResult insertUsingCopy(final Iterator<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        return delegate.insertUsingCopy(myObjectPojos, conflictMode);
+    }
+
+    @Override
+    public UpsertBatchResult insertUsingCopy(final Stream<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        return delegate.insertUsingCopy(myObjectPojos, conflictMode);
+    }
+
+    @Override
+    public Optional<MyObjectPojo> findByHash(final String hash) {
+        return delegate.findByHash(hash);
+    }
+
+    @Override
+    public List<MyObjectJpa> getAll() {
+        return delegate.getAll();
+    }
+
+    @Override
+    public List<MyObjectJpa> getAllUsingNativeJDBC() {
+        return delegate.getAllUsingNativeJDBC();
+    }
+
+    @Override
+    public PurgeResult purgeOlderThan(final LocalDate cutoff, final BigInteger afterId, final PurgeConfig config) {
+        return delegate.purgeOlderThan(cutoff, afterId, config);
+    }
+
+    @Override
+    public UpsertBatchResult upsertAllWithRetry(final Collection<MyObjectPojo> myObjectPojos,
+                                                final ConflictMode conflictMode,
+                                                final int batchSize,
+                                                final RetryPolicy retryPolicy) {
+        return delegate.upsertAllWithRetry(myObjectPojos, conflictMode, batchSize, retryPolicy);
+    }
+
+    @Override
+    public long exportSnapshot(final Path file, final int fieldBytes) {
+        return delegate.exportSnapshot(file, fieldBytes);
+    }
+
+    @Override
+    public long restoreSnapshot(final Path file) {
+        return delegate.restoreSnapshot(file);
+    }
+
+    @Override
+    public List<MyObjectPojo> getAllAsPojos() {
+        return delegate.getAllAsPojos();
+    }
+
+    @Override
+    public List<MyObjectKey> getAllKeys() {
+        return delegate.getAllKeys();
+    }
+
+    @Override
+    public MyObjectPage getPage(final BigInteger afterId, final int limit) {
+        return delegate.getPage(afterId, limit);
+    }
+
+    @Override
+    public MyObjectPage getRange(final BigInteger afterId, final BigInteger toId, final int limit) {
+        return delegate.getRange(afterId, toId, limit);
+    }
+
+    @Override
+    public Iterator<MyObjectPage> pages(final BigInteger afterId,
+                                        final int limit,
+                                        final Executor prefetchExecutor) {
+        return delegate.pages(afterId, limit, prefetchExecutor);
+    }
+
+    @Override
+    public Stream<MyObjectJpa> streamAll(final int fetchSize) {
+        return delegate.streamAll(fetchSize);
+    }
+
+    @Override
+    public void forEach(final Consumer<MyObjectPojo> consumer) {
+        delegate.forEach(consumer);
+    }
+
+    @Override
+    public void forEach(final int fetchSize, final Consumer<MyObjectPojo> consumer) {
+        delegate.forEach(fetchSize, consumer);
+    }
+
+    @Override
+    public long streamChangedSince(final long watermark, final Consumer<MyObjectPojo> consumer) {
+        return delegate.streamChangedSince(watermark, consumer);
+    }
+
+    @Override
+    public long streamChangedSince(final long watermark,
+                                   final int fetchSize,
+                                   final Consumer<MyObjectPojo> consumer) {
+        return delegate.streamChangedSince(watermark, fetchSize, consumer);
+    }
+}
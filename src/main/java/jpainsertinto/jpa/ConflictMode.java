@@ -0,0 +1,57 @@
+package jpainsertinto.jpa;
+
+/**
+ * What an INSERT into TEST_OBJECTS should do when a row with the same HASH is already there.
+ */
+public enum ConflictMode {
+
+    /**
+     * A plain INSERT, a hash that is already there fails the whole write with a unique violation. Records sharing
+     * a hash aren't collapsed either, they fail the same way.
+     */
+    FAIL(""),
+
+    /**
+     * Keep the row that is already in the db, the new one is skipped.
+     */
+    DO_NOTHING(" ON CONFLICT (HASH)"
+            + " DO NOTHING"),
+
+    /**
+     * Overwrite the row that is already in the db with the new values.
+     */
+    DO_UPDATE(" ON CONFLICT (HASH)"
+            + " DO UPDATE"
+            + " SET COLUMN_1 = excluded.COLUMN_1,"
+            + "     COLUMN_2 = excluded.COLUMN_2,"
+            + "     CREATED  = excluded.CREATED,"
+            + "     UPDATED  = excluded.UPDATED"),
+
+    /**
+     * As DO_UPDATE, but a row already holding the new values is left as it is. Rewriting it would still cost a new
+     * row version, its WAL and later a vacuum, nothing is returned for it either.
+     */
+    DO_UPDATE_IF_CHANGED(DO_UPDATE.conflictClause
+            + " WHERE (T.COLUMN_1, T.COLUMN_2, T.CREATED, T.UPDATED)"
+            + "   IS DISTINCT FROM (excluded.COLUMN_1, excluded.COLUMN_2, excluded.CREATED, excluded.UPDATED)");
+
+    private final String conflictClause;
+
+    ConflictMode(final String conflictClause) {
+        this.conflictClause = conflictClause;
+    }
+
+    /**
+     * The clause to follow an INSERT INTO the table aliased as T.
+     */
+    public String getConflictClause() {
+        return conflictClause;
+    }
+
+    /**
+     * @return whether a row already there is overwritten, in which case the last record for a hash wins
+     */
+    public boolean isUpdate() {
+        return this == DO_UPDATE || this == DO_UPDATE_IF_CHANGED;
+    }
+}
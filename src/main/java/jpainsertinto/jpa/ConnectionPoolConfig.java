@@ -0,0 +1,46 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * Settings for the connection pool shared by the native JDBC paths and EclipseLink.
+ */
+@Builder
+@Value
+@ToString(exclude = "password")
+public class ConnectionPoolConfig {
+
+    String jdbcUrl;
+
+    String user;
+
+    @Builder.Default
+    String password = "password";
+
+    /** Connections kept open even when the pool is idle */
+    @Builder.Default
+    int minIdle = 2;
+
+    @Builder.Default
+    int maxPoolSize = 10;
+
+    /** How long a connection above minIdle may sit unused before it is closed */
+    @Builder.Default
+    Duration idleTimeout = Duration.ofMinutes(10);
+
+    /** How long a caller waits for a free connection before giving up */
+    @Builder.Default
+    Duration connectionTimeout = Duration.ofSeconds(30);
+
+    @Builder.Default
+    Duration maxLifetime = Duration.ofMinutes(30);
+
+    /** Server side prepared statements each connection keeps hold of */
+    @Builder.Default
+    int preparedStatementCacheQueries = 256;
+
+}
@@ -0,0 +1,70 @@
+package jpainsertinto.jpa;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the pooled {@link DataSource} used by {@link MyObjectJpaDaoImpl} and an {@link EntityManagerFactory} that
+ * borrows its connections from that same pool.
+ */
+public final class ConnectionPools {
+
+    public final static String PERSISTENCE_UNIT = "test_objects_pu";
+    /** The schema {@link JpaSessionCustomizer} points the persistence unit at, public if not set */
+    public final static String SCHEMA_PROPERTY = "jpainsertinto.schema";
+
+    private ConnectionPools() {
+    }
+
+    /**
+     * The pool doesn't cache statements itself. Instead pgjdbc is told to server-prepare a statement the first
+     * time it is used and keep it per connection, so preparing the same upsert again on a pooled connection
+     * only costs a lookup in the driver.
+     */
+    public static HikariDataSource create(final ConnectionPoolConfig config) {
+        var hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl(config.getJdbcUrl());
+        hikariConfig.setUsername(config.getUser());
+        hikariConfig.setPassword(config.getPassword());
+        hikariConfig.setMinimumIdle(config.getMinIdle());
+        hikariConfig.setMaximumPoolSize(config.getMaxPoolSize());
+        hikariConfig.setIdleTimeout(config.getIdleTimeout().toMillis());
+        hikariConfig.setConnectionTimeout(config.getConnectionTimeout().toMillis());
+        hikariConfig.setMaxLifetime(config.getMaxLifetime().toMillis());
+        hikariConfig.setPoolName("test-objects-pool");
+        hikariConfig.addDataSourceProperty("prepareThreshold", 1);
+        hikariConfig.addDataSourceProperty("preparedStatementCacheQueries", config.getPreparedStatementCacheQueries());
+        return new HikariDataSource(hikariConfig);
+    }
+
+    /**
+     * Creates the test_objects_pu factory on top of the given pool, any other EclipseLink / JPA settings can be
+     * passed in the properties.
+     */
+    public static EntityManagerFactory createEntityManagerFactory(final DataSource dataSource,
+                                                                  final Map<String, ?> properties) {
+        var jpaProps = new HashMap<String, Object>(properties);
+        jpaProps.put("javax.persistence.nonJtaDataSource", dataSource);
+        return Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, jpaProps);
+    }
+
+    /**
+     * As {@link #createEntityManagerFactory(DataSource, Map)} for the TEST_OBJECTS in the given schema. Each schema
+     * gets a session of its own, EclipseLink would otherwise hand every factory of the unit the same one.
+     */
+    public static EntityManagerFactory createEntityManagerFactory(final DataSource dataSource,
+                                                                  final String schemaName,
+                                                                  final Map<String, ?> properties) {
+        var jpaProps = new HashMap<String, Object>(properties);
+        jpaProps.put(SCHEMA_PROPERTY, UpsertSql.checkSchemaName(schemaName));
+        jpaProps.put(PersistenceUnitProperties.SESSION_NAME, PERSISTENCE_UNIT + "." + schemaName);
+        return createEntityManagerFactory(dataSource, jpaProps);
+    }
+}
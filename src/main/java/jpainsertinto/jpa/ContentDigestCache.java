@@ -0,0 +1,93 @@
+package jpainsertinto.jpa;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jpainsertinto.model.MyObjectPojo;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded hash to content digest cache that lets {@link ConflictMode#DO_UPDATE_IF_CHANGED} writes drop records
+ * the db already holds before they are sent at all. The digest is the 128 bit MD5 of the values as they are bound,
+ * so UPDATED only counts down to its time of day just as the TIME column does.
+ * <p>
+ * The dao only remembers what its native upserts have written, any other write through it forgets the hash. The
+ * cache can't see writes made elsewhere though, a hash someone else changes is only picked up again once the entry
+ * is evicted or timeToLive after it was written, so keep that short when the dao isn't the only writer.
+ */
+public class ContentDigestCache {
+
+    private final Cache<String, UUID> cache;
+    private final LongAdder unchanged = new LongAdder();
+
+    public ContentDigestCache(final long maximumSize, final Duration timeToLive) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .build();
+    }
+
+    /**
+     * @return whether the db is known to hold exactly this record under its hash already
+     */
+    boolean isUnchanged(final MyObjectPojo myObjectPojo) {
+        if (myObjectPojo.getHash() == null) {
+            return false;
+        }
+        var digest = cache.getIfPresent(myObjectPojo.getHash());
+        if (digest == null || !digest.equals(digest(myObjectPojo))) {
+            return false;
+        }
+        unchanged.increment();
+        return true;
+    }
+
+    /**
+     * Call after the record has been committed, or found already in the db.
+     */
+    void put(final MyObjectPojo myObjectPojo) {
+        if (myObjectPojo.getHash() != null) {
+            cache.put(myObjectPojo.getHash(), digest(myObjectPojo));
+        }
+    }
+
+    void invalidate(final String hash) {
+        cache.invalidate(hash);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** Records found unchanged here, that never went to the db */
+    public long getUnchangedCount() {
+        return unchanged.sum();
+    }
+
+    public long getSize() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    private static UUID digest(final MyObjectPojo myObjectPojo) {
+        var content = new StringBuilder(64);
+        field(content, myObjectPojo.getColumn1());
+        field(content, myObjectPojo.getColumn2());
+        field(content, myObjectPojo.getCreated());
+        field(content, myObjectPojo.getUpdated() == null ? null : myObjectPojo.getUpdated().toLocalTime());
+        return UUID.nameUUIDFromBytes(content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // length prefixed so that no two different records run together into the same text
+    private static void field(final StringBuilder content, final Object value) {
+        if (value == null) {
+            content.append('-');
+            return;
+        }
+        var text = value.toString();
+        content.append(text.length()).append(':').append(text);
+    }
+}
@@ -0,0 +1,90 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.jpa.DaoMetrics.Operation;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a write again when it failed only because of another writer, after a random wait so the writers that
+ * collided don't collide again straight away.
+ */
+@Slf4j
+final class ContentionRetry {
+
+    final static String SERIALIZATION_FAILURE = "40001";
+    final static String DEADLOCK_DETECTED = "40P01";
+    final static String UNIQUE_VIOLATION = "23505";
+
+    private final RetryPolicy retryPolicy;
+    private final DaoMetrics metrics;
+    private final Operation operation;
+
+    ContentionRetry(final RetryPolicy retryPolicy, final DaoMetrics metrics, final Operation operation) {
+        this.retryPolicy = retryPolicy;
+        this.metrics = metrics;
+        this.operation = operation;
+    }
+
+    /**
+     * @param write has to leave nothing behind when it fails, a transaction is rolled back before it throws
+     */
+    <T> T run(final ConflictMode conflictMode, final Write<T> write) throws SQLException {
+        for (var attempt = 1; ; attempt++) {
+            try {
+                return write.run();
+            } catch (SQLException e) {
+                if (!isRetryable(e, conflictMode)) {
+                    throw e;
+                }
+                if (attempt >= retryPolicy.getMaxAttempts()) {
+                    metrics.abort(operation);
+                    throw e;
+                }
+                metrics.retry(operation);
+                log.debug("{} failed with {}, attempt {} of {}", operation.getMetricName(), e.getSQLState(),
+                        attempt, retryPolicy.getMaxAttempts());
+                try {
+                    TimeUnit.NANOSECONDS.sleep(backoffNanos(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    metrics.abort(operation);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Anywhere between nothing and the capped exponential backoff, so the waits of the writers spread out.
+     */
+    private long backoffNanos(final int attempt) {
+        var cap = retryPolicy.getMaxBackoff().toNanos();
+        var backoff = retryPolicy.getInitialBackoff().toNanos() << Math.min(attempt - 1, 30);
+        return ThreadLocalRandom.current().nextLong(Math.max(1, Math.min(cap, backoff < 0 ? cap : backoff)) + 1);
+    }
+
+    /**
+     * Deadlocks and serialization failures go away when run again. So does a unique violation from two writers
+     * inserting the same new hash, except with FAIL where the hash being there already is the error.
+     */
+    static boolean isRetryable(final SQLException e, final ConflictMode conflictMode) {
+        for (var next = e; next != null; next = next.getNextException()) {
+            var sqlState = next.getSQLState();
+            if (DEADLOCK_DETECTED.equals(sqlState) || SERIALIZATION_FAILURE.equals(sqlState)) {
+                return true;
+            }
+            if (UNIQUE_VIOLATION.equals(sqlState)) {
+                return conflictMode != ConflictMode.FAIL;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    interface Write<T> {
+        T run() throws SQLException;
+    }
+}
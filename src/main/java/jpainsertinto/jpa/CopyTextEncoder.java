@@ -0,0 +1,229 @@
+package jpainsertinto.jpa;
+
+import org.postgresql.copy.CopyIn;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Encodes rows in postgres' COPY text format straight into a reusable byte buffer which is handed to the
+ * {@link CopyIn} whenever it fills up, so only one buffer's worth of rows is ever held in memory.
+ * Not thread safe, use one per COPY.
+ */
+final class CopyTextEncoder {
+
+    private final CopyIn copyIn;
+    private byte[] buffer;
+    private int position;
+    private boolean firstField = true;
+
+    CopyTextEncoder(final CopyIn copyIn, final int bufferSize) {
+        this.copyIn = copyIn;
+        this.buffer = new byte[bufferSize];
+    }
+
+    CopyTextEncoder field(final CharSequence value) throws SQLException {
+        separator();
+        if (value == null) {
+            return writeNull();
+        }
+        // worst case every char is escaped or needs 3 bytes of UTF-8
+        ensureCapacity(value.length() * 3);
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '\\' || c == '\t' || c == '\n' || c == '\r') {
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) (c == '\\' ? '\\' : c == '\t' ? 't' : c == '\n' ? 'n' : 'r');
+            } else if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                var codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    CopyTextEncoder field(final long value) throws SQLException {
+        separator();
+        ensureCapacity(20);
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return ascii(Long.toString(value));
+            }
+            buffer[position++] = '-';
+            return digits(-value, 1);
+        }
+        return digits(value, 1);
+    }
+
+    CopyTextEncoder field(final LocalDate value) throws SQLException {
+        separator();
+        if (value == null) {
+            return writeNull();
+        }
+        if (value.getYear() < 1 || value.getYear() > 9999) {
+            // postgres wants BC dates and 5 digit years spelled differently, leave those to LocalDate
+            return ascii(value.getYear() < 1 ? value.withYear(1 - value.getYear()) + " BC" : value.toString());
+        }
+        ensureCapacity(10);
+        digits(value.getYear(), 4);
+        buffer[position++] = '-';
+        digits(value.getMonthValue(), 2);
+        buffer[position++] = '-';
+        return digits(value.getDayOfMonth(), 2);
+    }
+
+    CopyTextEncoder field(final LocalTime value) throws SQLException {
+        if (value == null) {
+            return nullField();
+        }
+        return timeField(value.toNanoOfDay());
+    }
+
+    /**
+     * A TIME given as nanos of the day, written to the microsecond as postgres keeps it.
+     */
+    CopyTextEncoder timeField(final long nanoOfDay) throws SQLException {
+        separator();
+        ensureCapacity(15);
+        var seconds = nanoOfDay / 1_000_000_000L;
+        digits(seconds / 3_600, 2);
+        buffer[position++] = ':';
+        digits(seconds / 60 % 60, 2);
+        buffer[position++] = ':';
+        digits(seconds % 60, 2);
+        var micros = nanoOfDay % 1_000_000_000L / 1_000;
+        if (micros != 0) {
+            buffer[position++] = '.';
+            digits(micros, 6);
+        }
+        return this;
+    }
+
+    /**
+     * A DATE given as days since 1970-01-01.
+     */
+    CopyTextEncoder dateField(final long epochDay) throws SQLException {
+        // civil date from a day count, after Howard Hinnant's days_from_civil, with March as the first month
+        var z = epochDay + 719_468;
+        var era = Math.floorDiv(z, 146_097);
+        var dayOfEra = z - era * 146_097;
+        var yearOfEra = (dayOfEra - dayOfEra / 1_460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        var dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        var shiftedMonth = (5 * dayOfYear + 2) / 153;
+        var day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        var month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        var year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999) {
+            return field(LocalDate.ofEpochDay(epochDay));
+        }
+        separator();
+        ensureCapacity(10);
+        digits(year, 4);
+        buffer[position++] = '-';
+        digits(month, 2);
+        buffer[position++] = '-';
+        return digits(day, 2);
+    }
+
+    /**
+     * Text already encoded as UTF-8, copied from the buffer without becoming a String on the way.
+     */
+    CopyTextEncoder field(final ByteBuffer utf8, final int offset, final int length) throws SQLException {
+        separator();
+        ensureCapacity(length * 2);
+        for (var i = offset; i < offset + length; i++) {
+            var b = utf8.get(i);
+            // the bytes of a multi byte character are all above 0x7F so never look like one of these
+            if (b == '\\' || b == '\t' || b == '\n' || b == '\r') {
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) (b == '\\' ? '\\' : b == '\t' ? 't' : b == '\n' ? 'n' : 'r');
+            } else {
+                buffer[position++] = b;
+            }
+        }
+        return this;
+    }
+
+    CopyTextEncoder nullField() throws SQLException {
+        separator();
+        return writeNull();
+    }
+
+    void endRow() throws SQLException {
+        ensureCapacity(1);
+        buffer[position++] = '\n';
+        firstField = true;
+    }
+
+    /**
+     * Sends whatever is left in the buffer, call before ending the COPY.
+     */
+    void flush() throws SQLException {
+        if (position > 0) {
+            copyIn.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void separator() throws SQLException {
+        if (!firstField) {
+            ensureCapacity(1);
+            buffer[position++] = '\t';
+        }
+        firstField = false;
+    }
+
+    private CopyTextEncoder writeNull() throws SQLException {
+        ensureCapacity(2);
+        buffer[position++] = '\\';
+        buffer[position++] = 'N';
+        return this;
+    }
+
+    private CopyTextEncoder ascii(final String value) throws SQLException {
+        ensureCapacity(value.length());
+        for (var i = 0; i < value.length(); i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    private CopyTextEncoder digits(final long value, final int minDigits) {
+        var length = 1;
+        for (var remaining = value / 10; remaining > 0; remaining /= 10) {
+            length++;
+        }
+        length = Math.max(length, minDigits);
+        var remaining = value;
+        for (var i = position + length - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        position += length;
+        return this;
+    }
+
+    private void ensureCapacity(final int bytes) throws SQLException {
+        if (position + bytes > buffer.length) {
+            flush();
+            if (bytes > buffer.length) {
+                buffer = new byte[bytes];
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.metrics.LatencyHistogram;
+import jpainsertinto.metrics.LongCounter;
+import jpainsertinto.metrics.MetricsRegistry;
+
+/**
+ * The dao's metrics, looked up from the registry once so that recording is only an array index away.
+ * Histograms are named {@code dao.<operation>.<phase>}, counters {@code dao.<operation>.rows.<outcome>} and
+ * {@code dao.<operation>.exceptions}. Deletes are counted in {@code dao.<operation>.rows.deleted}, writes retried
+ * after losing a race with another writer in {@code dao.<operation>.retries} and those given up on in
+ * {@code dao.<operation>.aborts}.
+ * <p>
+ * Phases are timed by chaining the nanoTime along, which keeps the hot path free of allocations:
+ * <pre>
+ *     var t = metrics.start();
+ *     ... map the pojo
+ *     t = metrics.phase(Operation.UPSERT_ALL, Phase.MAPPING, t);
+ *     ... run the statement
+ *     t = metrics.phase(Operation.UPSERT_ALL, Phase.EXECUTE, t);
+ * </pre>
+ */
+public final class DaoMetrics {
+
+    public enum Operation {
+        INSERT_USING_QUERY("insertUsingQuery"),
+        INSERT_USING_NATIVE_QUERY_WITH_DO_NOTHING("insertUsingNativeQueryWithDoNothing"),
+        INSERT_USING_NATIVE_QUERY_WITH_DO_UPDATE("insertUsingNativeQueryWithDoUpdate"),
+        INSERT_USING_NATIVE_QUERY("insertUsingNativeQuery"),
+        INSERT_USING_MERGE("insertUsingMerge"),
+        INSERT_USING_FIND_AND_MERGE("insertUsingFindAndMerge"),
+        INSERT_USING_NATIVE_JDBC("insertUsingNativeJDBC"),
+        INSERT_USING_COPY("insertUsingCopy"),
+        UPSERT_ALL("upsertAll"),
+        UPSERT_ALL_WITH_RETRY("upsertAllWithRetry"),
+        FIND_BY_HASH("findByHash"),
+        GET_ALL("getAll"),
+        GET_ALL_USING_NATIVE_JDBC("getAllUsingNativeJDBC"),
+        GET_ALL_AS_POJOS("getAllAsPojos"),
+        GET_ALL_KEYS("getAllKeys"),
+        GET_PAGE("getPage"),
+        GET_RANGE("getRange"),
+        STREAM_ALL("streamAll"),
+        FOR_EACH("forEach"),
+        STREAM_CHANGED_SINCE("streamChangedSince"),
+        PURGE_OLDER_THAN("purgeOlderThan"),
+        EXPORT_SNAPSHOT("exportSnapshot"),
+        RESTORE_SNAPSHOT("restoreSnapshot");
+
+        private final String metricName;
+
+        Operation(final String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    public enum Phase {
+        /** the whole call, as seen by the caller */
+        TOTAL,
+        /** pojo to entity or bind parameters */
+        MAPPING,
+        BEGIN,
+        EXECUTE,
+        COMMIT;
+
+        public String getMetricName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final DaoMetrics DISABLED = new DaoMetrics(null);
+
+    private final boolean enabled;
+    private final LatencyHistogram[][] latencies;
+    private final LongCounter[][] rows;
+    private final LongCounter[] exceptions;
+    private final LongCounter[] rowsDeleted;
+    private final LongCounter[] retries;
+    private final LongCounter[] aborts;
+
+    public DaoMetrics(final MetricsRegistry registry) {
+        this.enabled = registry != null;
+        var operations = Operation.values();
+        this.latencies = new LatencyHistogram[operations.length][Phase.values().length];
+        this.rows = new LongCounter[operations.length][UpsertOutcome.values().length];
+        this.exceptions = new LongCounter[operations.length];
+        this.rowsDeleted = new LongCounter[operations.length];
+        this.retries = new LongCounter[operations.length];
+        this.aborts = new LongCounter[operations.length];
+        if (!enabled) {
+            return;
+        }
+        for (var operation : operations) {
+            var prefix = "dao." + operation.getMetricName() + ".";
+            for (var phase : Phase.values()) {
+                latencies[operation.ordinal()][phase.ordinal()] = registry.histogram(prefix + phase.getMetricName());
+            }
+            for (var outcome : UpsertOutcome.values()) {
+                rows[operation.ordinal()][outcome.ordinal()] = registry.counter(prefix + "rows."
+                        + outcome.name().toLowerCase());
+            }
+            exceptions[operation.ordinal()] = registry.counter(prefix + "exceptions");
+            rowsDeleted[operation.ordinal()] = registry.counter(prefix + "rows.deleted");
+            retries[operation.ordinal()] = registry.counter(prefix + "retries");
+            aborts[operation.ordinal()] = registry.counter(prefix + "aborts");
+        }
+    }
+
+    /**
+     * Records nothing, for daos that aren't being watched.
+     */
+    public static DaoMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the time to pass to the first {@link #phase} call
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time since the given start against the phase.
+     *
+     * @return now, the start of the next phase
+     */
+    public long phase(final Operation operation, final Phase phase, final long since) {
+        if (!enabled) {
+            return 0L;
+        }
+        var now = System.nanoTime();
+        latencies[operation.ordinal()][phase.ordinal()].record(now - since);
+        return now;
+    }
+
+    public void rows(final Operation operation, final UpsertOutcome outcome, final long count) {
+        if (enabled && count > 0) {
+            rows[operation.ordinal()][outcome.ordinal()].add(count);
+        }
+    }
+
+    public void rowsDeleted(final Operation operation, final long count) {
+        if (enabled && count > 0) {
+            rowsDeleted[operation.ordinal()].add(count);
+        }
+    }
+
+    /**
+     * A write that lost a race with another writer is being tried again.
+     */
+    public void retry(final Operation operation) {
+        if (enabled) {
+            retries[operation.ordinal()].increment();
+        }
+    }
+
+    /**
+     * A write that lost a race with another writer has been given up on.
+     */
+    public void abort(final Operation operation) {
+        if (enabled) {
+            aborts[operation.ordinal()].increment();
+        }
+    }
+
+    public void exception(final Operation operation) {
+        if (enabled) {
+            exceptions[operation.ordinal()].increment();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package jpainsertinto.jpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over TEST_OBJECTS.HASH, answers "definitely not in the db" without a round trip.
+ * The bits live in one primitive long array and are set with CAS, so it is thread safe and nothing is
+ * allocated per lookup. It only ever gives false positives as long as every insert goes through a dao using it
+ * and it was warmed from the table (see {@link MyObjectJpaDaoImpl#warmUpHashFilter()}).
+ */
+public class HashBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashFunctions;
+
+    private final AtomicLong bitsSet = new AtomicLong();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder negativeLookups = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Sizes the filter so it stays at roughly the given false positive rate until expectedHashes are in it.
+     */
+    public HashBloomFilter(final long expectedHashes, final double falsePositiveRate) {
+        if (expectedHashes < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("need expectedHashes > 0 and 0 < falsePositiveRate < 1");
+        }
+        var optimalBits = (long) Math.ceil(-expectedHashes * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        var words = Math.toIntExact((optimalBits + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * 64L;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitCount / expectedHashes * Math.log(2)));
+    }
+
+    public boolean mightContain(final String hash) {
+        lookups.increment();
+        var h1 = mix(hash, 0x9E3779B97F4A7C15L);
+        var h2 = mix(hash, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (var i = 0; i < hashFunctions; i++) {
+            var bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                negativeLookups.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void put(final String hash) {
+        var h1 = mix(hash, 0x9E3779B97F4A7C15L);
+        var h2 = mix(hash, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (var i = 0; i < hashFunctions; i++) {
+            var bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            var index = (int) (bit >>> 6);
+            var mask = 1L << bit;
+            long word;
+            do {
+                word = bits.get(index);
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, word, word | mask));
+            if ((word & mask) == 0) {
+                bitsSet.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * For callers that found out the hash wasn't there after all, so the observed rate can be compared with
+     * {@link #getExpectedFalsePositiveRate()}.
+     */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /** The false positive rate for the bits set so far */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow((double) bitsSet.get() / bitCount, hashFunctions);
+    }
+
+    public long getMemoryFootprintBytes() {
+        return bitCount / 8;
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /** Lookups that were answered without going to the db */
+    public long getNegativeLookups() {
+        return negativeLookups.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    // 64 bit mix of the chars with murmur3's finalizer, computed on the String in place
+    private static long mix(final String value, final long seed) {
+        var h = seed ^ value.length();
+        for (var i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
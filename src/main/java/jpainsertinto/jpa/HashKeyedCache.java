@@ -0,0 +1,65 @@
+package jpainsertinto.jpa;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jpainsertinto.model.MyObjectPojo;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * Bounded hash to row cache behind {@link MyObjectJpaDao#findByHash}. Entries are evicted once there are more
+ * than maximumSize of them or timeToLive after they were loaded. The dao invalidates a hash after every write
+ * that touches it, whichever path it took, so it doesn't depend on EclipseLink's shared cache.
+ * Only rows that exist are cached, a miss for an unknown hash goes to the db every time.
+ */
+public class HashKeyedCache {
+
+    private final Cache<String, MyObjectPojo> cache;
+
+    public HashKeyedCache(final long maximumSize, final Duration timeToLive) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    MyObjectPojo get(final String hash, final Function<String, MyObjectPojo> loader) {
+        return cache.get(hash, loader);
+    }
+
+    /**
+     * Call after the write has been committed. A load that is still reading the old row finishes before the
+     * entry is dropped, so it can't put the old row back.
+     */
+    void invalidate(final String hash) {
+        cache.invalidate(hash);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /** Entries dropped for size or age, not counting invalidations */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getSize() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+}
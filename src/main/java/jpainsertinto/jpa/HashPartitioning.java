@@ -0,0 +1,215 @@
+package jpainsertinto.jpa;
+
+import lombok.ToString;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The hash partitions of TEST_OBJECTS and which of them a HASH lands in, worked out on the client the same way
+ * postgres routes rows: hashtextextended over the bytes in the server encoding with the partition seed, combined
+ * as for a single column key and taken modulo the greatest modulus. Null hashes go to remainder 0.
+ * <p>
+ * Only deterministic collations hash the plain bytes, which is all a database default collation can be. Should
+ * a row ever be sent to the wrong partition postgres rejects it with a partition constraint violation, it is
+ * never stored in the wrong place.
+ */
+@ToString
+public class HashPartitioning {
+
+    private static final long HASH_PARTITION_SEED = 0x7A5B22367996DCFDL;
+    private static final long HASH_COMBINE_CONSTANT = 0x49a0f4dd15e5a8e3L;
+
+    private static final String SELECT_PARTITIONS = "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid)"
+            + " FROM pg_inherits i"
+            + " JOIN pg_class c ON c.oid = i.inhrelid"
+            + " WHERE i.inhparent = to_regclass(quote_ident(?) || '.' || quote_ident(?))"
+            + " ORDER BY c.relname";
+    private static final Pattern HASH_BOUND = Pattern.compile(
+            "FOR VALUES WITH \\(modulus (\\d+), remainder (\\d+)\\)", Pattern.CASE_INSENSITIVE);
+
+    private final List<String> partitionNames;
+    private final Charset serverCharset;
+    private final int greatestModulus;
+    // the partition for every remainder of the greatest modulus
+    @ToString.Exclude
+    private final int[] partitionByRemainder;
+
+    private HashPartitioning(final List<String> partitionNames,
+                             final Charset serverCharset,
+                             final int greatestModulus,
+                             final int[] partitionByRemainder) {
+        this.partitionNames = Collections.unmodifiableList(partitionNames);
+        this.serverCharset = serverCharset;
+        this.greatestModulus = greatestModulus;
+        this.partitionByRemainder = partitionByRemainder;
+    }
+
+    /**
+     * Everything in the one table, for a table that isn't partitioned.
+     */
+    public static HashPartitioning unpartitioned(final String tableName) {
+        return new HashPartitioning(List.of(tableName), StandardCharsets.UTF_8, 1, new int[] {0});
+    }
+
+    /**
+     * Reads the partitions of the given table from the catalog, a table without any is treated as
+     * {@link #unpartitioned}.
+     */
+    public static HashPartitioning discover(final Connection conn,
+                                            final String schemaName,
+                                            final String tableName) throws SQLException {
+        var names = new ArrayList<String>();
+        var moduli = new ArrayList<Integer>();
+        var remainders = new ArrayList<Integer>();
+        try (var ps = conn.prepareStatement(SELECT_PARTITIONS)) {
+            ps.setString(1, schemaName);
+            ps.setString(2, tableName);
+            try (var results = ps.executeQuery()) {
+                while (results.next()) {
+                    var bound = HASH_BOUND.matcher(results.getString(2));
+                    if (!bound.matches()) {
+                        throw new IllegalStateException(tableName + " has a partition that isn't a hash partition: "
+                                + results.getString(1) + " " + results.getString(2));
+                    }
+                    names.add(results.getString(1));
+                    moduli.add(Integer.parseInt(bound.group(1)));
+                    remainders.add(Integer.parseInt(bound.group(2)));
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return unpartitioned(tableName);
+        }
+
+        var greatestModulus = Collections.max(moduli);
+        var partitionByRemainder = new int[greatestModulus];
+        Arrays.fill(partitionByRemainder, -1);
+        for (var partition = 0; partition < names.size(); partition++) {
+            for (var remainder = remainders.get(partition); remainder < greatestModulus;
+                 remainder += moduli.get(partition)) {
+                partitionByRemainder[remainder] = partition;
+            }
+        }
+        return new HashPartitioning(names, serverCharset(conn), greatestModulus, partitionByRemainder);
+    }
+
+    private static Charset serverCharset(final Connection conn) throws SQLException {
+        try (var statement = conn.createStatement();
+             var results = statement.executeQuery("SHOW server_encoding")) {
+            results.next();
+            var encoding = results.getString(1);
+            // SQL_ASCII keeps whatever bytes the driver sends, which is UTF-8
+            if ("UTF8".equalsIgnoreCase(encoding) || "SQL_ASCII".equalsIgnoreCase(encoding)) {
+                return StandardCharsets.UTF_8;
+            }
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("can't route rows for a server encoding of " + encoding, e);
+            }
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitionNames.size();
+    }
+
+    public List<String> getPartitionNames() {
+        return partitionNames;
+    }
+
+    public String getPartitionName(final int partition) {
+        return partitionNames.get(partition);
+    }
+
+    /**
+     * @return the index into {@link #getPartitionNames()} of the partition postgres puts the hash in, or -1 if
+     * no partition takes it
+     */
+    public int partitionOf(final String hash) {
+        if (greatestModulus == 1) {
+            return partitionByRemainder[0];
+        }
+        var rowHash = hash == null ? 0L : hashCombine64(0L, hashBytesExtended(
+                hash.getBytes(serverCharset), HASH_PARTITION_SEED));
+        return partitionByRemainder[(int) Long.remainderUnsigned(rowHash, greatestModulus)];
+    }
+
+    private static long hashCombine64(final long a, final long b) {
+        return a ^ (b + HASH_COMBINE_CONSTANT + (a << 54) + (a >>> 7));
+    }
+
+    /**
+     * Bob Jenkins' lookup3 as postgres' hash_bytes_extended has it, reading the key little endian.
+     */
+    static long hashBytesExtended(final byte[] key, final long seed) {
+        var length = key.length;
+        int a;
+        int b;
+        int c;
+        a = b = c = 0x9e3779b9 + length + 3923095;
+
+        if (seed != 0) {
+            a += (int) (seed >>> 32);
+            b += (int) seed;
+            // mix(a, b, c)
+            a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+            a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+        }
+
+        var offset = 0;
+        for (; length - offset >= 12; offset += 12) {
+            a += littleEndianInt(key, offset, 4);
+            b += littleEndianInt(key, offset + 4, 4);
+            c += littleEndianInt(key, offset + 8, 4);
+            // mix(a, b, c)
+            a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+            a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+        }
+
+        // the last 11 bytes, the lowest byte of c is left for the length
+        var left = length - offset;
+        a += littleEndianInt(key, offset, Math.min(left, 4));
+        if (left > 4) {
+            b += littleEndianInt(key, offset + 4, Math.min(left - 4, 4));
+        }
+        if (left > 8) {
+            c += littleEndianInt(key, offset + 8, left - 8) << 8;
+        }
+
+        // final(a, b, c)
+        c ^= b; c -= Integer.rotateLeft(b, 14);
+        a ^= c; a -= Integer.rotateLeft(c, 11);
+        b ^= a; b -= Integer.rotateLeft(a, 25);
+        c ^= b; c -= Integer.rotateLeft(b, 16);
+        a ^= c; a -= Integer.rotateLeft(c, 4);
+        b ^= a; b -= Integer.rotateLeft(a, 14);
+        c ^= b; c -= Integer.rotateLeft(b, 24);
+
+        return ((long) b << 32) | (c & 0xffffffffL);
+    }
+
+    private static int littleEndianInt(final byte[] key, final int offset, final int length) {
+        var value = 0;
+        for (var i = 0; i < length; i++) {
+            value |= (key[offset + i] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+}
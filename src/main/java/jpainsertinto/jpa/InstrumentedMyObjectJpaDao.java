@@ -0,0 +1,395 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.jpa.DaoMetrics.Operation;
+import jpainsertinto.jpa.DaoMetrics.Phase;
+import jpainsertinto.model.MyObjectKey;
+import jpainsertinto.model.MyObjectPojo;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Times every call into the dao it wraps and counts the ones that throw. Each method is spelled out rather than
+ * going through a shared lambda so that nothing is allocated per call. Throwables are caught as the bulk methods
+ * sneak SQLExceptions through, they are rethrown untouched.
+ * <p>
+ * The latency of a {@link #streamAll} call runs until the stream is closed, the pages read by {@link #pages} are
+ * only timed by the dao underneath.
+ */
+public class InstrumentedMyObjectJpaDao implements MyObjectJpaDao {
+
+    private final MyObjectJpaDao delegate;
+    private final DaoMetrics metrics;
+
+    public InstrumentedMyObjectJpaDao(final MyObjectJpaDao delegate, final DaoMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void insertUsingQuery(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            delegate.insertUsingQuery(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_QUERY);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_QUERY, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQueryWithDoNothing(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            return delegate.insertUsingNativeQueryWithDoNothing(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_NOTHING);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_NOTHING, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQueryWithDoUpdate(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            return delegate.insertUsingNativeQueryWithDoUpdate(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_UPDATE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_UPDATE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertRowResult insertUsingNativeQuery(final MyObjectPojo myObjectPojo, final ConflictMode conflictMode) {
+        var t = metrics.start();
+        try {
+            return delegate.insertUsingNativeQuery(myObjectPojo, conflictMode);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_NATIVE_QUERY);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_NATIVE_QUERY, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public void insertUsingMerge(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            delegate.insertUsingMerge(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_MERGE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_MERGE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public void insertUsingFindAndMerge(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            delegate.insertUsingFindAndMerge(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_FIND_AND_MERGE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_FIND_AND_MERGE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public void insertUsingNativeJDBC(final MyObjectPojo myObjectPojo) {
+        var t = metrics.start();
+        try {
+            delegate.insertUsingNativeJDBC(myObjectPojo);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_NATIVE_JDBC);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_NATIVE_JDBC, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertBatchResult insertUsingCopy(final Iterator<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        var t = metrics.start();
+        try {
+            return delegate.insertUsingCopy(myObjectPojos, conflictMode);
+        } catch (Throwable e) {
+            metrics.exception(Operation.INSERT_USING_COPY);
+            throw e;
+        } finally {
+            metrics.phase(Operation.INSERT_USING_COPY, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertBatchResult insertUsingCopy(final Stream<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        return insertUsingCopy(myObjectPojos.iterator(), conflictMode);
+    }
+
+    @Override
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode) {
+        var t = metrics.start();
+        try {
+            return delegate.upsertAll(myObjectPojos, conflictMode);
+        } catch (Throwable e) {
+            metrics.exception(Operation.UPSERT_ALL);
+            throw e;
+        } finally {
+            metrics.phase(Operation.UPSERT_ALL, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode,
+                                       final int batchSize) {
+        var t = metrics.start();
+        try {
+            return delegate.upsertAll(myObjectPojos, conflictMode, batchSize);
+        } catch (Throwable e) {
+            metrics.exception(Operation.UPSERT_ALL);
+            throw e;
+        } finally {
+            metrics.phase(Operation.UPSERT_ALL, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public UpsertBatchResult upsertAllWithRetry(final Collection<MyObjectPojo> myObjectPojos,
+                                                final ConflictMode conflictMode,
+                                                final int batchSize,
+                                                final RetryPolicy retryPolicy) {
+        var t = metrics.start();
+        try {
+            return delegate.upsertAllWithRetry(myObjectPojos, conflictMode, batchSize, retryPolicy);
+        } catch (Throwable e) {
+            metrics.exception(Operation.UPSERT_ALL_WITH_RETRY);
+            throw e;
+        } finally {
+            metrics.phase(Operation.UPSERT_ALL_WITH_RETRY, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public Optional<MyObjectPojo> findByHash(final String hash) {
+        var t = metrics.start();
+        try {
+            return delegate.findByHash(hash);
+        } catch (Throwable e) {
+            metrics.exception(Operation.FIND_BY_HASH);
+            throw e;
+        } finally {
+            metrics.phase(Operation.FIND_BY_HASH, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public List<MyObjectJpa> getAll() {
+        var t = metrics.start();
+        try {
+            return delegate.getAll();
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_ALL);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_ALL, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public List<MyObjectJpa> getAllUsingNativeJDBC() {
+        var t = metrics.start();
+        try {
+            return delegate.getAllUsingNativeJDBC();
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_ALL_USING_NATIVE_JDBC);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_ALL_USING_NATIVE_JDBC, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public PurgeResult purgeOlderThan(final LocalDate cutoff, final BigInteger afterId, final PurgeConfig config) {
+        var t = metrics.start();
+        try {
+            return delegate.purgeOlderThan(cutoff, afterId, config);
+        } catch (Throwable e) {
+            metrics.exception(Operation.PURGE_OLDER_THAN);
+            throw e;
+        } finally {
+            metrics.phase(Operation.PURGE_OLDER_THAN, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public long exportSnapshot(final Path file, final int fieldBytes) {
+        var t = metrics.start();
+        try {
+            return delegate.exportSnapshot(file, fieldBytes);
+        } catch (Throwable e) {
+            metrics.exception(Operation.EXPORT_SNAPSHOT);
+            throw e;
+        } finally {
+            metrics.phase(Operation.EXPORT_SNAPSHOT, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public long restoreSnapshot(final Path file) {
+        var t = metrics.start();
+        try {
+            return delegate.restoreSnapshot(file);
+        } catch (Throwable e) {
+            metrics.exception(Operation.RESTORE_SNAPSHOT);
+            throw e;
+        } finally {
+            metrics.phase(Operation.RESTORE_SNAPSHOT, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public List<MyObjectPojo> getAllAsPojos() {
+        var t = metrics.start();
+        try {
+            return delegate.getAllAsPojos();
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_ALL_AS_POJOS);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_ALL_AS_POJOS, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public List<MyObjectKey> getAllKeys() {
+        var t = metrics.start();
+        try {
+            return delegate.getAllKeys();
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_ALL_KEYS);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_ALL_KEYS, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public MyObjectPage getPage(final BigInteger afterId, final int limit) {
+        var t = metrics.start();
+        try {
+            return delegate.getPage(afterId, limit);
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_PAGE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_PAGE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public MyObjectPage getRange(final BigInteger afterId, final BigInteger toId, final int limit) {
+        var t = metrics.start();
+        try {
+            return delegate.getRange(afterId, toId, limit);
+        } catch (Throwable e) {
+            metrics.exception(Operation.GET_RANGE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.GET_RANGE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public Iterator<MyObjectPage> pages(final BigInteger afterId,
+                                        final int limit,
+                                        final Executor prefetchExecutor) {
+        return delegate.pages(afterId, limit, prefetchExecutor);
+    }
+
+    @Override
+    public Stream<MyObjectJpa> streamAll(final int fetchSize) {
+        var t = metrics.start();
+        try {
+            return delegate.streamAll(fetchSize)
+                    .onClose(() -> metrics.phase(Operation.STREAM_ALL, Phase.TOTAL, t));
+        } catch (Throwable e) {
+            metrics.exception(Operation.STREAM_ALL);
+            throw e;
+        }
+    }
+
+    @Override
+    public void forEach(final Consumer<MyObjectPojo> consumer) {
+        var t = metrics.start();
+        try {
+            delegate.forEach(consumer);
+        } catch (Throwable e) {
+            metrics.exception(Operation.FOR_EACH);
+            throw e;
+        } finally {
+            metrics.phase(Operation.FOR_EACH, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public void forEach(final int fetchSize, final Consumer<MyObjectPojo> consumer) {
+        var t = metrics.start();
+        try {
+            delegate.forEach(fetchSize, consumer);
+        } catch (Throwable e) {
+            metrics.exception(Operation.FOR_EACH);
+            throw e;
+        } finally {
+            metrics.phase(Operation.FOR_EACH, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public long streamChangedSince(final long watermark, final Consumer<MyObjectPojo> consumer) {
+        var t = metrics.start();
+        try {
+            return delegate.streamChangedSince(watermark, consumer);
+        } catch (Throwable e) {
+            metrics.exception(Operation.STREAM_CHANGED_SINCE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.STREAM_CHANGED_SINCE, Phase.TOTAL, t);
+        }
+    }
+
+    @Override
+    public long streamChangedSince(final long watermark,
+                                   final int fetchSize,
+                                   final Consumer<MyObjectPojo> consumer) {
+        var t = metrics.start();
+        try {
+            return delegate.streamChangedSince(watermark, fetchSize, consumer);
+        } catch (Throwable e) {
+            metrics.exception(Operation.STREAM_CHANGED_SINCE);
+            throw e;
+        } finally {
+            metrics.phase(Operation.STREAM_CHANGED_SINCE, Phase.TOTAL, t);
+        }
+    }
+}
@@ -6,17 +6,16 @@ import org.eclipse.persistence.sessions.Session;
 
 /**
  * Eclipselink component to customize the session.
- * We currently use this to set the DB schema name used by the service via config.
+ * We currently use this to set the DB schema name used by the service via config, the
+ * {@link ConnectionPools#SCHEMA_PROPERTY} of the persistence unit or public without one.
  */
 public final class JpaSessionCustomizer implements SessionCustomizer {
-    private final String schemaName;
-
-    public JpaSessionCustomizer() {
-        schemaName = "public";
-    }
 
     @Override
     public void customize(final Session session) {
-        session.getLogin().setTableQualifier(schemaName);
+        var schemaName = (String) session.getProperty(ConnectionPools.SCHEMA_PROPERTY);
+        session.getLogin().setTableQualifier(schemaName == null
+                ? UpsertSql.DEFAULT_SCHEMA_NAME
+                : UpsertSql.checkSchemaName(schemaName));
     }
 }
@@ -30,7 +30,8 @@ import java.util.Date;
 public class MyObjectJpa {
 
     @Id
-    @SequenceGenerator(name="test_objects_id_pk_seq", sequenceName="test_objects_id_pk_seq", allocationSize=1)
+    @SequenceGenerator(name="test_objects_id_pk_seq", sequenceName="test_objects_id_pk_seq",
+            allocationSize=PooledIdAllocator.BLOCK_SIZE)
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="test_objects_id_pk_seq")
     @Column(name = "id", columnDefinition = "SERIAL")
     private BigInteger id_pk;
@@ -1,16 +1,28 @@
 package jpainsertinto.jpa;
 
+import jpainsertinto.model.MyObjectKey;
 import jpainsertinto.model.MyObjectPojo;
 
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface MyObjectJpaDao {
 
     void insertUsingQuery(MyObjectPojo myObjectPojo);
 
-    void insertUsingNativeQueryWithDoNothing(MyObjectPojo myObjectPojo);
+    UpsertRowResult insertUsingNativeQueryWithDoNothing(MyObjectPojo myObjectPojo);
 
-    void insertUsingNativeQueryWithDoUpdate(MyObjectPojo myObjectPojo);
+    UpsertRowResult insertUsingNativeQueryWithDoUpdate(MyObjectPojo myObjectPojo);
+
+    UpsertRowResult insertUsingNativeQuery(MyObjectPojo myObjectPojo, ConflictMode conflictMode);
 
     void insertUsingMerge(MyObjectPojo myObjectPojo);
 
@@ -18,7 +30,92 @@ public interface MyObjectJpaDao {
 
     void insertUsingNativeJDBC(MyObjectPojo myObjectPojo);
 
+    UpsertBatchResult insertUsingCopy(Iterator<MyObjectPojo> myObjectPojos, ConflictMode conflictMode);
+
+    UpsertBatchResult insertUsingCopy(Stream<MyObjectPojo> myObjectPojos, ConflictMode conflictMode);
+
+    UpsertBatchResult upsertAll(Collection<MyObjectPojo> myObjectPojos, ConflictMode conflictMode);
+
+    UpsertBatchResult upsertAll(Collection<MyObjectPojo> myObjectPojos, ConflictMode conflictMode, int batchSize);
+
+    /**
+     * As upsertAll but for writers racing each other over the same hashes: the rows are locked in hash order and
+     * each chunk of batchSize rows commits on its own, so a deadlock or a lost race only retries that chunk.
+     */
+    UpsertBatchResult upsertAllWithRetry(Collection<MyObjectPojo> myObjectPojos,
+                                         ConflictMode conflictMode,
+                                         int batchSize,
+                                         RetryPolicy retryPolicy);
+
+    Optional<MyObjectPojo> findByHash(String hash);
+
     List<MyObjectJpa> getAll();
 
     List<MyObjectJpa> getAllUsingNativeJDBC();
+
+    /**
+     * Every row as a pojo, read without creating any entities, so nothing is kept by the persistence context or
+     * the shared cache.
+     */
+    List<MyObjectPojo> getAllAsPojos();
+
+    /**
+     * The ID and HASH of every row, without reading the other columns.
+     */
+    List<MyObjectKey> getAllKeys();
+
+    /**
+     * @param afterId the nextAfterId of the previous page, null for the first page
+     */
+    MyObjectPage getPage(BigInteger afterId, int limit);
+
+    /**
+     * A page of the rows with afterId < ID <= toId.
+     */
+    MyObjectPage getRange(BigInteger afterId, BigInteger toId, int limit);
+
+    /**
+     * @param prefetchExecutor reads the next page while the current one is being used, null not to read ahead
+     */
+    Iterator<MyObjectPage> pages(BigInteger afterId, int limit, Executor prefetchExecutor);
+
+    Stream<MyObjectJpa> streamAll(int fetchSize);
+
+    void forEach(Consumer<MyObjectPojo> consumer);
+
+    void forEach(int fetchSize, Consumer<MyObjectPojo> consumer);
+
+    /**
+     * Streams the rows inserted or updated since the watermark, in the order they changed.
+     *
+     * @param watermark what the previous call returned, 0 for every row
+     * @return the watermark to pass to the next call
+     */
+    long streamChangedSince(long watermark, Consumer<MyObjectPojo> consumer);
+
+    long streamChangedSince(long watermark, int fetchSize, Consumer<MyObjectPojo> consumer);
+
+    /**
+     * Deletes the rows created before the cutoff a chunk at a time, alongside the writes going on.
+     *
+     * @param afterId the nextAfterId of a run that didn't finish, null to start from the first row
+     */
+    PurgeResult purgeOlderThan(LocalDate cutoff, BigInteger afterId, PurgeConfig config);
+
+    /**
+     * Writes every row to a new {@link MyObjectSnapshot} file, replacing the file if it's there.
+     *
+     * @param fieldBytes the slot size of the text columns, {@link MyObjectSnapshot#UTF8_FIELD_BYTES} fits anything
+     * @return the number of rows written
+     */
+    long exportSnapshot(Path file, int fieldBytes);
+
+    /**
+     * Loads a snapshot back in one transaction, with the IDs it was exported with. The table may only hold IDs
+     * below the snapshot's lowest, an empty table always will, and none of its hashes.
+     *
+     * @throws IllegalStateException if the table already holds an ID as high as the snapshot's lowest
+     * @return the number of rows loaded
+     */
+    long restoreSnapshot(Path file);
 }
@@ -1,49 +1,171 @@
 package jpainsertinto.jpa;
 
+import jpainsertinto.jpa.DaoMetrics.Operation;
+import jpainsertinto.jpa.DaoMetrics.Phase;
+import lombok.Builder;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import jpainsertinto.model.MyObjectKey;
 import jpainsertinto.model.MyObjectPojo;
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.sessions.UnitOfWork;
 
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.NoResultException;
+import javax.persistence.RollbackException;
+import javax.sql.DataSource;
 import java.math.BigInteger;
-import java.sql.DriverManager;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.ZoneId;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Slf4j
-public class MyObjectJpaDaoImpl implements MyObjectJpaDao {
+public class MyObjectJpaDaoImpl implements MyObjectJpaDao, AutoCloseable {
 
     private final EntityManagerFactory emf;
     private final static ZoneId UTC_TIME_ZONE = ZoneId.of("UTC");
-    private final String driver;
-    private final String serverURL;
-    private final String user;
+    private final static String SELECT_ALL_COLUMNS = "SELECT ID, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED";
+    private final static String SELECT_ALL = SELECT_ALL_COLUMNS
+            + " FROM {schema}.TEST_OBJECTS";
+    // keyset pagination, each partition's index on ID is read from afterId on for only as many rows as the page
+    // needs, however far into the table it is. One row more than the limit says whether there is another page
+    private final static String SELECT_PAGE = SELECT_ALL
+            + " WHERE ID > ? ORDER BY ID LIMIT ?";
+    private final static String SELECT_RANGE = SELECT_ALL
+            + " WHERE ID > ? AND ID <= ? ORDER BY ID LIMIT ?";
+    // every transaction below the oldest one still running has finished, so its changes are all visible
+    private final static String SELECT_CHANGE_HORIZON = "SELECT pg_snapshot_xmin(pg_current_snapshot())::text::bigint";
+    private final static String SELECT_CHANGED = SELECT_ALL
+            + " WHERE CHANGE_XID >= ? AND CHANGE_XID < ? ORDER BY CHANGE_XID, ID";
+    private final static String SELECT_HASHES = "SELECT HASH FROM {schema}.TEST_OBJECTS WHERE HASH IS NOT NULL";
+    private final static String TEST_OBJECTS_TABLE = "test_objects";
+    final static int DEFAULT_BATCH_SIZE = 500;
+    private final static RetryPolicy DEFAULT_RETRY_POLICY = RetryPolicy.builder().build();
+    private final static int DEFAULT_FETCH_SIZE = 1_000;
+    /** The most rows an upsertAll statement can take, postgres accepts at most 32767 bind parameters in one */
+    public final static int MAX_BATCH_SIZE = Short.MAX_VALUE / MyObjectPojoBinder.PARAMETERS_PER_ROW;
+    private final DataSource dataSource;
+    private final boolean ownsDataSource;
+    private final String schemaName;
+    private final String selectAll;
+    private final String selectPage;
+    private final String selectRange;
+    private final String selectChanged;
+    private final PgCopyBulkLoader bulkLoader;
+    private final HashBloomFilter hashFilter;
+    private final HashKeyedCache hashCache;
+    private final ContentDigestCache digestCache;
+    private final DaoMetrics metrics;
+    private volatile UpsertSql upsertSql;
+
+    /**
+     * @param dataSource pooled connections for the native JDBC paths, ideally the same pool the emf was built on
+     *                   (see {@link ConnectionPools#createEntityManagerFactory})
+     */
+    public MyObjectJpaDaoImpl(final EntityManagerFactory emf,
+                              final DataSource dataSource) {
+        this(emf, dataSource, null, null, null, null, null, false);
+    }
 
+    /**
+     * For a dao with the optional extras, anything not given is left out.
+     *
+     * @param hashFilter lets insertUsingFindAndMerge skip the lookup for hashes that can't be in the db yet,
+     *                   it has to be warmed with {@link #warmUpHashFilter()} before the dao takes any writes
+     * @param hashCache  caches the rows read by {@link #findByHash}
+     * @param digestCache lets DO_UPDATE_IF_CHANGED writes leave out records the db is known to hold already
+     * @param metrics    records the latency of each phase of the writes and what happened to the rows, wrap the
+     *                   dao in an {@link InstrumentedMyObjectJpaDao} on the same metrics for the per call totals
+     * @param schemaName the schema TEST_OBJECTS is in, public if not given. The emf has to be built for the same
+     *                   one, see {@link ConnectionPools#createEntityManagerFactory(DataSource, String, Map)}
+     */
+    @Builder
+    private MyObjectJpaDaoImpl(final EntityManagerFactory emf,
+                               final DataSource dataSource,
+                               final HashBloomFilter hashFilter,
+                               final HashKeyedCache hashCache,
+                               final ContentDigestCache digestCache,
+                               final DaoMetrics metrics,
+                               final String schemaName) {
+        this(emf, dataSource, hashFilter, hashCache, digestCache, metrics, schemaName, false);
+    }
+
+    /**
+     * Builds a pool of its own with the default {@link ConnectionPoolConfig} settings, which is closed by
+     * {@link #close()}. The driver is found by JDBC itself so it is only kept for compatibility.
+     */
     public MyObjectJpaDaoImpl(final EntityManagerFactory emf,
                               final String driver,
                               final String serverURL,
                               final String user) {
+        this(emf, ConnectionPools.create(ConnectionPoolConfig.builder()
+                .jdbcUrl(serverURL)
+                .user(user)
+                .build()), null, null, null, null, null, true);
+    }
+
+    private MyObjectJpaDaoImpl(final EntityManagerFactory emf,
+                               final DataSource dataSource,
+                               final HashBloomFilter hashFilter,
+                               final HashKeyedCache hashCache,
+                               final ContentDigestCache digestCache,
+                               final DaoMetrics metrics,
+                               final String schemaName,
+                               final boolean ownsDataSource) {
         this.emf = emf;
-        this.driver = driver;
-        this.serverURL = serverURL;
-        this.user = user;
+        this.schemaName = schemaName == null
+                ? UpsertSql.DEFAULT_SCHEMA_NAME
+                : UpsertSql.checkSchemaName(schemaName);
+        this.selectAll = UpsertSql.inSchema(SELECT_ALL, this.schemaName);
+        this.selectPage = UpsertSql.inSchema(SELECT_PAGE, this.schemaName);
+        this.selectRange = UpsertSql.inSchema(SELECT_RANGE, this.schemaName);
+        this.selectChanged = UpsertSql.inSchema(SELECT_CHANGED, this.schemaName);
+        this.bulkLoader = new PgCopyBulkLoader(this.schemaName, PgCopyBulkLoader.DEFAULT_BUFFER_SIZE);
+        this.dataSource = dataSource;
+        this.hashFilter = hashFilter;
+        this.hashCache = hashCache;
+        this.digestCache = digestCache;
+        this.metrics = metrics == null ? DaoMetrics.disabled() : metrics;
+        this.ownsDataSource = ownsDataSource;
     }
 
     @Override
     public void insertUsingQuery(MyObjectPojo myObjectPojo) {
 
+        var t = metrics.start();
         var em = emf.createEntityManager();
 
         em.getTransaction().begin();
+        t = metrics.phase(Operation.INSERT_USING_QUERY, Phase.BEGIN, t);
 
         // map pojo to dao
         var myObjectJpa = MyObjectJpa.builder()
@@ -53,51 +175,79 @@ public class MyObjectJpaDaoImpl implements MyObjectJpaDao {
                 .created(Date.from(myObjectPojo.getCreated().atStartOfDay(UTC_TIME_ZONE).toInstant()))
                 .updated(Date.from(myObjectPojo.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
                 .build();
+        t = metrics.phase(Operation.INSERT_USING_QUERY, Phase.MAPPING, t);
 
         em.persist(myObjectJpa);
+        t = metrics.phase(Operation.INSERT_USING_QUERY, Phase.EXECUTE, t);
 
         em.getTransaction().commit();
         em.close();
+        metrics.phase(Operation.INSERT_USING_QUERY, Phase.COMMIT, t);
+        metrics.rows(Operation.INSERT_USING_QUERY, UpsertOutcome.INSERTED, 1);
+
+        afterWrite(myObjectPojo.getHash());
 
     }
 
-    public void insertUsingNativeQueryWithDoNothing(MyObjectPojo myObjectPojo) {
+    public UpsertRowResult insertUsingNativeQueryWithDoNothing(MyObjectPojo myObjectPojo) {
+        return insertUsingNativeQuery(myObjectPojo, ConflictMode.DO_NOTHING,
+                Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_NOTHING);
+    }
+
+    public UpsertRowResult insertUsingNativeQueryWithDoUpdate(MyObjectPojo myObjectPojo) {
+        return insertUsingNativeQuery(myObjectPojo, ConflictMode.DO_UPDATE,
+                Operation.INSERT_USING_NATIVE_QUERY_WITH_DO_UPDATE);
+    }
 
+    @Override
+    public UpsertRowResult insertUsingNativeQuery(final MyObjectPojo myObjectPojo, final ConflictMode conflictMode) {
+        return insertUsingNativeQuery(myObjectPojo, conflictMode, Operation.INSERT_USING_NATIVE_QUERY);
+    }
+
+    private UpsertRowResult insertUsingNativeQuery(final MyObjectPojo myObjectPojo,
+                                                   final ConflictMode conflictMode,
+                                                   final Operation operation) {
+
+        if (isKnownUnchanged(myObjectPojo, conflictMode)) {
+            metrics.rows(operation, UpsertOutcome.UNCHANGED, 1);
+            return UpsertRowResult.unchanged(myObjectPojo.getHash());
+        }
+
+        var t = metrics.start();
+        var sql = upsertSql().upsertRow(conflictMode, myObjectPojo.getHash());
         var em = emf.createEntityManager();
 
         em.getTransaction().begin();
+        // EclipseLink sends a query that returns rows down a read connection unless the db transaction is open
+        em.unwrap(UnitOfWork.class).beginEarlyTransaction();
+        t = metrics.phase(operation, Phase.BEGIN, t);
 
-        // map pojo to dao
-        var myObjectJpa = MyObjectJpa.builder()
-                .hash(myObjectPojo.getHash())
-                .column1(myObjectPojo.getColumn1())
-                .column2(myObjectPojo.getColumn2())
-                .created(Date.from(myObjectPojo.getCreated().atStartOfDay(UTC_TIME_ZONE).toInstant()))
-                .updated(Date.from(myObjectPojo.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
-                .build();
+        // a native insert has no use for an entity, the pojo goes straight onto the parameters
+        var query = MyObjectPojoBinder.bind(em.createNativeQuery(sql), myObjectPojo);
+        t = metrics.phase(operation, Phase.MAPPING, t);
 
-        em.createNativeQuery("INSERT INTO public.TEST_OBJECTS"
-                + " ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED )"
-                + " VALUES (?, ? ,?, ?, ?)"
-                + " ON CONFLICT (HASH)"
-                + " DO NOTHING ;")
-                .setParameter(1, myObjectJpa.getHash())
-                .setParameter(2, myObjectJpa.getColumn1())
-                .setParameter(3, myObjectJpa.getColumn2())
-                .setParameter(4, myObjectJpa.getCreated())
-                .setParameter(5, myObjectJpa.getUpdated())
-                .executeUpdate();
+        var returned = query.getResultList();
+        t = metrics.phase(operation, Phase.EXECUTE, t);
 
         em.getTransaction().commit();
         em.close();
+        evictEntities();
+        metrics.phase(operation, Phase.COMMIT, t);
+        var rowResult = toRowResult(myObjectPojo.getHash(), conflictMode, returned);
+        metrics.rows(operation, rowResult.getOutcome(), 1);
 
+        afterWrite(myObjectPojo, rowResult.getOutcome());
+
+        return rowResult;
     }
 
-    public void insertUsingNativeQueryWithDoUpdate(MyObjectPojo myObjectPojo) {
+    public void insertUsingMerge(MyObjectPojo myObjectPojo) {
 
+        var t = metrics.start();
         var em = emf.createEntityManager();
 
         em.getTransaction().begin();
+        t = metrics.phase(Operation.INSERT_USING_MERGE, Phase.BEGIN, t);
 
         // map pojo to dao
         var myObjectJpa = MyObjectJpa.builder()
@@ -107,33 +257,54 @@ public class MyObjectJpaDaoImpl implements MyObjectJpaDao {
                 .created(Date.from(myObjectPojo.getCreated().atStartOfDay(UTC_TIME_ZONE).toInstant()))
                 .updated(Date.from(myObjectPojo.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
                 .build();
+        t = metrics.phase(Operation.INSERT_USING_MERGE, Phase.MAPPING, t);
 
-        em.createNativeQuery("INSERT INTO public.TEST_OBJECTS "
-                + " ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED )"
-                + " VALUES (?, ? ,?, ?, ?)"
-                + " ON CONFLICT (HASH)"
-                + " DO UPDATE"
-                + " SET COLUMN_1 = excluded.COLUMN_1,"
-                + "     COLUMN_2 = excluded.COLUMN_2,"
-                + "     CREATED  = excluded.CREATED,"
-                + "     UPDATED  = excluded.UPDATED" )
-                .setParameter(1, myObjectJpa.getHash())
-                .setParameter(2, myObjectJpa.getColumn1())
-                .setParameter(3, myObjectJpa.getColumn2())
-                .setParameter(4, myObjectJpa.getCreated())
-                .setParameter(5, myObjectJpa.getUpdated())
-                .executeUpdate();
+        em.merge(myObjectJpa);
+        t = metrics.phase(Operation.INSERT_USING_MERGE, Phase.EXECUTE, t);
 
         em.getTransaction().commit();
         em.close();
+        metrics.phase(Operation.INSERT_USING_MERGE, Phase.COMMIT, t);
+        metrics.rows(Operation.INSERT_USING_MERGE, UpsertOutcome.INSERTED, 1);
+
+        afterWrite(myObjectPojo.getHash());
 
     }
 
-    public void insertUsingMerge(MyObjectPojo myObjectPojo) {
+    public void insertUsingFindAndMerge(MyObjectPojo myObjectPojo) {
+
+        var hash = myObjectPojo.getHash();
+        if (hashFilter == null || hash == null) {
+            insertUsingFindAndMerge(myObjectPojo, true);
+            return;
+        }
+
+        if (!hashFilter.mightContain(hash)) {
+            try {
+                // can't be in the db yet so go straight to the persist
+                insertUsingFindAndMerge(myObjectPojo, false);
+                return;
+            } catch (final RollbackException re) {
+                // somebody wrote it without telling the filter, do it the long way
+                log.debug("hash {} was in the db but not in the hash filter", hash);
+            }
+        }
+
+        if (!insertUsingFindAndMerge(myObjectPojo, true)) {
+            hashFilter.recordFalsePositive();
+        }
+    }
 
+    /**
+     * @return whether a previous object was found and updated
+     */
+    private boolean insertUsingFindAndMerge(MyObjectPojo myObjectPojo, boolean lookForPrevious) {
+
+        var t = metrics.start();
         var em = emf.createEntityManager();
 
         em.getTransaction().begin();
+        t = metrics.phase(Operation.INSERT_USING_FIND_AND_MERGE, Phase.BEGIN, t);
 
         // map pojo to dao
         var myObjectJpa = MyObjectJpa.builder()
@@ -143,94 +314,411 @@ public class MyObjectJpaDaoImpl implements MyObjectJpaDao {
                 .created(Date.from(myObjectPojo.getCreated().atStartOfDay(UTC_TIME_ZONE).toInstant()))
                 .updated(Date.from(myObjectPojo.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
                 .build();
+        t = metrics.phase(Operation.INSERT_USING_FIND_AND_MERGE, Phase.MAPPING, t);
 
-        em.merge(myObjectJpa);
+        try {
+            MyObjectJpa objectInDb = null;
+            if (lookForPrevious) {
+                // Look for the current entry in the db
+                var query = em.createQuery("SELECT P FROM TEST_OBJECTS P"
+                    + " WHERE P.hash = :hash", MyObjectJpa.class);
+                query.setParameter("hash", myObjectJpa.getHash());
+
+                try {
+                    objectInDb = query.getSingleResult();
+                } catch (final NoResultException nre) {
+                    objectInDb = null;
+                }
+            }
 
-        em.getTransaction().commit();
-        em.close();
+            // If we have a previous object then update it
+            if (objectInDb != null ) {
+                objectInDb.setColumn1(myObjectJpa.getColumn1());
+                objectInDb.setColumn2(myObjectJpa.getColumn2());
+                em.merge(objectInDb);
+            } else {
+                // no previous object so just persist it
+                em.persist(myObjectJpa);
+            }
+            t = metrics.phase(Operation.INSERT_USING_FIND_AND_MERGE, Phase.EXECUTE, t);
+
+            em.getTransaction().commit();
+            metrics.phase(Operation.INSERT_USING_FIND_AND_MERGE, Phase.COMMIT, t);
+            metrics.rows(Operation.INSERT_USING_FIND_AND_MERGE,
+                    objectInDb != null ? UpsertOutcome.UPDATED : UpsertOutcome.INSERTED, 1);
 
+            afterWrite(myObjectPojo.getHash());
+
+            return objectInDb != null;
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
     }
 
-    public void insertUsingFindAndMerge(MyObjectPojo myObjectPojo) {
+    /**
+     * A deadlock or a race with another writer over a new hash is retried with the {@link #DEFAULT_RETRY_POLICY},
+     * anything else is thrown.
+     */
+    @Override
+    @SneakyThrows
+    public void insertUsingNativeJDBC(final MyObjectPojo myObjectPojo) {
 
-        var em = emf.createEntityManager();
+        // a replayed record that changes nothing isn't written again
+        if (isKnownUnchanged(myObjectPojo, ConflictMode.DO_UPDATE_IF_CHANGED)) {
+            metrics.rows(Operation.INSERT_USING_NATIVE_JDBC, UpsertOutcome.UNCHANGED, 1);
+            return;
+        }
 
-        em.getTransaction().begin();
+        // a single statement in auto commit, so a failed one has nothing to roll back
+        var outcome = new ContentionRetry(DEFAULT_RETRY_POLICY, metrics, Operation.INSERT_USING_NATIVE_JDBC)
+                .run(ConflictMode.DO_UPDATE_IF_CHANGED, () -> upsertUsingNativeJDBC(myObjectPojo));
+        evictEntities();
+        afterWrite(myObjectPojo, outcome);
+    }
 
-        // map pojo to dao
-        var myObjectJpa = MyObjectJpa.builder()
-                .hash(myObjectPojo.getHash())
-                .column1(myObjectPojo.getColumn1())
-                .column2(myObjectPojo.getColumn2())
-                .created(Date.from(myObjectPojo.getCreated().atStartOfDay(UTC_TIME_ZONE).toInstant()))
-                .updated(Date.from(myObjectPojo.getUpdated().atZone(ZoneId.systemDefault()).toInstant()))
-                .build();
+    private UpsertOutcome upsertUsingNativeJDBC(final MyObjectPojo myObjectPojo) throws SQLException {
+        // the pool hands back a connection that already has this statement prepared after the first use
+        try (var conn = dataSource.getConnection();
+             var ps = conn.prepareStatement(
+                     upsertSql(conn).upsertRow(ConflictMode.DO_UPDATE_IF_CHANGED, myObjectPojo.getHash()))) {
+            var t = metrics.start();
+            MyObjectPojoBinder.bind(ps, 0, myObjectPojo);
+            t = metrics.phase(Operation.INSERT_USING_NATIVE_JDBC, Phase.MAPPING, t);
+
+            UpsertOutcome outcome;
+            try (var results = ps.executeQuery()) {
+                outcome = !results.next() ? UpsertOutcome.UNCHANGED
+                        : results.getBoolean(3) ? UpsertOutcome.INSERTED : UpsertOutcome.UPDATED;
+                metrics.phase(Operation.INSERT_USING_NATIVE_JDBC, Phase.EXECUTE, t);
+                metrics.rows(Operation.INSERT_USING_NATIVE_JDBC, outcome, 1);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("{}: {}", outcome, outcome == UpsertOutcome.UNCHANGED ? myObjectPojo.getHash()
+                            : results.getLong(1));
+                }
+            }
+            return outcome;
+        }
+    }
 
-        // Look for the current entry in the db
-        var query = em.createQuery("SELECT P FROM TEST_OBJECTS P"
-            + " WHERE P.hash = :hash", MyObjectJpa.class);
-        query.setParameter("hash", myObjectJpa.getHash());
+    @Override
+    @SneakyThrows
+    public UpsertBatchResult insertUsingCopy(final Iterator<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        var rows = hashFilter == null ? myObjectPojos : new Iterator<MyObjectPojo>() {
+            // remembered as they go past, a failed load only leaves false positives behind
+            @Override
+            public boolean hasNext() {
+                return myObjectPojos.hasNext();
+            }
 
-        MyObjectJpa objectInDb;
-        try {
-            objectInDb = query.getSingleResult();
-        } catch (final NoResultException nre) {
-            objectInDb = null;
+            @Override
+            public MyObjectPojo next() {
+                var myObjectPojo = myObjectPojos.next();
+                if (myObjectPojo.getHash() != null) {
+                    hashFilter.put(myObjectPojo.getHash());
+                }
+                return myObjectPojo;
+            }
+        };
+        try (var conn = dataSource.getConnection()) {
+            var t = metrics.start();
+            var result = bulkLoader.load(conn, rows, conflictMode);
+            metrics.phase(Operation.INSERT_USING_COPY, Phase.EXECUTE, t);
+            recordRows(Operation.INSERT_USING_COPY, result);
+            return result;
+        } finally {
+            evictEntities();
+            // the hashes are long gone by the time the load commits
+            if (hashCache != null) {
+                hashCache.invalidateAll();
+            }
+            if (digestCache != null) {
+                digestCache.invalidateAll();
+            }
         }
+    }
+
+    @Override
+    public UpsertBatchResult insertUsingCopy(final Stream<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        return insertUsingCopy(myObjectPojos.iterator(), conflictMode);
+    }
+
+    @Override
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode) {
+        return upsertAll(myObjectPojos, conflictMode, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Writes all the records in a single transaction using multi-row INSERT ... VALUES statements of up to
+     * batchSize rows each. Records sharing a hash are collapsed to one row first as postgres refuses to touch the
+     * same row twice in one ON CONFLICT DO UPDATE statement: the last one wins for DO_UPDATE and the first one
+     * for DO_NOTHING, which is what running them one at a time would have left in the db.
+     * The outcome of every row sent comes back from the RETURNING clause of the same statements.
+     * When TEST_OBJECTS is hash partitioned the rows are grouped by partition, so each statement only touches one
+     * partition and its indexes, the results are still listed in the order the records were given.
+     */
+    @Override
+    @SneakyThrows
+    public UpsertBatchResult upsertAll(final Collection<MyObjectPojo> myObjectPojos,
+                                       final ConflictMode conflictMode,
+                                       final int batchSize) {
 
-        // If we have a previous object then update it
-        if (objectInDb != null ) {
-            objectInDb.setColumn1(myObjectJpa.getColumn1());
-            objectInDb.setColumn2(myObjectJpa.getColumn2());
-            em.merge(objectInDb);
-        } else {
-            // no previous object so just persist it
-            em.persist(myObjectJpa);
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE
+                    + " but was " + batchSize);
         }
 
-        em.getTransaction().commit();
-        em.close();
+        var t = metrics.start();
+        var rows = coalesceByHash(myObjectPojos, conflictMode);
+        var rowResults = new UpsertRowResult[rows.size()];
+        var rowsToSend = skipKnownUnchanged(rows, conflictMode, rowResults);
+        var statementsExecuted = 0;
+        t = metrics.phase(Operation.UPSERT_ALL, Phase.MAPPING, t);
+
+        if (rowsToSend > 0) {
+            try (var conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                t = metrics.phase(Operation.UPSERT_ALL, Phase.BEGIN, t);
+                try {
+                    // the rows of each partition are written together so no statement spans two partitions,
+                    // every full chunk reuses the same statement and only the tails need ones of their own
+                    var upsertSql = upsertSql(conn);
+                    var order = new int[rowsToSend];
+                    var partitionStarts = groupByPartition(rows, upsertSql, rowResults, order);
+                    var statements = new HashMap<Long, PreparedStatement>();
+                    try {
+                        for (var partition = 0; partition < partitionStarts.length - 1; partition++) {
+                            var partitionEnd = partitionStarts[partition + 1];
+                            for (var offset = partitionStarts[partition]; offset < partitionEnd;
+                                 offset += batchSize) {
+                                var chunkSize = Math.min(batchSize, partitionEnd - offset);
+                                var key = ((long) partition << 32) | chunkSize;
+                                var ps = statements.get(key);
+                                if (ps == null) {
+                                    ps = conn.prepareStatement(upsertSql.multiRowUpsert(conflictMode, partition,
+                                            chunkSize));
+                                    statements.put(key, ps);
+                                }
+                                executeChunk(ps, conflictMode, rows, order, offset, chunkSize, rowResults);
+                                statementsExecuted++;
+                            }
+                        }
+                    } finally {
+                        for (var ps : statements.values()) {
+                            ps.close();
+                        }
+                    }
+                    t = metrics.phase(Operation.UPSERT_ALL, Phase.EXECUTE, t);
+                    conn.commit();
+                    metrics.phase(Operation.UPSERT_ALL, Phase.COMMIT, t);
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+            evictEntities();
+            afterWrite(rows, rowResults);
+        }
 
+        var result = batchResult(myObjectPojos.size(), statementsExecuted, rowResults);
+        recordRows(Operation.UPSERT_ALL, result);
+        return result;
     }
 
+    /**
+     * Writes the records as {@link #upsertAll} does, but each chunk in a transaction of its own with its rows
+     * sorted by hash. Two writers then always lock the rows they share in the same order, so they queue up behind
+     * each other instead of deadlocking, and a chunk that still loses a race is rolled back and retried on its own.
+     * The chunks committed before one that runs out of attempts stay in the db, the error of that chunk is thrown.
+     */
     @Override
-    public void insertUsingNativeJDBC(final MyObjectPojo myObjectPojo) {
+    @SneakyThrows
+    public UpsertBatchResult upsertAllWithRetry(final Collection<MyObjectPojo> myObjectPojos,
+                                                final ConflictMode conflictMode,
+                                                final int batchSize,
+                                                final RetryPolicy retryPolicy) {
+
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE
+                    + " but was " + batchSize);
+        }
+
+        var t = metrics.start();
+        var rows = coalesceByHash(myObjectPojos, conflictMode);
+        var rowResults = new UpsertRowResult[rows.size()];
+        var rowsToSend = skipKnownUnchanged(rows, conflictMode, rowResults);
+        var statementsExecuted = 0;
+        var retry = new ContentionRetry(retryPolicy, metrics, Operation.UPSERT_ALL_WITH_RETRY);
+        t = metrics.phase(Operation.UPSERT_ALL_WITH_RETRY, Phase.MAPPING, t);
+
+        if (rowsToSend > 0) {
+            try (var conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                var upsertSql = upsertSql(conn);
+                var order = new int[rowsToSend];
+                var partitionStarts = groupByPartition(rows, upsertSql, rowResults, order);
+                var statements = new HashMap<Long, PreparedStatement>();
+                try {
+                    for (var partition = 0; partition < partitionStarts.length - 1; partition++) {
+                        var partitionEnd = partitionStarts[partition + 1];
+                        sortByHash(rows, order, partitionStarts[partition], partitionEnd);
+                        for (var offset = partitionStarts[partition]; offset < partitionEnd; offset += batchSize) {
+                            var chunkOffset = offset;
+                            var chunkSize = Math.min(batchSize, partitionEnd - offset);
+                            var key = ((long) partition << 32) | chunkSize;
+                            var ps = statements.get(key);
+                            if (ps == null) {
+                                ps = conn.prepareStatement(upsertSql.multiRowUpsert(conflictMode, partition,
+                                        chunkSize));
+                                statements.put(key, ps);
+                            }
+                            var chunkStatement = ps;
+                            retry.run(conflictMode, () -> commitChunk(conn, chunkStatement, conflictMode, rows,
+                                    order, chunkOffset, chunkSize, rowResults));
+                            statementsExecuted++;
+                        }
+                    }
+                } finally {
+                    for (var ps : statements.values()) {
+                        ps.close();
+                    }
+                    t = metrics.phase(Operation.UPSERT_ALL_WITH_RETRY, Phase.EXECUTE, t);
+                    evictEntities();
+                    afterWrite(rows, rowResults);
+                }
+            }
+        }
 
-        try
-        {
-            // Step 1: "Load" the JDBC driver
-            Class.forName("com.opentable.db.postgres.embedded.EmbeddedPostgres");
-
-            // Step 2: Establish the connection to the database
-            var conn = DriverManager.getConnection(serverURL, this.user, "password");
-
-            var sqlQuery = "INSERT INTO public.TEST_OBJECTS"
-                            + "   ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED ) "
-                            + "   VALUES (?, ?, ?, ?, ?)"
-                            + " ON CONFLICT (HASH)"
-                            + " DO UPDATE"
-                            + " SET COLUMN_1 = excluded.COLUMN_1,"
-                            + "     COLUMN_2 = excluded.COLUMN_2,"
-                            + "     CREATED  = excluded.CREATED,"
-                            + "     UPDATED  = excluded.UPDATED;";
-            PreparedStatement ps = conn.prepareStatement(sqlQuery);
-            ps.setString(1, myObjectPojo.getHash());
-            ps.setString(2, myObjectPojo.getColumn1());
-            ps.setString(3, myObjectPojo.getColumn2());
-            ps.setDate(4, java.sql.Date.valueOf(myObjectPojo.getCreated()));
-            ps.setTime(5, java.sql.Time.valueOf(myObjectPojo.getUpdated().toLocalTime()));
-
-            var countInserted = ps.executeUpdate();
-
-            System.out.println("inserted: " + countInserted);
+        var result = batchResult(myObjectPojos.size(), statementsExecuted, rowResults);
+        recordRows(Operation.UPSERT_ALL_WITH_RETRY, result);
+        return result;
+    }
 
-            conn.close();
+    /**
+     * Runs one chunk as {@link #executeChunk} does and commits it. A chunk rolled back is left without results, so
+     * nothing after it takes the rows as written.
+     */
+    private static Void commitChunk(final Connection conn,
+                                    final PreparedStatement ps,
+                                    final ConflictMode conflictMode,
+                                    final List<MyObjectPojo> rows,
+                                    final int[] order,
+                                    final int offset,
+                                    final int size,
+                                    final UpsertRowResult[] rowResults) throws SQLException {
+        try {
+            executeChunk(ps, conflictMode, rows, order, offset, size, rowResults);
+            conn.commit();
+            return null;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            for (var i = 0; i < size; i++) {
+                rowResults[order[offset + i]] = null;
+            }
+            throw e;
         }
-        catch (Exception e)
-        {
-            System.err.println("D'oh! Got an exception!");
-            System.err.println(e.getMessage());
+    }
+
+    /**
+     * Sorts the row indexes between from and to by the hash of their rows, the rows without one go last.
+     */
+    private static void sortByHash(final List<MyObjectPojo> rows, final int[] order, final int from, final int to) {
+        var sorted = Arrays.stream(order, from, to)
+                .boxed()
+                .sorted(Comparator.comparing((Integer index) -> rows.get(index).getHash(),
+                        Comparator.nullsLast(Comparator.naturalOrder())))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        System.arraycopy(sorted, 0, order, from, sorted.length);
+    }
+
+    /**
+     * Writes the records as {@link #upsertAll} does but through COPY and a staging table, with the same result
+     * down to the order of the rows. Only the number of statements differs.
+     */
+    @SneakyThrows
+    UpsertBatchResult upsertAllUsingCopy(final Collection<MyObjectPojo> myObjectPojos,
+                                         final ConflictMode conflictMode) {
+
+        var rows = coalesceByHash(myObjectPojos, conflictMode);
+        var rowResults = new UpsertRowResult[rows.size()];
+        var rowsToSend = skipKnownUnchanged(rows, conflictMode, rowResults);
+        var statementsExecuted = 0;
+
+        if (rowsToSend > 0) {
+            var toSend = rowsToSend == rows.size() ? rows : new ArrayList<MyObjectPojo>(rowsToSend);
+            if (toSend != rows) {
+                for (var i = 0; i < rows.size(); i++) {
+                    if (rowResults[i] == null) {
+                        toSend.add(rows.get(i));
+                    }
+                }
+            }
+            var returned = new HashMap<String, UpsertRowResult>();
+            var returnedWithoutHash = new ArrayDeque<UpsertRowResult>();
+            try (var conn = dataSource.getConnection()) {
+                var t = metrics.start();
+                var loaded = bulkLoader.load(conn, toSend.iterator(), conflictMode, rowResult -> {
+                    if (rowResult.getHash() == null) {
+                        returnedWithoutHash.add(rowResult);
+                    } else {
+                        returned.put(rowResult.getHash(), rowResult);
+                    }
+                });
+                metrics.phase(Operation.INSERT_USING_COPY, Phase.EXECUTE, t);
+                statementsExecuted = loaded.getStatementsExecuted();
+            }
+            evictEntities();
+            for (var i = 0; i < rows.size(); i++) {
+                if (rowResults[i] == null) {
+                    rowResults[i] = matchReturned(rows.get(i).getHash(), conflictMode, returned, returnedWithoutHash);
+                }
+            }
+            afterWrite(rows, rowResults);
         }
+
+        var result = batchResult(myObjectPojos.size(), statementsExecuted, rowResults);
+        recordRows(Operation.INSERT_USING_COPY, result);
+        return result;
+    }
+
+    private static UpsertBatchResult batchResult(final int rowsSubmitted,
+                                                 final int statementsExecuted,
+                                                 final UpsertRowResult[] rowResults) {
+        var rowsInserted = 0L;
+        var rowsUpdated = 0L;
+        var rowsUnchanged = 0L;
+        for (var rowResult : rowResults) {
+            if (rowResult.getOutcome() == UpsertOutcome.INSERTED) {
+                rowsInserted++;
+            } else if (rowResult.getOutcome() == UpsertOutcome.UPDATED) {
+                rowsUpdated++;
+            } else if (rowResult.getOutcome() == UpsertOutcome.UNCHANGED) {
+                rowsUnchanged++;
+            }
+        }
+        return UpsertBatchResult.builder()
+                .rowsSubmitted(rowsSubmitted)
+                .rowsAffected(rowsInserted + rowsUpdated)
+                .rowsInserted(rowsInserted)
+                .rowsUpdated(rowsUpdated)
+                .rowsUnchanged(rowsUnchanged)
+                .statementsExecuted(statementsExecuted)
+                .rows(Arrays.asList(rowResults))
+                .build();
+    }
+
+    private void recordRows(final Operation operation, final UpsertBatchResult result) {
+        metrics.rows(operation, UpsertOutcome.INSERTED, result.getRowsInserted());
+        metrics.rows(operation, UpsertOutcome.UPDATED, result.getRowsUpdated());
+        metrics.rows(operation, UpsertOutcome.SKIPPED, result.getRowsSkipped());
+        metrics.rows(operation, UpsertOutcome.UNCHANGED, result.getRowsUnchanged());
     }
 
     @Override
@@ -252,43 +740,653 @@ public class MyObjectJpaDaoImpl implements MyObjectJpaDao {
     @SneakyThrows
     public List<MyObjectJpa> getAllUsingNativeJDBC() {
 
-        ResultSet results = null;
         var objects = new ArrayList<MyObjectJpa>();
+        var sqlQuery = selectAll;
 
-        try
-        {
-            // Step 1: "Load" the JDBC driver
-            Class.forName("com.opentable.db.postgres.embedded.EmbeddedPostgres");
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement();
+             var results = statement.executeQuery(sqlQuery)) {
+            while (results.next()) {
+                objects.add(convertResults(results));
+            }
+        }
 
-            // Step 2: Establish the connection to the database
-            var conn = DriverManager.getConnection(serverURL, this.user, "password");
+        return objects;
+    }
 
-            var sqlQuery = "SELECT * FROM public.TEST_OBJECTS;";
-            var statement = conn.createStatement();
-            results = statement.executeQuery(sqlQuery);
+    /**
+     * A JPQL constructor expression makes this a report query: the rows are mapped straight from the result set to
+     * pojos, EclipseLink builds no entities, so there is nothing to clone into the unit of work, to track for
+     * changes or to put in the shared cache.
+     */
+    @Override
+    public List<MyObjectPojo> getAllAsPojos() {
+        return readOnlyQuery("SELECT NEW jpainsertinto.model.MyObjectPojo("
+                + "O.id_pk, O.hash, O.column1, O.column2, O.created, O.updated) FROM TEST_OBJECTS O",
+                MyObjectPojo.class);
+    }
 
-            System.out.println("results: " + results);
+    /**
+     * As {@link #getAllAsPojos()}, only the two columns are selected.
+     */
+    @Override
+    public List<MyObjectKey> getAllKeys() {
+        return readOnlyQuery("SELECT NEW jpainsertinto.model.MyObjectKey(O.id_pk, O.hash) FROM TEST_OBJECTS O",
+                MyObjectKey.class);
+    }
 
-            while (results.next()) {
-                objects.add(convertResults(results));
+    private <T> List<T> readOnlyQuery(final String jpql, final Class<T> resultClass) {
+        var em = emf.createEntityManager();
+        try {
+            // nothing is written so no transaction is begun, the hints keep EclipseLink from looking in or
+            // adding to its caches for whatever the query returns
+            return em.createQuery(jpql, resultClass)
+                    .setHint(QueryHints.READ_ONLY, HintValues.TRUE)
+                    .setHint(QueryHints.CACHE_USAGE, CacheUsage.DoNotCheckCache)
+                    .setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE)
+                    .setHint(QueryHints.JDBC_FETCH_SIZE, DEFAULT_FETCH_SIZE)
+                    .getResultList();
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public MyObjectPage getPage(final BigInteger afterId, final int limit) {
+        return getRange(afterId, null, limit);
+    }
+
+    @Override
+    @SneakyThrows
+    public MyObjectPage getRange(final BigInteger afterId, final BigInteger toId, final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1 but was " + limit);
+        }
+        try (var conn = dataSource.getConnection();
+             var ps = conn.prepareStatement(toId == null ? selectPage : selectRange)) {
+            var parameter = 1;
+            ps.setLong(parameter++, afterId == null ? Long.MIN_VALUE : afterId.longValueExact());
+            if (toId != null) {
+                ps.setLong(parameter++, toId.longValueExact());
+            }
+            ps.setInt(parameter, limit + 1);
+            var rows = new ArrayList<MyObjectPojo>(Math.min(limit, DEFAULT_FETCH_SIZE));
+            var last = true;
+            try (var results = ps.executeQuery()) {
+                while (results.next()) {
+                    if (rows.size() == limit) {
+                        last = false;
+                        break;
+                    }
+                    rows.add(convertToPojo(results));
+                }
             }
+            return MyObjectPage.builder()
+                    .rows(rows)
+                    .nextAfterId(rows.isEmpty() ? afterId : BigInteger.valueOf(rows.get(rows.size() - 1).getId()))
+                    .last(last)
+                    .build();
+        }
+    }
+
+    @Override
+    public Iterator<MyObjectPage> pages(final BigInteger afterId,
+                                        final int limit,
+                                        final Executor prefetchExecutor) {
+        return new PageIterator(nextAfterId -> getPage(nextAfterId, limit), afterId, prefetchExecutor);
+    }
+
+    /**
+     * Reads the row with the given hash, through the hash cache if there is one.
+     */
+    @Override
+    public Optional<MyObjectPojo> findByHash(final String hash) {
+        if (hash == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(hashCache == null ? selectByHash(hash) : hashCache.get(hash, this::selectByHash));
+    }
+
+    public Optional<HashKeyedCache> getHashCache() {
+        return Optional.ofNullable(hashCache);
+    }
 
+    public Optional<ContentDigestCache> getDigestCache() {
+        return Optional.ofNullable(digestCache);
+    }
+
+    @SneakyThrows
+    private MyObjectPojo selectByHash(final String hash) {
+        try (var conn = dataSource.getConnection();
+             var ps = conn.prepareStatement(selectAll + " WHERE HASH = ?")) {
+            ps.setString(1, hash);
+            try (var results = ps.executeQuery()) {
+                return results.next() ? convertToPojo(results) : null;
+            }
+        }
+    }
+
+    /**
+     * Loads every hash in TEST_OBJECTS into the hash filter, needs calling once before the dao takes any writes.
+     *
+     * @return the number of hashes loaded
+     */
+    @SneakyThrows
+    public long warmUpHashFilter() {
+        if (hashFilter == null) {
+            return 0;
+        }
+        var loaded = new long[1];
+        try (var hashes = streamRows(UpsertSql.inSchema(SELECT_HASHES, schemaName), DEFAULT_FETCH_SIZE,
+                resultSet -> resultSet.getString(1))) {
+            hashes.forEach(hash -> {
+                hashFilter.put(hash);
+                loaded[0]++;
+            });
+        }
+        log.info("warmed up the hash filter with {} hashes, {} bytes, expected false positive rate {}",
+                loaded[0], hashFilter.getMemoryFootprintBytes(), hashFilter.getExpectedFalsePositiveRate());
+        return loaded[0];
+    }
+
+    public Optional<HashBloomFilter> getHashFilter() {
+        return Optional.ofNullable(hashFilter);
+    }
+
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * The partitions of TEST_OBJECTS, read from the catalog on first use.
+     */
+    public HashPartitioning getPartitioning() {
+        return upsertSql().getPartitioning();
+    }
+
+    @SneakyThrows
+    private UpsertSql upsertSql() {
+        var upsertSql = this.upsertSql;
+        if (upsertSql != null) {
+            return upsertSql;
+        }
+        try (var conn = dataSource.getConnection()) {
+            return upsertSql(conn);
+        }
+    }
+
+    /**
+     * For callers already holding a pooled connection, borrowing a second one to look the partitions up could wait
+     * forever once every connection is held by a caller doing the same.
+     */
+    @SneakyThrows
+    private UpsertSql upsertSql(final Connection conn) {
+        var upsertSql = this.upsertSql;
+        if (upsertSql == null) {
+            var partitioning = HashPartitioning.discover(conn, schemaName, TEST_OBJECTS_TABLE);
+            log.info("TEST_OBJECTS partitions: {}", partitioning);
+            upsertSql = new UpsertSql(schemaName, partitioning);
+            this.upsertSql = upsertSql;
+        }
+        return upsertSql;
+    }
+
+    /**
+     * Reads the rows of one partition only, see {@link #getPartitioning()} for the partitions.
+     * Each partition can be read on a thread of its own, every call holds a pooled connection while it runs.
+     */
+    @SneakyThrows
+    public void forEachInPartition(final int partition,
+                                   final int fetchSize,
+                                   final Consumer<MyObjectPojo> consumer) {
+        var sqlQuery = SELECT_ALL_COLUMNS + " FROM " + schemaName + ".\""
+                + getPartitioning().getPartitionName(partition) + "\"";
+        try (var rows = streamRows(sqlQuery, fetchSize, MyObjectJpaDaoImpl::convertToPojo)) {
+            rows.forEach(consumer);
+        }
+    }
+
+    /**
+     * Vacuums and analyzes every partition, each as its own task on the executor, so no single run has to get
+     * through the whole table.
+     *
+     * @return completes once every partition is done, or with the first failure
+     */
+    public CompletableFuture<Void> vacuumAnalyzePartitions(final Executor executor) {
+        var partitionNames = getPartitioning().getPartitionNames();
+        var vacuums = new CompletableFuture<?>[partitionNames.size()];
+        for (var partition = 0; partition < vacuums.length; partition++) {
+            var partitionName = partitionNames.get(partition);
+            vacuums[partition] = CompletableFuture.runAsync(() -> vacuumAnalyze(partitionName), executor);
+        }
+        return CompletableFuture.allOf(vacuums);
+    }
+
+    @SneakyThrows
+    private void vacuumAnalyze(final String tableName) {
+        // VACUUM refuses to run inside a transaction block, the pool hands out connections in autocommit
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement()) {
+            var start = System.nanoTime();
+            statement.execute("VACUUM (ANALYZE) " + schemaName + ".\"" + tableName + "\"");
+            log.debug("vacuumed {} in {} ms", tableName, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Streams every row through a server side cursor, only fetchSize rows are held in memory at a time.
+     * The entities are built straight from the result set and never join a persistence context, so nothing
+     * builds up while the stream is consumed. The stream holds a pooled connection until it is closed.
+     */
+    @Override
+    @SneakyThrows
+    public Stream<MyObjectJpa> streamAll(final int fetchSize) {
+        return streamRows(selectAll, fetchSize, this::convertResults);
+    }
+
+    @Override
+    public void forEach(final Consumer<MyObjectPojo> consumer) {
+        forEach(DEFAULT_FETCH_SIZE, consumer);
+    }
+
+    @Override
+    @SneakyThrows
+    public void forEach(final int fetchSize, final Consumer<MyObjectPojo> consumer) {
+        try (var rows = streamRows(selectAll, fetchSize, MyObjectJpaDaoImpl::convertToPojo)) {
+            rows.forEach(consumer);
+        }
+    }
+
+    @Override
+    public long streamChangedSince(final long watermark, final Consumer<MyObjectPojo> consumer) {
+        return streamChangedSince(watermark, DEFAULT_FETCH_SIZE, consumer);
+    }
+
+    /**
+     * Streams, a fetchSize at a time, the rows last changed by transactions from the watermark up to the oldest
+     * one still running, which becomes the next watermark. A row changed again later turns up again.
+     */
+    @Override
+    @SneakyThrows
+    public long streamChangedSince(final long watermark,
+                                   final int fetchSize,
+                                   final Consumer<MyObjectPojo> consumer) {
+        long horizon;
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement();
+             var results = statement.executeQuery(SELECT_CHANGE_HORIZON)) {
+            results.next();
+            horizon = results.getLong(1);
+        }
+        if (horizon <= watermark) {
+            return watermark;
+        }
+        try (var rows = streamRows(selectChanged, fetchSize, ps -> {
+            ps.setLong(1, watermark);
+            ps.setLong(2, horizon);
+        }, MyObjectJpaDaoImpl::convertToPojo)) {
+            rows.forEach(consumer);
+        }
+        return horizon;
+    }
+
+    /**
+     * Deletes in chunks of IDs, see {@link RetentionPurge}. The hashes deleted are dropped from the hash and
+     * digest caches as each chunk commits. Deletes aren't changes to {@link #streamChangedSince}, a purged row
+     * just stops turning up.
+     */
+    @Override
+    @SneakyThrows
+    public PurgeResult purgeOlderThan(final LocalDate cutoff, final BigInteger afterId, final PurgeConfig config) {
+        try {
+            return new RetentionPurge(dataSource, schemaName, metrics).purge(cutoff, afterId, config,
+                    this::afterDelete);
+        } finally {
+            evictEntities();
+        }
+    }
+
+    /**
+     * Straight from COPY into the mapped file, see {@link SnapshotCopy}.
+     */
+    @Override
+    @SneakyThrows
+    public long exportSnapshot(final Path file, final int fieldBytes) {
+        try (var conn = dataSource.getConnection()) {
+            var t = metrics.start();
+            var rowCount = SnapshotCopy.export(conn, schemaName, file, fieldBytes);
+            metrics.phase(Operation.EXPORT_SNAPSHOT, Phase.EXECUTE, t);
+            return rowCount;
+        }
+    }
+
+    /**
+     * COPY from the mapped file, the sequence is moved on past the IDs restored. Once it has committed the hashes
+     * go into the hash filter, with a second pass over the file so the load itself decodes none of them.
+     */
+    @Override
+    @SneakyThrows
+    public long restoreSnapshot(final Path file) {
+        try (var snapshot = MyObjectSnapshot.open(file)) {
+            try (var conn = dataSource.getConnection()) {
+                var t = metrics.start();
+                SnapshotCopy.restore(conn, schemaName, snapshot);
+                metrics.phase(Operation.RESTORE_SNAPSHOT, Phase.EXECUTE, t);
+                metrics.rows(Operation.RESTORE_SNAPSHOT, UpsertOutcome.INSERTED, snapshot.getRowCount());
+            } finally {
+                evictEntities();
+                if (hashCache != null) {
+                    hashCache.invalidateAll();
+                }
+                if (digestCache != null) {
+                    digestCache.invalidateAll();
+                }
+            }
+            if (hashFilter != null) {
+                snapshot.forEach(record -> {
+                    if (record.getLength(MyObjectSnapshot.HASH) >= 0) {
+                        hashFilter.put(record.getString(MyObjectSnapshot.HASH));
+                    }
+                });
+            }
+            return snapshot.getRowCount();
+        }
+    }
+
+    private <T> Stream<T> streamRows(final String sqlQuery,
+                                     final int fetchSize,
+                                     final RowMapper<T> rowMapper) throws SQLException {
+        return streamRows(sqlQuery, fetchSize, ps -> { }, rowMapper);
+    }
+
+    private <T> Stream<T> streamRows(final String sqlQuery,
+                                     final int fetchSize,
+                                     final ParameterBinder parameterBinder,
+                                     final RowMapper<T> rowMapper) throws SQLException {
+        var conn = dataSource.getConnection();
+        try {
+            // pgjdbc only fetches in chunks through a cursor when it's inside a transaction
+            conn.setAutoCommit(false);
+            var statement = conn.prepareStatement(sqlQuery);
+            statement.setFetchSize(fetchSize);
+            parameterBinder.bind(statement);
+            var results = statement.executeQuery();
+
+            return StreamSupport.stream(new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                    Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                @SneakyThrows
+                public boolean tryAdvance(final Consumer<? super T> action) {
+                    if (!results.next()) {
+                        return false;
+                    }
+                    action.accept(rowMapper.map(results));
+                    return true;
+                }
+            }, false).onClose(() -> closeCursor(conn));
+
+        } catch (SQLException | RuntimeException e) {
+            closeCursor(conn);
+            throw e;
+        }
+    }
+
+    @SneakyThrows
+    private static void closeCursor(final Connection conn) {
+        // nothing was written so just end the transaction, closing the connection closes the cursor with it
+        try {
+            conn.rollback();
+        } finally {
             conn.close();
+        }
+    }
 
+    private static MyObjectPojo convertToPojo(final ResultSet resultSet) throws SQLException {
+        var created = resultSet.getObject(5, LocalDate.class);
+        var updated = resultSet.getObject(6, LocalTime.class);
+        return MyObjectPojo.builder()
+                .id(resultSet.getLong(1))
+                .hash(resultSet.getString(2))
+                .column1(resultSet.getString(3))
+                .column2(resultSet.getString(4))
+                .created(created)
+                // UPDATED is only a TIME column so, like convertResults, the date part is the epoch
+                .updated(updated == null ? null : updated.atDate(LocalDate.EPOCH))
+                .build();
+    }
+
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        T map(ResultSet resultSet) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface ParameterBinder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * The native writes go round EclipseLink, so the entities in its shared cache can be out of date after one.
+     * EclipseLink only invalidates them itself after a native executeUpdate.
+     */
+    private void evictEntities() {
+        emf.getCache().evict(MyObjectJpa.class);
+    }
+
+    /**
+     * Only drops the hash from the caches, putting it in the hash filter would just make it claim a row that's gone.
+     */
+    private void afterDelete(final String hash) {
+        if (hash == null) {
+            return;
         }
-        catch (Exception e)
-        {
-            System.err.println("D'oh! Got an exception!");
-            System.err.println(e.getMessage());
+        if (hashCache != null) {
+            hashCache.invalidate(hash);
         }
+        if (digestCache != null) {
+            digestCache.invalidate(hash);
+        }
+    }
 
-        return objects;
+    private void afterWrite(final String hash) {
+        if (hash == null) {
+            return;
+        }
+        if (hashFilter != null) {
+            hashFilter.put(hash);
+        }
+        if (hashCache != null) {
+            hashCache.invalidate(hash);
+        }
+        if (digestCache != null) {
+            digestCache.invalidate(hash);
+        }
+    }
+
+    /**
+     * After a native upsert, which knows what the db holds for the hash unless the record was skipped.
+     */
+    private void afterWrite(final MyObjectPojo myObjectPojo, final UpsertOutcome outcome) {
+        afterWrite(myObjectPojo.getHash());
+        if (digestCache != null && outcome != UpsertOutcome.SKIPPED) {
+            digestCache.put(myObjectPojo);
+        }
+    }
+
+    private void afterWrite(final List<MyObjectPojo> rows, final UpsertRowResult[] rowResults) {
+        for (var i = 0; i < rows.size(); i++) {
+            // a row without a result wasn't written
+            if (rowResults[i] != null) {
+                afterWrite(rows.get(i), rowResults[i].getOutcome());
+            }
+        }
+    }
+
+    private boolean isKnownUnchanged(final MyObjectPojo myObjectPojo, final ConflictMode conflictMode) {
+        return digestCache != null
+                && conflictMode == ConflictMode.DO_UPDATE_IF_CHANGED
+                && digestCache.isUnchanged(myObjectPojo);
+    }
+
+    /**
+     * Fills in the result for the rows the digest cache knows are unchanged, so they aren't sent.
+     *
+     * @return the number of rows left to send
+     */
+    private int skipKnownUnchanged(final List<MyObjectPojo> rows,
+                                   final ConflictMode conflictMode,
+                                   final UpsertRowResult[] rowResults) {
+        var rowsToSend = rows.size();
+        if (digestCache == null || conflictMode != ConflictMode.DO_UPDATE_IF_CHANGED) {
+            return rowsToSend;
+        }
+        for (var i = 0; i < rows.size(); i++) {
+            if (digestCache.isUnchanged(rows.get(i))) {
+                rowResults[i] = UpsertRowResult.unchanged(rows.get(i).getHash());
+                rowsToSend--;
+            }
+        }
+        return rowsToSend;
+    }
+
+    /**
+     * Collapses the records sharing a hash to the one that would be left in the db had they been written one at a
+     * time, listed where the hash first appeared and followed by the records without a hash. FAIL keeps them all
+     * so that the duplicates fail.
+     */
+    static List<MyObjectPojo> coalesceByHash(final Collection<MyObjectPojo> myObjectPojos,
+                                             final ConflictMode conflictMode) {
+        if (conflictMode == ConflictMode.FAIL) {
+            return new ArrayList<>(myObjectPojos);
+        }
+        var byHash = new LinkedHashMap<String, MyObjectPojo>();
+        // null hashes never conflict so they all go in as they are
+        var withoutHash = new ArrayList<MyObjectPojo>();
+        for (var myObjectPojo : myObjectPojos) {
+            if (myObjectPojo.getHash() == null) {
+                withoutHash.add(myObjectPojo);
+            } else if (conflictMode.isUpdate()) {
+                byHash.put(myObjectPojo.getHash(), myObjectPojo);
+            } else {
+                byHash.putIfAbsent(myObjectPojo.getHash(), myObjectPojo);
+            }
+        }
+        var rows = new ArrayList<MyObjectPojo>(byHash.size() + withoutHash.size());
+        rows.addAll(byHash.values());
+        rows.addAll(withoutHash);
+        return rows;
+    }
+
+    /**
+     * Lays out in order the indexes of the rows still without a result sorted by partition, keeping the original
+     * order within a partition.
+     *
+     * @return where the rows of each partition start in order, with the end of the last one added
+     */
+    private static int[] groupByPartition(final List<MyObjectPojo> rows,
+                                          final UpsertSql upsertSql,
+                                          final UpsertRowResult[] rowResults,
+                                          final int[] order) {
+        var partitionCount = upsertSql.getPartitioning().getPartitionCount();
+        if (partitionCount == 1) {
+            for (int i = 0, next = 0; i < rows.size(); i++) {
+                if (rowResults[i] == null) {
+                    order[next++] = i;
+                }
+            }
+            return new int[] {0, order.length};
+        }
+        // a counting sort
+        var partitions = new int[rows.size()];
+        var starts = new int[partitionCount + 1];
+        for (var i = 0; i < rows.size(); i++) {
+            if (rowResults[i] == null) {
+                partitions[i] = upsertSql.partitionOf(rows.get(i).getHash());
+                starts[partitions[i] + 1]++;
+            }
+        }
+        for (var partition = 0; partition < partitionCount; partition++) {
+            starts[partition + 1] += starts[partition];
+        }
+        var next = Arrays.copyOf(starts, partitionCount);
+        for (var i = 0; i < rows.size(); i++) {
+            if (rowResults[i] == null) {
+                order[next[partitions[i]]++] = i;
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * Runs one chunk of the rows laid out in order and puts the result for each row at its index in rowResults.
+     * Skipped and unchanged rows return nothing so the returned rows are matched back up by hash, which coalescing
+     * has made unique, and rows without a hash are never skipped so they come back in the order they went in.
+     */
+    private static void executeChunk(final PreparedStatement ps,
+                                     final ConflictMode conflictMode,
+                                     final List<MyObjectPojo> rows,
+                                     final int[] order,
+                                     final int offset,
+                                     final int size,
+                                     final UpsertRowResult[] rowResults) throws SQLException {
+        for (var i = 0; i < size; i++) {
+            MyObjectPojoBinder.bind(ps, i * MyObjectPojoBinder.PARAMETERS_PER_ROW, rows.get(order[offset + i]));
+        }
+        var returned = new HashMap<String, UpsertRowResult>();
+        var returnedWithoutHash = new ArrayDeque<UpsertRowResult>();
+        try (var results = ps.executeQuery()) {
+            while (results.next()) {
+                var rowResult = UpsertRowResult.returned(results.getString(2), results.getLong(1),
+                        results.getBoolean(3));
+                if (rowResult.getHash() == null) {
+                    returnedWithoutHash.add(rowResult);
+                } else {
+                    returned.put(rowResult.getHash(), rowResult);
+                }
+            }
+        }
+        for (var i = 0; i < size; i++) {
+            var index = order[offset + i];
+            rowResults[index] = matchReturned(rows.get(index).getHash(), conflictMode, returned, returnedWithoutHash);
+        }
+    }
+
+    private static UpsertRowResult matchReturned(final String hash,
+                                                 final ConflictMode conflictMode,
+                                                 final Map<String, UpsertRowResult> returned,
+                                                 final Queue<UpsertRowResult> returnedWithoutHash) {
+        var rowResult = hash == null ? returnedWithoutHash.poll() : returned.get(hash);
+        return rowResult == null ? UpsertRowResult.notReturned(hash, conflictMode) : rowResult;
+    }
+
+    /**
+     * @param returned what the RETURNING clause of a single row upsert gave back through EclipseLink
+     */
+    private static UpsertRowResult toRowResult(final String hash,
+                                               final ConflictMode conflictMode,
+                                               final List<?> returned) {
+        if (returned.isEmpty()) {
+            return UpsertRowResult.notReturned(hash, conflictMode);
+        }
+        var row = (Object[]) returned.get(0);
+        return UpsertRowResult.returned(hash, ((Number) row[0]).longValue(), (Boolean) row[2]);
+    }
+
+    /**
+     * Closes the connection pool if this dao built it itself, a pool that was passed in is left to its owner.
+     */
+    @Override
+    @SneakyThrows
+    public void close() {
+        if (ownsDataSource && dataSource instanceof AutoCloseable) {
+            ((AutoCloseable) dataSource).close();
+        }
     }
 
     @SneakyThrows
     private MyObjectJpa convertResults(final ResultSet resultSet) {
         var newObject = new MyObjectJpa();
-//        newObject.setId_pk(new BigInteger(resultSet.getLong(1)));
+        newObject.setId_pk(BigInteger.valueOf(resultSet.getLong(1)));
         newObject.setHash(resultSet.getString(2));
         newObject.setColumn1(resultSet.getString(3));
         newObject.setColumn2(resultSet.getString(4));
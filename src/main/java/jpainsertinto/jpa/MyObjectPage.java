@@ -0,0 +1,31 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.model.MyObjectPojo;
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * One page of TEST_OBJECTS in ID order, read by {@link MyObjectJpaDao#getPage} or {@link MyObjectJpaDao#getRange}.
+ */
+@Builder
+@Value
+@ToString
+public class MyObjectPage {
+
+    @ToString.Exclude
+    List<MyObjectPojo> rows;
+
+    /** The afterId to ask for the page that follows, the last ID on this page or the afterId asked for if empty */
+    BigInteger nextAfterId;
+
+    /** Whether this is the last page, known without another round trip as one row more than the limit is read */
+    boolean last;
+
+    public int size() {
+        return rows.size();
+    }
+}
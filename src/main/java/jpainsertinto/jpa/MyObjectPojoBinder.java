@@ -0,0 +1,48 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.model.MyObjectPojo;
+
+import javax.persistence.Query;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Binds a {@link MyObjectPojo} straight onto the ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED ) parameters of
+ * a native insert. The java.time values are handed to the driver as they are, so unlike going through
+ * {@link MyObjectJpa} there is no entity, builder or {@link java.util.Date} made per row, and no time zone
+ * conversion either.
+ */
+final class MyObjectPojoBinder {
+
+    static final int PARAMETERS_PER_ROW = 5;
+
+    private MyObjectPojoBinder() {
+    }
+
+    /**
+     * @param parameterOffset the number of parameters before this row's, 0 for the first row
+     */
+    static void bind(final PreparedStatement ps,
+                     final int parameterOffset,
+                     final MyObjectPojo myObjectPojo) throws SQLException {
+        ps.setString(parameterOffset + 1, myObjectPojo.getHash());
+        ps.setString(parameterOffset + 2, myObjectPojo.getColumn1());
+        ps.setString(parameterOffset + 3, myObjectPojo.getColumn2());
+        ps.setObject(parameterOffset + 4, myObjectPojo.getCreated());
+        // LocalDateTime hands back the LocalTime it is made of, nothing new
+        ps.setObject(parameterOffset + 5, myObjectPojo.getUpdated() == null
+                ? null
+                : myObjectPojo.getUpdated().toLocalTime());
+    }
+
+    static Query bind(final Query query, final MyObjectPojo myObjectPojo) {
+        return query
+                .setParameter(1, myObjectPojo.getHash())
+                .setParameter(2, myObjectPojo.getColumn1())
+                .setParameter(3, myObjectPojo.getColumn2())
+                .setParameter(4, myObjectPojo.getCreated())
+                .setParameter(5, myObjectPojo.getUpdated() == null
+                        ? null
+                        : myObjectPojo.getUpdated().toLocalTime());
+    }
+}
@@ -0,0 +1,368 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.model.MyObjectPojo;
+import lombok.SneakyThrows;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * A snapshot of TEST_OBJECTS in a file of fixed size records, written by {@link MyObjectJpaDao#exportSnapshot} and
+ * loaded back by {@link MyObjectJpaDao#restoreSnapshot}.
+ * <p>
+ * HASH, COLUMN_1 and COLUMN_2 are all VARCHAR(15), so each gets a slot of fieldBytes bytes of UTF-8 and every
+ * record is the same size. The file is read and written through memory mapped windows, a record is never copied
+ * out of the mapping and {@link #forEach} hands over the same {@link Record} view moved along the file.
+ * <pre>
+ * header  64 bytes: magic, version, fieldBytes, recordSize, rowCount
+ * record  ID long, UPDATED nanos of the day long (-1 for null), CREATED epoch day int (MIN_VALUE for null),
+ *         the byte lengths of HASH, COLUMN_1, COLUMN_2 (0xFF for null), then the three slots of fieldBytes,
+ *         padded to a multiple of 8 bytes
+ * </pre>
+ * All numbers are little endian.
+ */
+public final class MyObjectSnapshot implements AutoCloseable {
+
+    /** Enough for any 15 characters in UTF-8 */
+    public final static int UTF8_FIELD_BYTES = 15 * 4;
+    /** Enough for 15 ASCII characters, a value that doesn't fit fails the export */
+    public final static int ASCII_FIELD_BYTES = 15;
+
+    public final static int HASH = 0;
+    public final static int COLUMN_1 = 1;
+    public final static int COLUMN_2 = 2;
+
+    final static int HEADER_SIZE = 64;
+    private final static long MAGIC = 0x54_4F_53_4E_41_50_30_31L; // "TOSNAP01"
+    private final static int VERSION = 1;
+    private final static int WINDOW_BYTES = 64 << 20;
+
+    private final static int ID_OFFSET = 0;
+    private final static int UPDATED_OFFSET = 8;
+    private final static int CREATED_OFFSET = 16;
+    private final static int LENGTHS_OFFSET = 20;
+    private final static int SLOTS_OFFSET = 23;
+    private final static int NULL_LENGTH = 0xFF;
+    private final static long NULL_TIME = -1;
+    private final static int NULL_DATE = Integer.MIN_VALUE;
+    private final static MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private final FileChannel channel;
+    private final int fieldBytes;
+    private final int recordSize;
+    private final long rowCount;
+
+    private MyObjectSnapshot(final FileChannel channel,
+                             final int fieldBytes,
+                             final int recordSize,
+                             final long rowCount) {
+        this.channel = channel;
+        this.fieldBytes = fieldBytes;
+        this.recordSize = recordSize;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Opens a snapshot file for reading, close it when done.
+     */
+    public static MyObjectSnapshot open(final Path file) throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // until the header is in or the file ends
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a TEST_OBJECTS snapshot");
+            }
+            var fieldBytes = header.getInt();
+            var recordSize = header.getInt();
+            var rowCount = header.getLong();
+            if (recordSize != recordSize(fieldBytes) || channel.size() != HEADER_SIZE + rowCount * recordSize) {
+                throw new IOException(file + " is truncated or not a complete snapshot");
+            }
+            return new MyObjectSnapshot(channel, fieldBytes, recordSize, rowCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getFieldBytes() {
+        return fieldBytes;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * Hands every record to the consumer in the order they were exported. The record is a view of the mapped file
+     * that moves on to the next one as soon as the consumer returns, so copy out whatever is needed later.
+     */
+    public <E extends Exception> void forEach(final RecordConsumer<E> consumer) throws IOException, E {
+        var recordsPerWindow = recordsPerWindow(recordSize);
+        var record = new Record(fieldBytes);
+        for (var first = 0L; first < rowCount; first += recordsPerWindow) {
+            var records = (int) Math.min(recordsPerWindow, rowCount - first);
+            var window = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * recordSize,
+                    (long) records * recordSize);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            record.buffer = window;
+            for (var i = 0; i < records; i++) {
+                record.base = i * recordSize;
+                consumer.accept(record);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static int recordSize(final int fieldBytes) {
+        return (SLOTS_OFFSET + 3 * fieldBytes + 7) & ~7;
+    }
+
+    private static int recordsPerWindow(final int recordSize) {
+        return Math.max(1, WINDOW_BYTES / recordSize);
+    }
+
+    /**
+     * Unsafe.invokeCleaner, the one way to unmap a buffer before it's collected until the JDK gets an API for it.
+     */
+    @SneakyThrows
+    private static MethodHandle invokeCleaner() {
+        var unsafeClass = Class.forName("sun.misc.Unsafe");
+        var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        return MethodHandles.lookup()
+                .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(theUnsafe.get(null));
+    }
+
+    @FunctionalInterface
+    public interface RecordConsumer<E extends Exception> {
+        void accept(Record record) throws E;
+    }
+
+    /**
+     * One record of the snapshot, read straight from the mapped file.
+     */
+    public static final class Record {
+
+        private final int fieldBytes;
+        private ByteBuffer buffer;
+        private int base;
+
+        private Record(final int fieldBytes) {
+            this.fieldBytes = fieldBytes;
+        }
+
+        public long getId() {
+            return buffer.getLong(base + ID_OFFSET);
+        }
+
+        /** Nanos of the day, -1 for null */
+        public long getUpdatedNanoOfDay() {
+            return buffer.getLong(base + UPDATED_OFFSET);
+        }
+
+        /** Days since 1970-01-01, Integer.MIN_VALUE for null */
+        public int getCreatedEpochDay() {
+            return buffer.getInt(base + CREATED_OFFSET);
+        }
+
+        /**
+         * @param field {@link #HASH}, {@link #COLUMN_1} or {@link #COLUMN_2}
+         * @return the length in bytes of the field's UTF-8, -1 for null
+         */
+        public int getLength(final int field) {
+            var length = buffer.get(base + LENGTHS_OFFSET + field) & 0xFF;
+            return length == NULL_LENGTH ? -1 : length;
+        }
+
+        /**
+         * Where the field's UTF-8 starts in {@link #getBuffer()}.
+         */
+        public int getOffset(final int field) {
+            return base + SLOTS_OFFSET + field * fieldBytes;
+        }
+
+        /**
+         * The mapped window the record is in, only valid until the consumer returns.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Decodes the field to a String, which is the one part of reading a record that allocates.
+         */
+        public String getString(final int field) {
+            var length = getLength(field);
+            if (length < 0) {
+                return null;
+            }
+            var offset = getOffset(field);
+            var bytes = new byte[length];
+            for (var i = 0; i < length; i++) {
+                bytes[i] = buffer.get(offset + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public MyObjectPojo toPojo() {
+            var created = getCreatedEpochDay();
+            var updated = getUpdatedNanoOfDay();
+            return MyObjectPojo.builder()
+                    .id(getId())
+                    .hash(getString(HASH))
+                    .column1(getString(COLUMN_1))
+                    .column2(getString(COLUMN_2))
+                    .created(created == NULL_DATE ? null : LocalDate.ofEpochDay(created))
+                    // a TIME column, so on the epoch as everywhere else
+                    .updated(updated == NULL_TIME ? null : LocalTime.ofNanoOfDay(updated).atDate(LocalDate.EPOCH))
+                    .build();
+        }
+    }
+
+    /**
+     * Appends records to a new snapshot file a mapped window at a time. The header is only written by
+     * {@link #finish()}, a file left without it won't open.
+     */
+    static final class Writer implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final int fieldBytes;
+        private final int recordSize;
+        private final int recordsPerWindow;
+        private MappedByteBuffer window;
+        private int base;
+        private long rowCount;
+
+        Writer(final Path file, final int fieldBytes) throws IOException {
+            if (fieldBytes < 1 || fieldBytes >= NULL_LENGTH) {
+                throw new IllegalArgumentException("fieldBytes must be between 1 and " + (NULL_LENGTH - 1)
+                        + " but was " + fieldBytes);
+            }
+            this.fieldBytes = fieldBytes;
+            this.recordSize = recordSize(fieldBytes);
+            this.recordsPerWindow = recordsPerWindow(recordSize);
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Starts the next record, its fields are then set with the put methods.
+         */
+        void startRecord(final long id) throws IOException {
+            var inWindow = (int) (rowCount % recordsPerWindow);
+            if (inWindow == 0) {
+                unmapWindow();
+                window = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + rowCount * recordSize,
+                        (long) recordsPerWindow * recordSize);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            base = inWindow * recordSize;
+            window.putLong(base + ID_OFFSET, id);
+            window.putLong(base + UPDATED_OFFSET, NULL_TIME);
+            window.putInt(base + CREATED_OFFSET, NULL_DATE);
+            for (var field = HASH; field <= COLUMN_2; field++) {
+                window.put(base + LENGTHS_OFFSET + field, (byte) NULL_LENGTH);
+            }
+            rowCount++;
+        }
+
+        void putUpdated(final long nanoOfDay) {
+            window.putLong(base + UPDATED_OFFSET, nanoOfDay);
+        }
+
+        void putCreated(final long epochDay) {
+            window.putInt(base + CREATED_OFFSET, Math.toIntExact(epochDay));
+        }
+
+        /**
+         * Sets the field's length, its bytes are then written from {@link #slotOffset} on.
+         *
+         * @throws IllegalStateException if it doesn't fit the slot
+         */
+        void putLength(final int field, final int length) {
+            if (length > fieldBytes) {
+                throw new IllegalStateException("a value of " + length + " bytes doesn't fit the " + fieldBytes
+                        + " byte slots of this snapshot, export with UTF8_FIELD_BYTES");
+            }
+            window.put(base + LENGTHS_OFFSET + field, (byte) length);
+        }
+
+        int slotOffset(final int field) {
+            return base + SLOTS_OFFSET + field * fieldBytes;
+        }
+
+        MappedByteBuffer window() {
+            return window;
+        }
+
+        long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Trims the file to the records written and writes the header, which makes it a snapshot that opens.
+         */
+        void finish() throws IOException {
+            unmapWindow();
+            // the last window was mapped whole, drop what it wasn't filled with
+            channel.truncate(HEADER_SIZE + rowCount * recordSize);
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putLong(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(fieldBytes)
+                    .putInt(recordSize)
+                    .putLong(rowCount);
+            header.clear();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+
+        /**
+         * Writes out the window and unmaps it there and then rather than whenever it's collected, a file can't be
+         * truncated, or on some platforms deleted, while part of it is still mapped.
+         */
+        @SneakyThrows
+        private void unmapWindow() {
+            if (window != null) {
+                window.force();
+                ByteBuffer mapped = window;
+                window = null;
+                INVOKE_CLEANER.invokeExact(mapped);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                unmapWindow();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
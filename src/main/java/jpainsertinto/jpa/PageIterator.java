@@ -0,0 +1,72 @@
+package jpainsertinto.jpa;
+
+import lombok.SneakyThrows;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Walks the pages from a given afterId to the end. With an executor the next page is read on it while the caller
+ * works through the current one, so at most one page is held ahead.
+ */
+final class PageIterator implements Iterator<MyObjectPage> {
+
+    private final Function<BigInteger, MyObjectPage> pageLoader;
+    private final Executor prefetchExecutor;
+
+    private BigInteger nextAfterId;
+    private CompletableFuture<MyObjectPage> prefetched;
+    private boolean done;
+
+    /**
+     * @param prefetchExecutor runs the reads of the pages ahead, null to read each page when it is asked for
+     */
+    PageIterator(final Function<BigInteger, MyObjectPage> pageLoader,
+                 final BigInteger afterId,
+                 final Executor prefetchExecutor) {
+        this.pageLoader = pageLoader;
+        this.prefetchExecutor = prefetchExecutor;
+        this.nextAfterId = afterId;
+        prefetch();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !done;
+    }
+
+    @Override
+    public MyObjectPage next() {
+        if (done) {
+            throw new NoSuchElementException();
+        }
+        var page = prefetched == null ? pageLoader.apply(nextAfterId) : join(prefetched);
+        nextAfterId = page.getNextAfterId();
+        done = page.isLast();
+        prefetch();
+        return page;
+    }
+
+    private void prefetch() {
+        if (prefetchExecutor != null && !done) {
+            var afterId = nextAfterId;
+            prefetched = CompletableFuture.supplyAsync(() -> pageLoader.apply(afterId), prefetchExecutor);
+        } else {
+            prefetched = null;
+        }
+    }
+
+    @SneakyThrows
+    private static MyObjectPage join(final CompletableFuture<MyObjectPage> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            throw e.getCause() == null ? e : e.getCause();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.model.MyObjectPojo;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Bulk loads records into TEST_OBJECTS by streaming them with COPY into a temp staging table and then merging
+ * the staging table in with a single INSERT ... SELECT ... ON CONFLICT (HASH).
+ * Rows are encoded as they are pulled from the iterator so the size of the load doesn't matter for the heap.
+ */
+@Slf4j
+public class PgCopyBulkLoader {
+
+    final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // ORD keeps the order the records were handed over in, so duplicated hashes can be resolved the same way
+    // as if they were written one at a time
+    private final static String CREATE_STAGING_TABLE = "CREATE TEMP TABLE TEST_OBJECTS_STAGING"
+            + " ( ORD BIGINT NOT NULL,"
+            + "   HASH VARCHAR(15),"
+            + "   COLUMN_1 VARCHAR(15),"
+            + "   COLUMN_2 VARCHAR(15),"
+            + "   CREATED DATE,"
+            + "   UPDATED TIME )"
+            + " ON COMMIT DROP";
+
+    private final static String COPY_INTO_STAGING_TABLE = "COPY TEST_OBJECTS_STAGING"
+            + " ( ORD, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED )"
+            + " FROM STDIN";
+
+    private final static String INSERT_FROM_STAGING_TABLE = "INSERT INTO {schema}.TEST_OBJECTS AS T"
+            + " ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED )";
+
+    // DO_UPDATE keeps the last record per hash, DO_NOTHING the first
+    private final static String MERGE_STAGING_TABLE = INSERT_FROM_STAGING_TABLE
+            + " SELECT HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED FROM"
+            + "   ( ( SELECT DISTINCT ON (HASH) ORD, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED"
+            + "       FROM TEST_OBJECTS_STAGING"
+            + "       WHERE HASH IS NOT NULL"
+            + "       ORDER BY HASH, ORD %s )"
+            + "     UNION ALL"
+            + "     ( SELECT ORD, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED"
+            + "       FROM TEST_OBJECTS_STAGING"
+            + "       WHERE HASH IS NULL ) ) STAGED"
+            + " ORDER BY ORD";
+
+    // FAIL leaves duplicated hashes in so that they fail like any other conflict
+    private final static String INSERT_STAGING_TABLE = INSERT_FROM_STAGING_TABLE
+            + " SELECT HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED"
+            + " FROM TEST_OBJECTS_STAGING"
+            + " ORDER BY ORD";
+
+    // the rows that are left once the records sharing a hash are collapsed, DO_UPDATE_IF_CHANGED leaves the ones
+    // the merge doesn't return unchanged
+    private final static String COUNT_DISTINCT_STAGED = "count(DISTINCT HASH) + count(*) FILTER (WHERE HASH IS NULL)"
+            + " FROM TEST_OBJECTS_STAGING";
+
+    private final static String COUNT_STAGED_ROWS = "SELECT " + COUNT_DISTINCT_STAGED;
+
+    // an update only counted can't tell inserted rows from updated ones, and RETURNING can't see xmax through a
+    // partitioned table, so the hashes that will conflict are counted first
+    private final static String COUNT_EXISTING_HASHES = "SELECT"
+            + " ( SELECT count(*) FROM {schema}.TEST_OBJECTS"
+            + "   WHERE HASH IN (SELECT HASH FROM TEST_OBJECTS_STAGING) ),"
+            + " ( SELECT " + COUNT_DISTINCT_STAGED + " )";
+
+    // every part of the statement sees the table as it was before the merge, so the hashes that were already there
+    // are the rows that got updated. Ids are handed out in ORD order, which puts rows without a hash back in order
+    private final static String MERGE_STAGING_TABLE_RETURNING = "WITH EXISTING AS"
+            + "   ( SELECT HASH FROM {schema}.TEST_OBJECTS"
+            + "     WHERE HASH IN (SELECT HASH FROM TEST_OBJECTS_STAGING) ),"
+            + " MERGED AS ( %s RETURNING ID, HASH )"
+            + " SELECT MERGED.ID, MERGED.HASH, EXISTING.HASH IS NULL AS INSERTED"
+            + " FROM MERGED LEFT JOIN EXISTING ON EXISTING.HASH = MERGED.HASH"
+            + " ORDER BY MERGED.ID";
+
+    private final int bufferSize;
+    private final String mergeStagingTable;
+    private final String insertStagingTable;
+    private final String countExistingHashes;
+    private final String mergeStagingTableReturning;
+
+    public PgCopyBulkLoader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public PgCopyBulkLoader(final int bufferSize) {
+        this(UpsertSql.DEFAULT_SCHEMA_NAME, bufferSize);
+    }
+
+    /**
+     * For the TEST_OBJECTS in the given schema, the staging table is a temp table wherever that is.
+     */
+    public PgCopyBulkLoader(final String schemaName, final int bufferSize) {
+        UpsertSql.checkSchemaName(schemaName);
+        this.bufferSize = bufferSize;
+        this.mergeStagingTable = UpsertSql.inSchema(MERGE_STAGING_TABLE, schemaName);
+        this.insertStagingTable = UpsertSql.inSchema(INSERT_STAGING_TABLE, schemaName);
+        this.countExistingHashes = UpsertSql.inSchema(COUNT_EXISTING_HASHES, schemaName);
+        this.mergeStagingTableReturning = UpsertSql.inSchema(MERGE_STAGING_TABLE_RETURNING, schemaName);
+    }
+
+    /**
+     * Loads everything the iterator returns in one transaction on the given connection, which is left open.
+     */
+    public UpsertBatchResult load(final Connection conn,
+                                  final Iterator<MyObjectPojo> myObjectPojos,
+                                  final ConflictMode conflictMode) throws SQLException {
+        return load(conn, myObjectPojos, conflictMode, null);
+    }
+
+    /**
+     * As {@link #load(Connection, Iterator, ConflictMode)}, also handing every row inserted or updated to
+     * returnedRows as the merge returns them, rows without a hash in the order they were loaded. Skipped rows aren't
+     * returned.
+     */
+    public UpsertBatchResult load(final Connection conn,
+                                  final Iterator<MyObjectPojo> myObjectPojos,
+                                  final ConflictMode conflictMode,
+                                  final Consumer<UpsertRowResult> returnedRows) throws SQLException {
+
+        var autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (var statement = conn.createStatement()) {
+                statement.execute(CREATE_STAGING_TABLE);
+            }
+
+            var copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_INTO_STAGING_TABLE);
+            long rowsCopied;
+            try {
+                var encoder = new CopyTextEncoder(copyIn, bufferSize);
+                for (rowsCopied = 0; myObjectPojos.hasNext(); rowsCopied++) {
+                    var myObjectPojo = myObjectPojos.next();
+                    encoder.field(rowsCopied)
+                            .field(myObjectPojo.getHash())
+                            .field(myObjectPojo.getColumn1())
+                            .field(myObjectPojo.getColumn2())
+                            .field(myObjectPojo.getCreated())
+                            .field(myObjectPojo.getUpdated() == null ? null : myObjectPojo.getUpdated().toLocalTime())
+                            .endRow();
+                }
+                encoder.flush();
+                copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+
+            var merge = conflictMode == ConflictMode.FAIL ? insertStagingTable
+                    : String.format(mergeStagingTable, conflictMode.isUpdate() ? "DESC" : "ASC")
+                    + conflictMode.getConflictClause();
+            var rowsInserted = 0L;
+            var rowsUpdated = 0L;
+            long rowsUnchanged;
+            // the staging table is created and copied into, then merged
+            var statementsExecuted = 3;
+            try (var statement = conn.createStatement()) {
+                // a row another transaction inserts between the count and the merge is counted as inserted
+                var existing = 0L;
+                var distinct = 0L;
+                // the RETURNING merge finds the existing hashes itself
+                var countExisting = conflictMode.isUpdate() && returnedRows == null;
+                if (countExisting || conflictMode == ConflictMode.DO_UPDATE_IF_CHANGED) {
+                    try (var results = statement.executeQuery(countExisting ? countExistingHashes
+                            : COUNT_STAGED_ROWS)) {
+                        results.next();
+                        existing = countExisting ? results.getLong(1) : 0;
+                        distinct = results.getLong(countExisting ? 2 : 1);
+                    }
+                    statementsExecuted++;
+                }
+                if (returnedRows != null) {
+                    try (var results = statement.executeQuery(String.format(mergeStagingTableReturning, merge))) {
+                        while (results.next()) {
+                            var rowResult = UpsertRowResult.returned(results.getString(2), results.getLong(1),
+                                    results.getBoolean(3));
+                            if (rowResult.getOutcome() == UpsertOutcome.INSERTED) {
+                                rowsInserted++;
+                            } else {
+                                rowsUpdated++;
+                            }
+                            returnedRows.accept(rowResult);
+                        }
+                    }
+                } else {
+                    // only counted, a per row result could be as big as the load itself
+                    var rowsAffected = statement.executeLargeUpdate(merge);
+                    rowsInserted = conflictMode.isUpdate() ? Math.max(0, distinct - existing) : rowsAffected;
+                    rowsUpdated = rowsAffected - rowsInserted;
+                }
+                rowsUnchanged = conflictMode == ConflictMode.DO_UPDATE_IF_CHANGED
+                        ? distinct - rowsInserted - rowsUpdated : 0;
+            }
+
+            conn.commit();
+
+            log.debug("copied {} rows, inserted {}, updated {} and left {} unchanged in TEST_OBJECTS",
+                    rowsCopied, rowsInserted, rowsUpdated, rowsUnchanged);
+
+            return UpsertBatchResult.builder()
+                    .rowsSubmitted(rowsCopied)
+                    .rowsAffected(rowsInserted + rowsUpdated)
+                    .rowsInserted(rowsInserted)
+                    .rowsUpdated(rowsUpdated)
+                    .rowsUnchanged(rowsUnchanged)
+                    .statementsExecuted(statementsExecuted)
+                    .build();
+
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+}
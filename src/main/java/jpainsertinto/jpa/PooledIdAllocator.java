@@ -0,0 +1,88 @@
+package jpainsertinto.jpa;
+
+import lombok.SneakyThrows;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out TEST_OBJECTS ids for native JDBC code that needs an id before the row is written, prefetching them
+ * from test_objects_id_pk_seq in blocks so only one in every {@link #BLOCK_SIZE} ids costs a round trip.
+ * The sequence's INCREMENT is the block size, so a nextval of n reserves n - BLOCK_SIZE + 1 to n. That is the
+ * same as EclipseLink's preallocation for {@link MyObjectJpa}, so blocks taken here, by any EntityManager and
+ * by the ID column default never overlap.
+ * Thread safe, share one per database.
+ */
+public class PooledIdAllocator {
+
+    /** Has to match the INCREMENT set on the sequence by V2__pooled_id_allocation.sql */
+    public final static int BLOCK_SIZE = 50;
+
+    private final static String SEQUENCE_NAME = "test_objects_id_pk_seq";
+
+    private final DataSource dataSource;
+    private final String schemaName;
+
+    // guarded by this
+    private long nextId;
+    private long lastId = -1;
+    private boolean incrementChecked;
+
+    public PooledIdAllocator(final DataSource dataSource) {
+        this(dataSource, UpsertSql.DEFAULT_SCHEMA_NAME);
+    }
+
+    /**
+     * For the sequence of the TEST_OBJECTS in the given schema.
+     */
+    public PooledIdAllocator(final DataSource dataSource, final String schemaName) {
+        this.dataSource = dataSource;
+        this.schemaName = UpsertSql.checkSchemaName(schemaName);
+    }
+
+    /**
+     * Borrows a connection from the pool when a new block is needed, use {@link #nextId(Connection)} when
+     * already holding one so the pool can't run dry waiting on itself.
+     */
+    @SneakyThrows
+    public synchronized long nextId() {
+        if (nextId > lastId) {
+            try (var conn = dataSource.getConnection()) {
+                fetchBlock(conn);
+            }
+        }
+        return nextId++;
+    }
+
+    /**
+     * Takes a new block on the caller's connection if needed. nextval isn't transactional so the block stays
+     * reserved even if the caller's transaction rolls back.
+     */
+    @SneakyThrows
+    public synchronized long nextId(final Connection conn) {
+        if (nextId > lastId) {
+            fetchBlock(conn);
+        }
+        return nextId++;
+    }
+
+    private void fetchBlock(final Connection conn) throws SQLException {
+        try (var statement = conn.createStatement()) {
+            if (!incrementChecked) {
+                try (var results = statement.executeQuery("SELECT increment_by FROM pg_sequences"
+                        + " WHERE schemaname = '" + schemaName + "' AND sequencename = '" + SEQUENCE_NAME + "'")) {
+                    if (!results.next() || results.getLong(1) != BLOCK_SIZE) {
+                        throw new IllegalStateException(SEQUENCE_NAME + " must have INCREMENT BY " + BLOCK_SIZE);
+                    }
+                }
+                incrementChecked = true;
+            }
+            try (var results = statement.executeQuery("SELECT nextval('" + schemaName + "." + SEQUENCE_NAME + "')")) {
+                results.next();
+                lastId = results.getLong(1);
+                nextId = lastId - BLOCK_SIZE + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How hard {@link MyObjectJpaDao#purgeOlderThan} may push the db while it deletes.
+ */
+@Builder
+@Value
+@ToString
+public class PurgeConfig {
+
+    /** IDs looked at per chunk, so also the most rows one chunk deletes and locks */
+    @Builder.Default
+    int chunkSize = 1_000;
+
+    /** Left between two chunks, for vacuum and the replicas to keep up and the writers to get a look in */
+    @Builder.Default
+    Duration pause = Duration.ofMillis(50);
+
+    /** The purge stops after the chunk running when this is up, resume it from the nextAfterId it returns */
+    @Builder.Default
+    Duration maxRuntime = Duration.ofMinutes(10);
+
+}
@@ -0,0 +1,31 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+/**
+ * What one {@link MyObjectJpaDao#purgeOlderThan} run got through.
+ */
+@Builder
+@Value
+@ToString
+public class PurgeResult {
+
+    long rowsDeleted;
+
+    /** Number of chunks, each its own short transaction */
+    long chunks;
+
+    Duration elapsed;
+
+    /** Whether every ID was looked at, false if the run stopped at maxRuntime or was interrupted */
+    boolean finished;
+
+    /** The afterId to carry on from, the last ID looked at */
+    BigInteger nextAfterId;
+
+}
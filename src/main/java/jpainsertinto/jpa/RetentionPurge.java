@@ -0,0 +1,136 @@
+package jpainsertinto.jpa;
+
+import jpainsertinto.jpa.DaoMetrics.Operation;
+import jpainsertinto.jpa.DaoMetrics.Phase;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Deletes the rows created before a cutoff in chunks of consecutive IDs, each chunk in a transaction of its own.
+ * <p>
+ * Each chunk takes the next chunkSize IDs of the whole table, in ID order across all its partitions, and deletes
+ * the expired rows among them, so no statement holds more than chunkSize row locks or writes more than chunkSize
+ * rows of WAL however much has expired. Rows an upsert has locked are skipped rather than waited for, an upsert
+ * only ever waits for the one chunk that holds its row and the purge never waits at all. A skipped row is deleted
+ * by the next purge.
+ */
+@Slf4j
+class RetentionPurge {
+
+    // the chunk's last ID, null once there are no IDs left, and the hashes of the rows it deleted
+    private final static String DELETE_CHUNK = "WITH CHUNK AS ("
+            + "   SELECT max(ID) AS TO_ID FROM"
+            + "     ( SELECT ID FROM {schema}.TEST_OBJECTS WHERE ID > ? ORDER BY ID LIMIT ? ) IDS ),"
+            + " EXPIRED AS ("
+            + "   SELECT ID FROM {schema}.TEST_OBJECTS"
+            + "   WHERE ID > ? AND ID <= (SELECT TO_ID FROM CHUNK) AND CREATED < ?"
+            + "   FOR UPDATE SKIP LOCKED ),"
+            + " DELETED AS ("
+            + "   DELETE FROM {schema}.TEST_OBJECTS"
+            + "   WHERE ID > ? AND ID <= (SELECT TO_ID FROM CHUNK) AND ID IN (SELECT ID FROM EXPIRED)"
+            + "   RETURNING HASH )"
+            + " SELECT TO_ID, (SELECT count(*) FROM DELETED), (SELECT array_agg(HASH) FROM DELETED) FROM CHUNK";
+
+    private final DataSource dataSource;
+    private final String deleteChunk;
+    private final DaoMetrics metrics;
+
+    RetentionPurge(final DataSource dataSource, final String schemaName, final DaoMetrics metrics) {
+        this.dataSource = dataSource;
+        this.deleteChunk = UpsertSql.inSchema(DELETE_CHUNK, schemaName);
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param deletedHashes is handed the hash of every row deleted, once its chunk has committed
+     */
+    PurgeResult purge(final LocalDate cutoff,
+                      final BigInteger afterId,
+                      final PurgeConfig config,
+                      final Consumer<String> deletedHashes) throws SQLException {
+
+        if (config.getChunkSize() < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1 but was " + config.getChunkSize());
+        }
+
+        var start = System.nanoTime();
+        var deadline = start + config.getMaxRuntime().toNanos();
+        var fromId = afterId == null ? Long.MIN_VALUE : afterId.longValueExact();
+        var rowsDeleted = 0L;
+        var chunks = 0L;
+        var finished = false;
+
+        // a connection is only borrowed for each chunk, not held through the pauses
+        while (System.nanoTime() < deadline) {
+            var t = metrics.start();
+            long toId;
+            long deleted;
+            try (var conn = dataSource.getConnection();
+                 var ps = conn.prepareStatement(deleteChunk)) {
+                ps.setLong(1, fromId);
+                ps.setInt(2, config.getChunkSize());
+                ps.setLong(3, fromId);
+                ps.setObject(4, cutoff);
+                ps.setLong(5, fromId);
+                try (var results = ps.executeQuery()) {
+                    results.next();
+                    toId = results.getLong(1);
+                    if (results.wasNull()) {
+                        finished = true;
+                        break;
+                    }
+                    deleted = results.getLong(2);
+                    if (deleted > 0) {
+                        for (var hash : (Object[]) results.getArray(3).getArray()) {
+                            if (hash != null) {
+                                deletedHashes.accept((String) hash);
+                            }
+                        }
+                    }
+                }
+            }
+            metrics.phase(Operation.PURGE_OLDER_THAN, Phase.EXECUTE, t);
+            metrics.rowsDeleted(Operation.PURGE_OLDER_THAN, deleted);
+            fromId = toId;
+            rowsDeleted += deleted;
+            chunks++;
+            if (!pause(config.getPause(), deadline)) {
+                break;
+            }
+        }
+
+        var result = PurgeResult.builder()
+                .rowsDeleted(rowsDeleted)
+                .chunks(chunks)
+                .elapsed(Duration.ofNanos(System.nanoTime() - start))
+                .finished(finished)
+                .nextAfterId(fromId == Long.MIN_VALUE ? afterId : BigInteger.valueOf(fromId))
+                .build();
+        log.info("purged rows created before {}: {}", cutoff, result);
+        return result;
+    }
+
+    /**
+     * @return false if interrupted, the purge then stops where it is
+     */
+    private static boolean pause(final Duration pause, final long deadline) {
+        var nanos = Math.min(pause.toNanos(), deadline - System.nanoTime());
+        if (nanos <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
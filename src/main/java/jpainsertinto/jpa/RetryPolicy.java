@@ -0,0 +1,29 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * How a write that lost a race with another writer is tried again, see {@link MyObjectJpaDao#upsertAllWithRetry}.
+ */
+@Builder
+@Value
+@ToString
+public class RetryPolicy {
+
+    /** Tries in all including the first, the error of the last one is thrown */
+    @Builder.Default
+    int maxAttempts = 5;
+
+    /** The most waited before the first retry, it doubles with each one after that */
+    @Builder.Default
+    Duration initialBackoff = Duration.ofMillis(10);
+
+    /** The most waited before any retry */
+    @Builder.Default
+    Duration maxBackoff = Duration.ofMillis(500);
+
+}
@@ -0,0 +1,187 @@
+package jpainsertinto.jpa;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Serves TEST_OBJECTS in any number of schemas, one per tenant, from a single connection pool.
+ * <p>
+ * The first call for a schema builds its {@link EntityManagerFactory}, deploys its session with the
+ * {@link JpaSessionCustomizer} pointed at the schema and reads its partitions for the upsert statements, later calls
+ * get the same dao straight away. Only maximumSchemas of them are kept, Caffeine evicts the ones used least often
+ * and least recently when there are more, and those not used for expireAfterAccess when it's set. Each factory
+ * keeps its own shared cache, so that and the session are what a tenant costs while it's kept.
+ * <p>
+ * A dao is only lent out for the length of an {@link #inSchema} call, an evicted factory is closed once the last
+ * call still using it has returned.
+ */
+@Slf4j
+public class SchemaRoutingMyObjectJpaDao implements AutoCloseable {
+
+    private final static long DEFAULT_MAXIMUM_SCHEMAS = 100;
+
+    private final DataSource dataSource;
+    private final Map<String, ?> jpaProperties;
+    private final DaoMetrics metrics;
+    private final Cache<String, Tenant> tenants;
+    private final AtomicInteger openFactories = new AtomicInteger();
+
+    /**
+     * @param dataSource       the pool every schema borrows its connections from
+     * @param jpaProperties    any other EclipseLink / JPA settings for the factories, none if not given
+     * @param maximumSchemas   how many schemas to keep a factory for, 100 if not given
+     * @param expireAfterAccess closes the factory of a schema that hasn't been used for this long, kept until
+     *                         evicted for size if not given
+     * @param metrics          shared by the daos of all the schemas
+     */
+    @Builder
+    private SchemaRoutingMyObjectJpaDao(final DataSource dataSource,
+                                        final Map<String, ?> jpaProperties,
+                                        final long maximumSchemas,
+                                        final Duration expireAfterAccess,
+                                        final DaoMetrics metrics) {
+        this.dataSource = dataSource;
+        this.jpaProperties = jpaProperties == null ? Map.of() : jpaProperties;
+        this.metrics = metrics;
+        var builder = Caffeine.newBuilder()
+                .maximumSize(maximumSchemas > 0 ? maximumSchemas : DEFAULT_MAXIMUM_SCHEMAS)
+                .removalListener((String schemaName, Tenant tenant, RemovalCause cause) -> {
+                    log.debug("evicting schema {}, {}", schemaName, cause);
+                    tenant.evict();
+                });
+        if (expireAfterAccess != null) {
+            builder.expireAfterAccess(expireAfterAccess);
+        }
+        this.tenants = builder.build();
+    }
+
+    /**
+     * Runs the work with the dao for the schema, building it first if the schema isn't kept.
+     *
+     * @throws IllegalArgumentException unless the schema name is a plain lower case identifier
+     */
+    public <T> T inSchema(final String schemaName, final Function<MyObjectJpaDao, T> work) {
+        UpsertSql.checkSchemaName(schemaName);
+        while (true) {
+            var tenant = tenants.get(schemaName, this::open);
+            // one evicted since it was looked up is on its way to being closed, the next lookup builds a new one
+            if (tenant.acquire()) {
+                try {
+                    return work.apply(tenant.dao);
+                } finally {
+                    tenant.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the schema's factory, or has it closed after the calls still using it.
+     */
+    public void evict(final String schemaName) {
+        tenants.invalidate(schemaName);
+    }
+
+    /**
+     * The number of schemas kept, which can be off by the evictions Caffeine hasn't got round to yet.
+     */
+    public long getSchemaCount() {
+        return tenants.estimatedSize();
+    }
+
+    /**
+     * The number of factories not closed yet, evicted ones still in use included.
+     */
+    public int getOpenFactoryCount() {
+        return openFactories.get();
+    }
+
+    /**
+     * Closes every factory, those still in use as soon as their calls return. The pool is left open.
+     */
+    @Override
+    public void close() {
+        tenants.asMap().values().forEach(Tenant::evict);
+        tenants.invalidateAll();
+        tenants.cleanUp();
+    }
+
+    private Tenant open(final String schemaName) {
+        var start = System.nanoTime();
+        var emf = ConnectionPools.createEntityManagerFactory(dataSource, schemaName, jpaProperties);
+        try {
+            // the session is only deployed by the first EntityManager, have that done now rather than in the
+            // first call
+            emf.createEntityManager().close();
+            var dao = MyObjectJpaDaoImpl.builder()
+                    .emf(emf)
+                    .dataSource(dataSource)
+                    .schemaName(schemaName)
+                    .metrics(metrics)
+                    .build();
+            dao.getPartitioning();
+            openFactories.incrementAndGet();
+            log.debug("opened schema {} in {} ms", schemaName, (System.nanoTime() - start) / 1_000_000);
+            return new Tenant(emf, dao);
+        } catch (RuntimeException e) {
+            emf.close();
+            throw e;
+        }
+    }
+
+    private final class Tenant {
+
+        private final EntityManagerFactory emf;
+        private final MyObjectJpaDaoImpl dao;
+
+        // guarded by this
+        private int users;
+        private boolean evicted;
+        private boolean closed;
+
+        private Tenant(final EntityManagerFactory emf, final MyObjectJpaDaoImpl dao) {
+            this.emf = emf;
+            this.dao = dao;
+        }
+
+        synchronized boolean acquire() {
+            if (evicted) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        synchronized void release() {
+            users--;
+            if (evicted && users == 0) {
+                closeFactory();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            if (users == 0) {
+                closeFactory();
+            }
+        }
+
+        private void closeFactory() {
+            if (!closed) {
+                closed = true;
+                emf.close();
+                openFactories.decrementAndGet();
+            }
+        }
+    }
+}
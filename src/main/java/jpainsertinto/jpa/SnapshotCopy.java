@@ -0,0 +1,285 @@
+package jpainsertinto.jpa;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyOut;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * Moves TEST_OBJECTS in and out of {@link MyObjectSnapshot} files with COPY. Rows are decoded from the COPY text
+ * straight into the mapped file on the way out and encoded from it on the way back in, no row becomes an object on
+ * either side.
+ */
+final class SnapshotCopy {
+
+    private final static String COPY_OUT = "COPY ( SELECT ID, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED"
+            + " FROM {schema}.TEST_OBJECTS ) TO STDOUT";
+
+    private final static String COPY_IN = "COPY {schema}.TEST_OBJECTS"
+            + " ( ID, HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED )"
+            + " FROM STDIN";
+
+    // no other writer gets in between the check of the IDs and the rows going in
+    private final static String LOCK_TABLE = "LOCK TABLE {schema}.TEST_OBJECTS IN SHARE ROW EXCLUSIVE MODE";
+
+    private final static String MAX_ID = "SELECT max(ID) FROM {schema}.TEST_OBJECTS";
+
+    // the restored rows keep their IDs, so new ones have to be handed out from above them
+    private final static String CATCH_UP_SEQUENCE = "SELECT setval('{schema}.test_objects_id_pk_seq', max(ID))"
+            + " FROM {schema}.TEST_OBJECTS"
+            + " HAVING max(ID) > (SELECT last_value FROM {schema}.test_objects_id_pk_seq)";
+
+    private final static int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private SnapshotCopy() {
+    }
+
+    /**
+     * Writes every row to a new snapshot file, in one statement so the rows are all as of the same moment.
+     *
+     * @return the number of rows written
+     */
+    static long export(final Connection conn, final String schemaName, final Path file, final int fieldBytes)
+            throws SQLException, IOException {
+        var pgConnection = conn.unwrap(PGConnection.class);
+        var copyOut = pgConnection.getCopyAPI().copyOut(UpsertSql.inSchema(COPY_OUT, schemaName));
+        try (var writer = new MyObjectSnapshot.Writer(file, fieldBytes)) {
+            byte[] row;
+            while ((row = copyOut.readFromCopy()) != null) {
+                decodeRow(row, writer);
+            }
+            writer.finish();
+            return writer.getRowCount();
+        } catch (SQLException | IOException | RuntimeException e) {
+            if (copyOut.isActive()) {
+                drain(pgConnection, copyOut);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops a COPY TO that is being given up on. pgjdbc's cancelCopy only asks the server to stop, whatever it had
+     * sent by then would be left for the next user of the connection, so the rest is read and thrown away.
+     */
+    private static void drain(final PGConnection pgConnection, final CopyOut copyOut) {
+        try {
+            pgConnection.cancelQuery();
+            while (copyOut.readFromCopy() != null) {
+                // until the server has stopped
+            }
+        } catch (SQLException e) {
+            // the cancel ends it with an error, which is all that's left to read
+        }
+    }
+
+    /**
+     * Loads every record of the snapshot in one transaction, keeping their IDs. Nothing but the sequence keeps IDs
+     * unique, so the snapshot's have to be above any already in the table, and the table mustn't hold any of its
+     * hashes either. Either one fails the whole restore.
+     *
+     * @return the number of rows loaded
+     * @throws IllegalStateException if the table holds an ID as high as the lowest in the snapshot
+     */
+    static long restore(final Connection conn, final String schemaName, final MyObjectSnapshot snapshot)
+            throws SQLException, IOException {
+        var autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            checkIdsAreFree(conn, schemaName, snapshot);
+            var copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(UpsertSql.inSchema(COPY_IN, schemaName));
+            try {
+                var encoder = new CopyTextEncoder(copyIn, DEFAULT_BUFFER_SIZE);
+                snapshot.forEach(record -> {
+                    encoder.field(record.getId());
+                    for (var field = MyObjectSnapshot.HASH; field <= MyObjectSnapshot.COLUMN_2; field++) {
+                        var length = record.getLength(field);
+                        if (length < 0) {
+                            encoder.nullField();
+                        } else {
+                            encoder.field(record.getBuffer(), record.getOffset(field), length);
+                        }
+                    }
+                    var created = record.getCreatedEpochDay();
+                    if (created == Integer.MIN_VALUE) {
+                        encoder.nullField();
+                    } else {
+                        encoder.dateField(created);
+                    }
+                    var updated = record.getUpdatedNanoOfDay();
+                    if (updated < 0) {
+                        encoder.nullField();
+                    } else {
+                        encoder.timeField(updated);
+                    }
+                    encoder.endRow();
+                });
+                encoder.flush();
+                copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+            try (var statement = conn.createStatement()) {
+                statement.executeQuery(UpsertSql.inSchema(CATCH_UP_SEQUENCE, schemaName)).close();
+            }
+            conn.commit();
+            return snapshot.getRowCount();
+        } catch (SQLException | IOException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void checkIdsAreFree(final Connection conn,
+                                        final String schemaName,
+                                        final MyObjectSnapshot snapshot) throws SQLException, IOException {
+        var minId = new long[]{Long.MAX_VALUE};
+        snapshot.forEach(record -> minId[0] = Math.min(minId[0], record.getId()));
+        try (var statement = conn.createStatement()) {
+            statement.execute(UpsertSql.inSchema(LOCK_TABLE, schemaName));
+            try (var results = statement.executeQuery(UpsertSql.inSchema(MAX_ID, schemaName))) {
+                results.next();
+                var maxId = results.getLong(1);
+                if (!results.wasNull() && maxId >= minId[0]) {
+                    throw new IllegalStateException("the snapshot's IDs start at " + minId[0] + " but "
+                            + schemaName + ".TEST_OBJECTS already holds IDs up to " + maxId);
+                }
+            }
+        }
+    }
+
+    private static void decodeRow(final byte[] row, final MyObjectSnapshot.Writer writer) throws IOException {
+        // values never hold a raw tab or newline, COPY escapes them, so the row splits on tabs
+        var end = row.length > 0 && row[row.length - 1] == '\n' ? row.length - 1 : row.length;
+        var from = 0;
+        var to = nextTab(row, from, end);
+        writer.startRecord(parseLong(row, from, to));
+        for (var field = MyObjectSnapshot.HASH; field <= MyObjectSnapshot.COLUMN_2; field++) {
+            from = to + 1;
+            to = nextTab(row, from, end);
+            if (!isNull(row, from, to)) {
+                putText(row, from, to, field, writer);
+            }
+        }
+        from = to + 1;
+        to = nextTab(row, from, end);
+        if (!isNull(row, from, to)) {
+            writer.putCreated(parseDate(row, from, to));
+        }
+        from = to + 1;
+        if (!isNull(row, from, end)) {
+            writer.putUpdated(parseTime(row, from, end));
+        }
+    }
+
+    private static void putText(final byte[] row,
+                                final int from,
+                                final int to,
+                                final int field,
+                                final MyObjectSnapshot.Writer writer) {
+        var length = 0;
+        for (var i = from; i < to; i++) {
+            if (row[i] == '\\') {
+                i++;
+            }
+            length++;
+        }
+        writer.putLength(field, length);
+        var window = writer.window();
+        var offset = writer.slotOffset(field);
+        for (var i = from; i < to; i++) {
+            var b = row[i];
+            if (b == '\\' && i + 1 < to) {
+                b = unescape(row[++i]);
+            }
+            window.put(offset++, b);
+        }
+    }
+
+    private static byte unescape(final byte escaped) {
+        switch (escaped) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'v':
+                return 0x0B;
+            default:
+                return escaped;
+        }
+    }
+
+    private static int nextTab(final byte[] row, final int from, final int end) {
+        for (var i = from; i < end; i++) {
+            if (row[i] == '\t') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isNull(final byte[] row, final int from, final int to) {
+        return to - from == 2 && row[from] == '\\' && row[from + 1] == 'N';
+    }
+
+    private static long parseLong(final byte[] row, final int from, final int to) {
+        var negative = row[from] == '-';
+        var value = 0L;
+        for (var i = negative ? from + 1 : from; i < to; i++) {
+            value = value * 10 + (row[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * An ISO date as days since 1970-01-01, anything but yyyy-mm-dd goes through LocalDate.
+     */
+    private static long parseDate(final byte[] row, final int from, final int to) {
+        if (to - from != 10 || row[from + 4] != '-' || row[from + 7] != '-') {
+            return LocalDate.parse(new String(row, from, to - from, StandardCharsets.US_ASCII)).toEpochDay();
+        }
+        var year = parseLong(row, from, from + 4);
+        var month = parseLong(row, from + 5, from + 7);
+        var day = parseLong(row, from + 8, from + 10);
+        // Howard Hinnant's days_from_civil, with March as the first month so leap days come last
+        year -= month <= 2 ? 1 : 0;
+        var era = Math.floorDiv(year, 400);
+        var yearOfEra = year - era * 400;
+        var dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        var dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+
+    /**
+     * hh:mm:ss with up to 6 digits of fraction, as nanos of the day.
+     */
+    private static long parseTime(final byte[] row, final int from, final int to) {
+        var seconds = parseLong(row, from, from + 2) * 3_600
+                + parseLong(row, from + 3, from + 5) * 60
+                + parseLong(row, from + 6, from + 8);
+        var nanos = 0L;
+        if (to > from + 9) {
+            var digits = to - from - 9;
+            nanos = parseLong(row, from + 9, to);
+            for (var i = digits; i < 9; i++) {
+                nanos *= 10;
+            }
+        }
+        return seconds * 1_000_000_000L + nanos;
+    }
+}
@@ -0,0 +1,50 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Row counts for a whole batch written by one of the batch methods on {@link MyObjectJpaDao}.
+ */
+@Builder(toBuilder = true)
+@Value
+@ToString
+public class UpsertBatchResult {
+
+    /** Number of records handed to the dao */
+    long rowsSubmitted;
+
+    /** Number of rows the db reported as inserted or updated */
+    long rowsAffected;
+
+    /** Number of rows the db reported as inserted */
+    long rowsInserted;
+
+    /** Number of rows the db reported as updated */
+    long rowsUpdated;
+
+    /** Number of rows that were already there with the same values, so were left as they were */
+    long rowsUnchanged;
+
+    /** Number of statements sent to the db */
+    int statementsExecuted;
+
+    /**
+     * One result per row sent to the db, in the order they were sent. Records collapsed into another one with the
+     * same hash aren't sent so have no result, and COPY loads only report the counts.
+     */
+    @Builder.Default
+    @ToString.Exclude
+    List<UpsertRowResult> rows = List.of();
+
+    /**
+     * @return records that were neither written nor unchanged, either skipped on conflict or collapsed into another
+     * record
+     */
+    public long getRowsSkipped() {
+        return rowsSubmitted - rowsAffected - rowsUnchanged;
+    }
+}
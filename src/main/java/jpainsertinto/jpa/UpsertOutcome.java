@@ -0,0 +1,25 @@
+package jpainsertinto.jpa;
+
+/**
+ * What an upsert did with a row, as reported back by postgres.
+ */
+public enum UpsertOutcome {
+
+    INSERTED,
+
+    /**
+     * There was a row with the same HASH already and it was overwritten.
+     */
+    UPDATED,
+
+    /**
+     * There was a row with the same HASH already and it was left alone.
+     */
+    SKIPPED,
+
+    /**
+     * There was a row with the same HASH already holding the same values, so it wasn't rewritten.
+     */
+    UNCHANGED
+
+}
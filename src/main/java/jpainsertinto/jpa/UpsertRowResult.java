@@ -0,0 +1,54 @@
+package jpainsertinto.jpa;
+
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+/**
+ * What happened to a single row, read from the RETURNING clause of the upsert so no follow up read is needed.
+ */
+@Builder
+@Value
+@ToString
+public class UpsertRowResult {
+
+    String hash;
+
+    /** The id of the inserted or updated row, null when the row was skipped or unchanged as nothing is returned */
+    Long id;
+
+    UpsertOutcome outcome;
+
+    static UpsertRowResult skipped(final String hash) {
+        return UpsertRowResult.builder()
+                .hash(hash)
+                .outcome(UpsertOutcome.SKIPPED)
+                .build();
+    }
+
+    static UpsertRowResult unchanged(final String hash) {
+        return UpsertRowResult.builder()
+                .hash(hash)
+                .outcome(UpsertOutcome.UNCHANGED)
+                .build();
+    }
+
+    /**
+     * For a row the upsert returned nothing for, with DO_UPDATE_IF_CHANGED a row with a hash can only have found
+     * itself already there.
+     */
+    static UpsertRowResult notReturned(final String hash, final ConflictMode conflictMode) {
+        return hash != null && conflictMode == ConflictMode.DO_UPDATE_IF_CHANGED ? unchanged(hash) : skipped(hash);
+    }
+
+    /**
+     * @param inserted the {@code (xmax = 0)} column, a row that was updated carries the updating transaction in xmax
+     */
+    static UpsertRowResult returned(final String hash, final long id, final boolean inserted) {
+        return UpsertRowResult.builder()
+                .hash(hash)
+                .id(id)
+                .outcome(inserted ? UpsertOutcome.INSERTED : UpsertOutcome.UPDATED)
+                .build();
+    }
+}
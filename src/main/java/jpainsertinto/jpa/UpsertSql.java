@@ -0,0 +1,83 @@
+package jpainsertinto.jpa;
+
+import java.util.regex.Pattern;
+
+/**
+ * The upsert statements for TEST_OBJECTS. When the table is hash partitioned they insert straight into the
+ * partition the row belongs to: postgres can't hand back system columns such as xmax from a partitioned table,
+ * and a statement aimed at one partition skips the routing and leaves the other partitions alone.
+ * ON CONFLICT (HASH) is unaffected as each partition has its share of the unique index on HASH.
+ */
+final class UpsertSql {
+
+    /** Stands for the schema in statements that are only completed once the schema is known, see {@link #inSchema} */
+    final static String SCHEMA = "{schema}";
+    final static String DEFAULT_SCHEMA_NAME = "public";
+    // only names that mean the same quoted or not, so they can go into the SQL as they are
+    private final static Pattern SCHEMA_NAME = Pattern.compile("[a-z_][a-z0-9_]{0,62}");
+
+    private final static String COLUMNS = " ( HASH, COLUMN_1, COLUMN_2, CREATED, UPDATED ) VALUES ";
+    private final static String VALUES_ROW = "(?, ?, ?, ?, ?)";
+    // a row that was updated has the updating transaction in xmax, a freshly inserted one has 0
+    private final static String RETURNING_OUTCOME = " RETURNING ID, HASH, (xmax = 0) AS INSERTED";
+
+    private final HashPartitioning partitioning;
+    private final String[] insertInto;
+    private final String[][] upsertRow;
+
+    UpsertSql(final String schemaName, final HashPartitioning partitioning) {
+        this.partitioning = partitioning;
+        this.insertInto = new String[partitioning.getPartitionCount()];
+        this.upsertRow = new String[ConflictMode.values().length][partitioning.getPartitionCount()];
+        for (var partition = 0; partition < insertInto.length; partition++) {
+            insertInto[partition] = "INSERT INTO \"" + schemaName + "\".\"" + partitioning.getPartitionName(partition)
+                    + "\" AS T" + COLUMNS;
+            for (var conflictMode : ConflictMode.values()) {
+                upsertRow[conflictMode.ordinal()][partition] = multiRowUpsert(conflictMode, partition, 1);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException unless the name is a plain lower case postgres identifier
+     */
+    static String checkSchemaName(final String schemaName) {
+        if (schemaName == null || !SCHEMA_NAME.matcher(schemaName).matches()) {
+            throw new IllegalArgumentException("not a plain lower case schema name: " + schemaName);
+        }
+        return schemaName;
+    }
+
+    static String inSchema(final String sql, final String schemaName) {
+        return sql.replace(SCHEMA, schemaName);
+    }
+
+    HashPartitioning getPartitioning() {
+        return partitioning;
+    }
+
+    int partitionOf(final String hash) {
+        var partition = partitioning.partitionOf(hash);
+        if (partition < 0) {
+            throw new IllegalStateException("no partition of TEST_OBJECTS takes the hash " + hash);
+        }
+        return partition;
+    }
+
+    String upsertRow(final ConflictMode conflictMode, final String hash) {
+        return upsertRow[conflictMode.ordinal()][partitionOf(hash)];
+    }
+
+    String multiRowUpsert(final ConflictMode conflictMode, final int partition, final int rowCount) {
+        var sql = new StringBuilder(insertInto[partition].length()
+                + rowCount * (VALUES_ROW.length() + 2)
+                + conflictMode.getConflictClause().length()
+                + RETURNING_OUTCOME.length())
+                .append(insertInto[partition])
+                .append(VALUES_ROW);
+        for (var i = 1; i < rowCount; i++) {
+            sql.append(", ").append(VALUES_ROW);
+        }
+        return sql.append(conflictMode.getConflictClause()).append(RETURNING_OUTCOME).toString();
+    }
+}
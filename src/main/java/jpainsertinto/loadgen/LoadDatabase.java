@@ -0,0 +1,88 @@
+package jpainsertinto.loadgen;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jpainsertinto.jpa.AdaptiveMyObjectJpaDao;
+import jpainsertinto.jpa.ConnectionPoolConfig;
+import jpainsertinto.jpa.ConnectionPools;
+import jpainsertinto.jpa.MyObjectJpaDao;
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import org.flywaydb.core.Flyway;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Map;
+
+/**
+ * The db a {@link LoadGenerator} writes to, migrated by Flyway, with a dao for the configured strategy on top.
+ * Without a jdbcUrl an embedded postgres is started for the run and dropped again by {@link #close()}, its classes
+ * only come with the provided scope so run with -Dexec.classpathScope=compile.
+ */
+@Getter
+public class LoadDatabase implements AutoCloseable {
+
+    private static final String SCHEMA_NAME = "public";
+
+    private final AutoCloseable embeddedPostgres;
+    private final HikariDataSource dataSource;
+    private final EntityManagerFactory emf;
+    private final MyObjectJpaDao myObjectDao;
+
+    @SneakyThrows
+    public LoadDatabase(final LoadGeneratorConfig config) {
+        String jdbcUrl;
+        String user;
+        if (config.getJdbcUrl() == null) {
+            var embedded = Embedded.start();
+            embeddedPostgres = embedded;
+            jdbcUrl = "jdbc:postgresql://localhost:" + embedded.getPort() + "/postgres";
+            user = "postgres";
+        } else {
+            embeddedPostgres = null;
+            jdbcUrl = config.getJdbcUrl();
+            user = config.getUser();
+        }
+
+        Flyway.configure()
+                .schemas(SCHEMA_NAME)
+                .dataSource(jdbcUrl, user, config.getPassword())
+                .load()
+                .migrate();
+
+        var poolConfig = ConnectionPoolConfig.builder()
+                .jdbcUrl(jdbcUrl)
+                .user(user)
+                .minIdle(config.getConcurrency())
+                .maxPoolSize(config.getConcurrency());
+        if (config.getPassword() != null) {
+            poolConfig.password(config.getPassword());
+        }
+        dataSource = ConnectionPools.create(poolConfig.build());
+        emf = ConnectionPools.createEntityManagerFactory(dataSource, Map.of("eclipselink.logging.level", "WARNING"));
+
+        var dao = new MyObjectJpaDaoImpl(emf, dataSource);
+        myObjectDao = config.getStrategy() == LoadStrategy.ADAPTIVE_DO_UPDATE ? new AdaptiveMyObjectJpaDao(dao) : dao;
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+        emf.close();
+        dataSource.close();
+        if (embeddedPostgres != null) {
+            embeddedPostgres.close();
+        }
+    }
+
+    /**
+     * Kept apart so the embedded postgres classes are only loaded when one is asked for.
+     */
+    private static final class Embedded {
+
+        @SneakyThrows
+        static EmbeddedPostgres start() {
+            return EmbeddedPostgres.start();
+        }
+    }
+}
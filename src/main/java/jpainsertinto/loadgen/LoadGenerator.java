@@ -0,0 +1,181 @@
+package jpainsertinto.loadgen;
+
+import jpainsertinto.jpa.MyObjectJpaDao;
+import jpainsertinto.model.MyObjectPojo;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drives a dao with a steady stream of writes for soak and capacity testing.
+ * Operations of batchSize records are started on a fixed schedule spread over the workers, so the offered rate
+ * doesn't drop when the db slows down, a worker that falls behind starts its next operation straight away and the
+ * wait shows in the latency. Hashes are drawn from keyCardinality keys, each record reuses a hash already sent
+ * with the duplicateRatio probability and takes the next new one otherwise.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final LoadGeneratorConfig config;
+    private final MyObjectJpaDao myObjectDao;
+    private final Consumer<LoadReport> intervalReports;
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final AtomicLong nextOperation = new AtomicLong();
+    private final AtomicLong nextKey = new AtomicLong();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * @param intervalReports is handed a report over each reportInterval as the run goes
+     */
+    public LoadGenerator(final LoadGeneratorConfig config,
+                         final MyObjectJpaDao myObjectDao,
+                         final Consumer<LoadReport> intervalReports) {
+        this.config = config;
+        this.myObjectDao = myObjectDao;
+        this.intervalReports = intervalReports;
+    }
+
+    /**
+     * Runs for the configured duration.
+     *
+     * @return the report over the whole run
+     */
+    public LoadReport run() throws InterruptedException {
+        var intervalNanos = config.getRate() == 0
+                ? 0
+                : TimeUnit.SECONDS.toNanos(config.getBatchSize()) / config.getRate();
+        var start = System.nanoTime();
+        var end = start + config.getDuration().toNanos();
+        var total = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        var workers = Executors.newFixedThreadPool(config.getConcurrency(), runnable -> {
+            var thread = new Thread(runnable, "load-worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (var i = 0; i < config.getConcurrency(); i++) {
+                workers.execute(() -> work(start, end, intervalNanos));
+            }
+            workers.shutdown();
+
+            var reportNanos = config.getReportInterval().toNanos();
+            var intervalStart = start;
+            var operationsSoFar = 0L;
+            var recordsSoFar = 0L;
+            Map<String, Long> errorsSoFar = Map.of();
+            while (!workers.awaitTermination(Math.max(0, intervalStart + reportNanos - System.nanoTime()),
+                    TimeUnit.NANOSECONDS)) {
+                var now = System.nanoTime();
+                var interval = recorder.getIntervalHistogram();
+                total.add(interval);
+                var report = report(interval, now - intervalStart,
+                        operations.sum() - operationsSoFar, records.sum() - recordsSoFar, errorsSoFar);
+                intervalReports.accept(report);
+                operationsSoFar += report.getOperations();
+                recordsSoFar += report.getRecords();
+                errorsSoFar = errorCounts(Map.of());
+                intervalStart = now;
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        total.add(recorder.getIntervalHistogram());
+        var summary = report(total, System.nanoTime() - start, operations.sum(), records.sum(), Map.of());
+        return summary;
+    }
+
+    private void work(final long start, final long end, final long intervalNanos) {
+        var batch = new ArrayList<MyObjectPojo>(config.getBatchSize());
+        while (!Thread.currentThread().isInterrupted()) {
+            var due = intervalNanos == 0 ? System.nanoTime() : start + nextOperation.getAndIncrement() * intervalNanos;
+            if (due >= end) {
+                return;
+            }
+            var wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            batch.clear();
+            for (var i = 0; i < config.getBatchSize(); i++) {
+                batch.add(nextRecord());
+            }
+            try {
+                config.getStrategy().write(myObjectDao, batch);
+                records.add(batch.size());
+            } catch (Exception e) {
+                errors.computeIfAbsent(e.getClass().getSimpleName(), type -> new LongAdder()).increment();
+                log.debug("Operation failed", e);
+            }
+            operations.increment();
+            recorder.recordValue(Math.min(Math.max(System.nanoTime() - due, 0), HIGHEST_TRACKABLE_NANOS));
+        }
+    }
+
+    private MyObjectPojo nextRecord() {
+        var random = ThreadLocalRandom.current();
+        var sent = Math.min(nextKey.get(), config.getKeyCardinality());
+        long key;
+        if (sent > 0 && (sent == config.getKeyCardinality() || random.nextDouble() < config.getDuplicateRatio())) {
+            key = random.nextLong(sent);
+        } else {
+            key = nextKey.getAndIncrement() % config.getKeyCardinality();
+        }
+        var now = LocalDateTime.now();
+        return MyObjectPojo.builder()
+                .hash("L" + Long.toString(key, 36))
+                .column1(Integer.toString(random.nextInt(Integer.MAX_VALUE), 36))
+                .column2(Thread.currentThread().getName())
+                .created(LocalDate.now())
+                .updated(now)
+                .build();
+    }
+
+    private LoadReport report(final Histogram latencies, final long elapsedNanos,
+                              final long operationCount, final long recordCount,
+                              final Map<String, Long> errorsBefore) {
+        return LoadReport.builder()
+                .strategy(config.getStrategy())
+                .elapsed(Duration.ofNanos(elapsedNanos))
+                .operations(operationCount)
+                .records(recordCount)
+                .errors(errorCounts(errorsBefore))
+                .p50Nanos(latencies.getValueAtPercentile(50))
+                .p99Nanos(latencies.getValueAtPercentile(99))
+                .p999Nanos(latencies.getValueAtPercentile(99.9))
+                .maxNanos(latencies.getMaxValue())
+                .build();
+    }
+
+    private Map<String, Long> errorCounts(final Map<String, Long> before) {
+        var errorCounts = new TreeMap<String, Long>();
+        errors.forEach((type, count) -> {
+            var since = count.sum() - before.getOrDefault(type, 0L);
+            if (since > 0) {
+                errorCounts.put(type, since);
+            }
+        });
+        return errorCounts;
+    }
+}
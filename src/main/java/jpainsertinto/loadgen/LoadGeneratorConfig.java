@@ -0,0 +1,192 @@
+package jpainsertinto.loadgen;
+
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import lombok.Builder;
+import lombok.ToString;
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Settings for a {@link LoadGenerator} run, built from the command line by {@link #fromArgs}.
+ */
+@Builder
+@Value
+@ToString(exclude = "password")
+public class LoadGeneratorConfig {
+
+    public final static String USAGE = "Usage: jpainsertinto.Main [--option=value ...]\n"
+            + "  --jdbc-url=URL           postgres to load, an embedded one is started when not given\n"
+            + "  --user=NAME              default postgres\n"
+            + "  --password=SECRET\n"
+            + "  --strategy=NAME          one of " + Arrays.toString(LoadStrategy.values()) + "\n"
+            + "  --rate=N                 records per second over all workers, 0 for as fast as they go\n"
+            + "  --concurrency=N          worker threads, also the pool size\n"
+            + "  --duration=TIME          e.g. 30s, 10m or PT1H\n"
+            + "  --batch-size=N           records per operation, at most " + MyObjectJpaDaoImpl.MAX_BATCH_SIZE
+            + " for the upsert_all ones\n"
+            + "  --key-cardinality=N      distinct hashes the records are spread over\n"
+            + "  --duplicate-ratio=R      share of records that reuse a hash already sent, 0 to 1\n"
+            + "  --report-interval=TIME   how often progress is printed\n"
+            + "  --report-file=PATH       where the final summary is written as well";
+
+    /** Null to start an embedded postgres for the run */
+    String jdbcUrl;
+
+    @Builder.Default
+    String user = "postgres";
+
+    String password;
+
+    @Builder.Default
+    LoadStrategy strategy = LoadStrategy.UPSERT_ALL_DO_UPDATE;
+
+    /** Records per second over all the workers, 0 for no limit */
+    @Builder.Default
+    long rate = 1_000;
+
+    @Builder.Default
+    int concurrency = 4;
+
+    @Builder.Default
+    Duration duration = Duration.ofMinutes(1);
+
+    @Builder.Default
+    int batchSize = 1;
+
+    @Builder.Default
+    long keyCardinality = 1_000_000;
+
+    /** Share of the records that reuse a hash already sent rather than take the next new one */
+    @Builder.Default
+    double duplicateRatio = 0.1;
+
+    @Builder.Default
+    Duration reportInterval = Duration.ofSeconds(5);
+
+    /** Null to only log the summary */
+    Path reportFile;
+
+    /**
+     * Options are given as --name=value or --name value, anything not given keeps its default.
+     *
+     * @throws IllegalArgumentException for an unknown option or a value that doesn't parse
+     */
+    public static LoadGeneratorConfig fromArgs(final String... args) {
+        var builder = LoadGeneratorConfig.builder();
+        for (var i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+            var separator = arg.indexOf('=');
+            String name;
+            String value;
+            if (separator > 0) {
+                name = arg.substring(2, separator);
+                value = arg.substring(separator + 1);
+            } else if (i + 1 < args.length) {
+                name = arg.substring(2);
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("No value for " + arg);
+            }
+            try {
+                set(builder, name, value);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Bad value " + value + " for --" + name + ": " + e.getMessage(), e);
+            }
+        }
+        var config = builder.build();
+        config.validate();
+        return config;
+    }
+
+    private static void set(final LoadGeneratorConfigBuilder builder, final String name, final String value) {
+        switch (name) {
+            case "jdbc-url":
+                builder.jdbcUrl(value);
+                break;
+            case "user":
+                builder.user(value);
+                break;
+            case "password":
+                builder.password(value);
+                break;
+            case "strategy":
+                builder.strategy(LoadStrategy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_')));
+                break;
+            case "rate":
+                builder.rate(Long.parseLong(value));
+                break;
+            case "concurrency":
+                builder.concurrency(Integer.parseInt(value));
+                break;
+            case "duration":
+                builder.duration(parseDuration(value));
+                break;
+            case "batch-size":
+                builder.batchSize(Integer.parseInt(value));
+                break;
+            case "key-cardinality":
+                builder.keyCardinality(Long.parseLong(value));
+                break;
+            case "duplicate-ratio":
+                builder.duplicateRatio(Double.parseDouble(value));
+                break;
+            case "report-interval":
+                builder.reportInterval(parseDuration(value));
+                break;
+            case "report-file":
+                builder.reportFile(Path.of(value));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option");
+        }
+    }
+
+    /**
+     * ISO-8601 or a number followed by ms, s, m or h.
+     */
+    static Duration parseDuration(final String value) {
+        var text = value.trim().toLowerCase(Locale.ROOT);
+        if (text.startsWith("pt")) {
+            return Duration.parse(text);
+        }
+        if (text.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(text.substring(0, text.length() - 2)));
+        }
+        var amount = Long.parseLong(text.substring(0, text.length() - 1));
+        switch (text.charAt(text.length() - 1)) {
+            case 's':
+                return Duration.ofSeconds(amount);
+            case 'm':
+                return Duration.ofMinutes(amount);
+            case 'h':
+                return Duration.ofHours(amount);
+            default:
+                throw new IllegalArgumentException("no unit");
+        }
+    }
+
+    void validate() {
+        check(rate >= 0, "--rate can't be negative");
+        check(concurrency > 0, "--concurrency has to be at least 1");
+        check(batchSize > 0, "--batch-size has to be at least 1");
+        check(batchSize <= strategy.getMaxBatchSize(),
+                "--batch-size can't be more than " + strategy.getMaxBatchSize() + " for " + strategy);
+        check(keyCardinality > 0, "--key-cardinality has to be at least 1");
+        check(duplicateRatio >= 0 && duplicateRatio <= 1, "--duplicate-ratio has to be between 0 and 1");
+        check(!duration.isNegative() && !duration.isZero(), "--duration has to be positive");
+        check(!reportInterval.isNegative() && !reportInterval.isZero(), "--report-interval has to be positive");
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package jpainsertinto.loadgen;
+
+import lombok.Builder;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link LoadGenerator} run achieved, either over one report interval or the whole run.
+ * Latencies are taken from when each operation was due to start at the configured rate rather than when it did,
+ * so time spent queueing behind a slow operation counts against the db instead of being hidden by it.
+ */
+@Builder
+@Value
+public class LoadReport {
+
+    LoadStrategy strategy;
+
+    Duration elapsed;
+
+    long operations;
+
+    long records;
+
+    /** Failed operations by exception class */
+    Map<String, Long> errors;
+
+    long p50Nanos;
+
+    long p99Nanos;
+
+    long p999Nanos;
+
+    long maxNanos;
+
+    public long getErrorCount() {
+        return errors.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public double getOperationsPerSecond() {
+        return perSecond(operations);
+    }
+
+    public double getRecordsPerSecond() {
+        return perSecond(records);
+    }
+
+    private double perSecond(final long count) {
+        return elapsed.isZero() ? 0 : count * 1e9 / elapsed.toNanos();
+    }
+
+    /**
+     * One line for the progress reports.
+     */
+    public String toLine() {
+        return String.format("%s %6.1fs ops/s=%.1f records/s=%.1f p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms"
+                        + " errors=%d",
+                strategy, elapsed.toMillis() / 1e3, getOperationsPerSecond(), getRecordsPerSecond(),
+                millis(p50Nanos), millis(p99Nanos), millis(p999Nanos), millis(maxNanos), getErrorCount());
+    }
+
+    /**
+     * The multi-line summary written at the end of a run.
+     */
+    public String toSummary() {
+        var summary = new StringBuilder()
+                .append("strategy     ").append(strategy).append('\n')
+                .append("elapsed      ").append(elapsed).append('\n')
+                .append("operations   ").append(operations).append('\n')
+                .append("records      ").append(records).append('\n')
+                .append(String.format("ops/s        %.1f%n", getOperationsPerSecond()))
+                .append(String.format("records/s    %.1f%n", getRecordsPerSecond()))
+                .append(String.format("p50          %.3f ms%n", millis(p50Nanos)))
+                .append(String.format("p99          %.3f ms%n", millis(p99Nanos)))
+                .append(String.format("p999         %.3f ms%n", millis(p999Nanos)))
+                .append(String.format("max          %.3f ms%n", millis(maxNanos)))
+                .append("errors       ").append(getErrorCount()).append('\n');
+        errors.forEach((type, count) -> summary.append("  ").append(type).append(' ').append(count).append('\n'));
+        return summary.toString();
+    }
+
+    @SneakyThrows
+    public void writeTo(final Path file) {
+        Files.writeString(file, toSummary(), StandardCharsets.UTF_8);
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,65 @@
+package jpainsertinto.loadgen;
+
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.MyObjectJpaDao;
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import jpainsertinto.jpa.RetryPolicy;
+import jpainsertinto.model.MyObjectPojo;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The dao write a load generator operation is made of. The single record writes go through a batch one record at
+ * a time, the others write the whole batch at once, the upsertAll ones in a single statement so a batch can't be
+ * larger than {@link MyObjectJpaDaoImpl#MAX_BATCH_SIZE}.
+ */
+public enum LoadStrategy {
+
+    INSERT_USING_QUERY((dao, rows) -> rows.forEach(dao::insertUsingQuery)),
+    NATIVE_QUERY_DO_NOTHING((dao, rows) -> rows.forEach(dao::insertUsingNativeQueryWithDoNothing)),
+    NATIVE_QUERY_DO_UPDATE((dao, rows) -> rows.forEach(dao::insertUsingNativeQueryWithDoUpdate)),
+    NATIVE_QUERY_IF_CHANGED((dao, rows) -> rows.forEach(row ->
+            dao.insertUsingNativeQuery(row, ConflictMode.DO_UPDATE_IF_CHANGED))),
+    MERGE((dao, rows) -> rows.forEach(dao::insertUsingMerge)),
+    FIND_AND_MERGE((dao, rows) -> rows.forEach(dao::insertUsingFindAndMerge)),
+    NATIVE_JDBC((dao, rows) -> rows.forEach(dao::insertUsingNativeJDBC)),
+    UPSERT_ALL_DO_NOTHING(MyObjectJpaDaoImpl.MAX_BATCH_SIZE,
+            (dao, rows) -> dao.upsertAll(rows, ConflictMode.DO_NOTHING, rows.size())),
+    UPSERT_ALL_DO_UPDATE(MyObjectJpaDaoImpl.MAX_BATCH_SIZE,
+            (dao, rows) -> dao.upsertAll(rows, ConflictMode.DO_UPDATE, rows.size())),
+    UPSERT_ALL_IF_CHANGED(MyObjectJpaDaoImpl.MAX_BATCH_SIZE,
+            (dao, rows) -> dao.upsertAll(rows, ConflictMode.DO_UPDATE_IF_CHANGED, rows.size())),
+    UPSERT_ALL_WITH_RETRY_DO_UPDATE(MyObjectJpaDaoImpl.MAX_BATCH_SIZE,
+            (dao, rows) -> dao.upsertAllWithRetry(rows, ConflictMode.DO_UPDATE, rows.size(),
+                    RetryPolicy.builder().build())),
+    COPY_DO_NOTHING((dao, rows) -> dao.insertUsingCopy(rows.iterator(), ConflictMode.DO_NOTHING)),
+    COPY_DO_UPDATE((dao, rows) -> dao.insertUsingCopy(rows.iterator(), ConflictMode.DO_UPDATE)),
+
+    /** upsertAll DO_UPDATE through an {@link jpainsertinto.jpa.AdaptiveMyObjectJpaDao} */
+    ADAPTIVE_DO_UPDATE(MyObjectJpaDaoImpl.MAX_BATCH_SIZE,
+            (dao, rows) -> dao.upsertAll(rows, ConflictMode.DO_UPDATE, rows.size()));
+
+    private final int maxBatchSize;
+    private final BiConsumer<MyObjectJpaDao, List<MyObjectPojo>> write;
+
+    LoadStrategy(final BiConsumer<MyObjectJpaDao, List<MyObjectPojo>> write) {
+        this(Integer.MAX_VALUE, write);
+    }
+
+    LoadStrategy(final int maxBatchSize, final BiConsumer<MyObjectJpaDao, List<MyObjectPojo>> write) {
+        this.maxBatchSize = maxBatchSize;
+        this.write = write;
+    }
+
+    /**
+     * The largest batch the strategy can write in one operation.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void write(final MyObjectJpaDao myObjectDao, final List<MyObjectPojo> myObjectPojos) {
+        write.accept(myObjectDao, myObjectPojos);
+    }
+}
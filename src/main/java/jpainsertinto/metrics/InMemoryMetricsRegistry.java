@@ -0,0 +1,47 @@
+package jpainsertinto.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the metrics in memory for whoever wants to read them, e.g. tests or a periodic report.
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongCounter> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public LatencyHistogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, newName -> {
+            var histogram = new LatencyHistogram(newName);
+            registered(newName, histogram);
+            return histogram;
+        });
+    }
+
+    @Override
+    public LongCounter counter(final String name) {
+        return counters.computeIfAbsent(name, newName -> {
+            var counter = new LongCounter(newName);
+            registered(newName, counter);
+            return counter;
+        });
+    }
+
+    public Collection<LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableCollection(histograms.values());
+    }
+
+    public Collection<LongCounter> getCounters() {
+        return Collections.unmodifiableCollection(counters.values());
+    }
+
+    /**
+     * Called once for every new metric, lets subclasses publish it somewhere.
+     */
+    protected void registered(final String name, final Object metric) {
+    }
+}
@@ -0,0 +1,40 @@
+package jpainsertinto.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes every metric as an MXBean named {@code <domain>:type=Histogram|Counter,name=<name>}.
+ */
+@Slf4j
+public class JmxMetricsRegistry extends InMemoryMetricsRegistry {
+
+    private final MBeanServer mBeanServer;
+    private final String domain;
+
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer(), "jpainsertinto");
+    }
+
+    public JmxMetricsRegistry(final MBeanServer mBeanServer, final String domain) {
+        this.mBeanServer = mBeanServer;
+        this.domain = domain;
+    }
+
+    @Override
+    protected void registered(final String name, final Object metric) {
+        var type = metric instanceof LatencyHistogram ? "Histogram" : "Counter";
+        try {
+            var objectName = new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(metric, objectName);
+            }
+        } catch (JMException e) {
+            log.warn("could not register {} {} with JMX", type, name, e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package jpainsertinto.metrics;
+
+import org.HdrHistogram.ConcurrentHistogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies in nanoseconds, kept in an HdrHistogram so recording is a couple of array increments and never
+ * allocates. Values above a minute are clamped to a minute.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String name;
+    private final ConcurrentHistogram histogram = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 2);
+
+    public LatencyHistogram(final String name) {
+        this.name = name;
+    }
+
+    public void record(final long nanos) {
+        histogram.recordValue(Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_NANOS));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getTotalCount();
+    }
+
+    @Override
+    public double getMeanNanos() {
+        return histogram.getMean();
+    }
+
+    @Override
+    public long getP50Nanos() {
+        return histogram.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP99Nanos() {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999Nanos() {
+        return histogram.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return histogram.getMaxValue();
+    }
+
+    @Override
+    public void reset() {
+        histogram.reset();
+    }
+}
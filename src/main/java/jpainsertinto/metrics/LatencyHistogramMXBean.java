@@ -0,0 +1,19 @@
+package jpainsertinto.metrics;
+
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanNanos();
+
+    long getP50Nanos();
+
+    long getP99Nanos();
+
+    long getP999Nanos();
+
+    long getMaxNanos();
+
+    void reset();
+
+}
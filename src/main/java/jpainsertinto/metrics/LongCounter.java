@@ -0,0 +1,33 @@
+package jpainsertinto.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that many threads bump at once without contending on a single field.
+ */
+public class LongCounter implements LongCounterMXBean {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    public LongCounter(final String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(final long value) {
+        count.add(value);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
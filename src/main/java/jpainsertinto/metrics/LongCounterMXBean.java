@@ -0,0 +1,7 @@
+package jpainsertinto.metrics;
+
+public interface LongCounterMXBean {
+
+    long getCount();
+
+}
@@ -0,0 +1,14 @@
+package jpainsertinto.metrics;
+
+/**
+ * Where the dao's latency histograms and counters are kept and published.
+ * Asking for the same name twice returns the same metric, callers look their metrics up once and hold on to
+ * them so the hot path never goes through the registry.
+ */
+public interface MetricsRegistry {
+
+    LatencyHistogram histogram(String name);
+
+    LongCounter counter(String name);
+
+}
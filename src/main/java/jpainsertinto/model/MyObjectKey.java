@@ -0,0 +1,29 @@
+package jpainsertinto.model;
+
+import lombok.ToString;
+import lombok.Value;
+
+import java.math.BigInteger;
+
+/**
+ * Just the ID and HASH of a row, for reads that need nothing else.
+ */
+@Value
+@ToString
+public class MyObjectKey {
+
+    long id;
+    String hash;
+
+    public MyObjectKey(final long id, final String hash) {
+        this.id = id;
+        this.hash = hash;
+    }
+
+    /**
+     * For JPQL constructor expressions, where the entity's ID is a BigInteger.
+     */
+    public MyObjectKey(final BigInteger id, final String hash) {
+        this(id.longValue(), hash);
+    }
+}
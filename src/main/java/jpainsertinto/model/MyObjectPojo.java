@@ -1,15 +1,20 @@
 package jpainsertinto.model;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.ToString;
 import lombok.Value;
 
+import java.math.BigInteger;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Date;
 
 
 @Builder
 @Value
+@AllArgsConstructor
 @ToString
 public class MyObjectPojo {
 
@@ -20,4 +25,20 @@ public class MyObjectPojo {
     public LocalDate created;
     public LocalDateTime updated;
 
-}
\ No newline at end of file
+    /**
+     * For JPQL constructor expressions, which hand over the attributes in the types the entity maps them to.
+     */
+    public MyObjectPojo(final BigInteger id,
+                        final String hash,
+                        final String column1,
+                        final String column2,
+                        final Date created,
+                        final Date updated) {
+        this(id == null ? 0 : id.longValue(),
+                hash,
+                column1,
+                column2,
+                created == null ? null : new java.sql.Date(created.getTime()).toLocalDate(),
+                updated == null ? null : new Timestamp(updated.getTime()).toLocalDateTime());
+    }
+}
@@ -0,0 +1,15 @@
+-- Ids are handed out in blocks of 50 (allocationSize on MyObjectJpa, PooledIdAllocator for native code),
+-- a single nextval reserves the 50 ids up to and including the value it returns.
+ALTER TABLE TEST_OBJECTS ALTER COLUMN ID TYPE BIGINT;
+
+ALTER SEQUENCE test_objects_id_pk_seq INCREMENT BY 50;
+
+-- start the first block above anything either sequence has handed out so far
+SELECT setval('test_objects_id_pk_seq', GREATEST(
+        (SELECT COALESCE(MAX(ID), 1) FROM TEST_OBJECTS),
+        (SELECT last_value FROM test_objects_id_pk_seq)));
+
+-- native inserts that don't bring an id take one from the same sequence, so they can't collide with a block
+ALTER TABLE TEST_OBJECTS ALTER COLUMN ID SET DEFAULT nextval('test_objects_id_pk_seq');
+
+DROP SEQUENCE test_objects_id_seq;
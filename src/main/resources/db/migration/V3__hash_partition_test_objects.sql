@@ -0,0 +1,32 @@
+-- TEST_OBJECTS is split into 16 partitions by HASH so that index maintenance and vacuum work on one partition's
+-- worth of rows at a time. UNIQUE (HASH) contains the partition key so it stays a global constraint and
+-- ON CONFLICT (HASH) behaves as before.
+-- A primary key would have to contain HASH as well, which is nullable, so ID gets a plain index instead and
+-- relies on test_objects_id_pk_seq for its uniqueness as the native inserts already do.
+ALTER TABLE TEST_OBJECTS RENAME TO TEST_OBJECTS_UNPARTITIONED;
+
+CREATE TABLE TEST_OBJECTS (
+    ID BIGINT NOT NULL DEFAULT nextval('test_objects_id_pk_seq'),
+    HASH VARCHAR(15),
+    COLUMN_1 VARCHAR(15),
+    COLUMN_2 VARCHAR(15),
+    created DATE,
+    updated TIME
+) PARTITION BY HASH (HASH);
+
+DO $$
+BEGIN
+    FOR i IN 0..15 LOOP
+        EXECUTE format('CREATE TABLE TEST_OBJECTS_P%s PARTITION OF TEST_OBJECTS'
+                       ' FOR VALUES WITH (MODULUS 16, REMAINDER %s)', lpad(i::text, 2, '0'), i);
+    END LOOP;
+END $$;
+
+INSERT INTO TEST_OBJECTS ( ID, HASH, COLUMN_1, COLUMN_2, created, updated )
+SELECT ID, HASH, COLUMN_1, COLUMN_2, created, updated FROM TEST_OBJECTS_UNPARTITIONED;
+
+DROP TABLE TEST_OBJECTS_UNPARTITIONED;
+
+-- created after the copy, and named as before now that the old table's are gone
+ALTER TABLE TEST_OBJECTS ADD CONSTRAINT test_objects_hash_key UNIQUE (HASH);
+CREATE INDEX test_objects_id_idx ON TEST_OBJECTS (ID);
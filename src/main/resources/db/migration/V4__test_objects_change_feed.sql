@@ -0,0 +1,19 @@
+-- UPDATED is only a time of day so it can't say what changed since when. Every row instead records the id of the
+-- transaction that last inserted or updated it. A reader that takes the oldest transaction still running as its
+-- watermark knows every change below it is committed (or rolled back) and visible, so polling from one watermark
+-- to the next never misses a change that committed late.
+-- A DO_UPDATE_IF_CHANGED upsert that leaves a row alone doesn't fire the trigger, so it isn't a change either.
+ALTER TABLE TEST_OBJECTS ADD COLUMN CHANGE_XID BIGINT NOT NULL DEFAULT (pg_current_xact_id()::text::bigint);
+
+CREATE FUNCTION test_objects_set_change_xid() RETURNS trigger AS $$
+BEGIN
+    NEW.CHANGE_XID := pg_current_xact_id()::text::bigint;
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER test_objects_change_xid
+    BEFORE INSERT OR UPDATE ON TEST_OBJECTS
+    FOR EACH ROW EXECUTE FUNCTION test_objects_set_change_xid();
+
+CREATE INDEX test_objects_change_xid_idx ON TEST_OBJECTS (CHANGE_XID, ID);
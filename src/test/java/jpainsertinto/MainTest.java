@@ -0,0 +1,73 @@
+package jpainsertinto;
+
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import jpainsertinto.loadgen.LoadGeneratorConfig;
+import jpainsertinto.loadgen.LoadStrategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MainTest {
+
+    @Test
+    void testParseArgs() {
+
+        var config = LoadGeneratorConfig.fromArgs("--strategy=copy-do-update", "--rate", "250",
+                "--duration=90s", "--report-interval=500ms", "--duplicate-ratio=0.5", "--report-file=out.txt");
+
+        assertThat(config.getStrategy()).isEqualTo(LoadStrategy.COPY_DO_UPDATE);
+        assertThat(config.getRate()).isEqualTo(250);
+        assertThat(config.getDuration()).isEqualTo(Duration.ofSeconds(90));
+        assertThat(config.getReportInterval()).isEqualTo(Duration.ofMillis(500));
+        assertThat(config.getDuplicateRatio()).isEqualTo(0.5);
+        assertThat(config.getReportFile()).isEqualTo(Path.of("out.txt"));
+        assertThat(config.getConcurrency()).isEqualTo(4);
+        assertThat(config.getJdbcUrl()).isNull();
+
+        assertThatThrownBy(() -> LoadGeneratorConfig.fromArgs("--speed=1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> LoadGeneratorConfig.fromArgs("--duplicate-ratio=2"))
+                .isInstanceOf(IllegalArgumentException.class);
+        // one statement per operation can only take so many rows, COPY can take any number
+        assertThatThrownBy(() -> LoadGeneratorConfig.fromArgs("--strategy=upsert-all-do-update",
+                "--batch-size=" + (MyObjectJpaDaoImpl.MAX_BATCH_SIZE + 1)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(LoadGeneratorConfig.fromArgs("--strategy=copy-do-update",
+                "--batch-size=" + (MyObjectJpaDaoImpl.MAX_BATCH_SIZE + 1)).getBatchSize())
+                .isEqualTo(MyObjectJpaDaoImpl.MAX_BATCH_SIZE + 1);
+    }
+
+    /**
+     * A short run against an embedded postgres keeps to the offered rate and writes its summary
+     */
+    @Test
+    void testShortRunAgainstEmbeddedPostgres(@TempDir final Path tempDir) throws Exception {
+
+        var reportFile = tempDir.resolve("summary.txt");
+        var config = LoadGeneratorConfig.builder()
+                .strategy(LoadStrategy.UPSERT_ALL_DO_UPDATE)
+                .rate(1_000)
+                .batchSize(10)
+                .concurrency(2)
+                .keyCardinality(500)
+                .duplicateRatio(0.3)
+                .duration(Duration.ofSeconds(3))
+                .reportInterval(Duration.ofSeconds(1))
+                .reportFile(reportFile)
+                .build();
+
+        var report = Main.run(config);
+
+        assertThat(report.getErrorCount()).isZero();
+        assertThat(report.getOperations()).isBetween(200L, 300L);
+        assertThat(report.getRecords()).isEqualTo(report.getOperations() * 10);
+        assertThat(report.getP50Nanos()).isPositive();
+        assertThat(Files.readString(reportFile)).contains("records/s").contains("UPSERT_ALL_DO_UPDATE");
+    }
+}
@@ -1,9 +1,31 @@
 package jpainsertinto;
 
-import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jpainsertinto.ingest.PartitionedIngestionExecutor;
+import jpainsertinto.ingest.WriteBehindBuffer;
+import jpainsertinto.jpa.AdaptiveMyObjectJpaDao;
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.ConnectionPoolConfig;
+import jpainsertinto.jpa.ConnectionPools;
+import jpainsertinto.jpa.ContentDigestCache;
+import jpainsertinto.jpa.DaoMetrics;
+import jpainsertinto.jpa.HashBloomFilter;
+import jpainsertinto.jpa.HashKeyedCache;
+import jpainsertinto.jpa.InstrumentedMyObjectJpaDao;
+import jpainsertinto.jpa.PooledIdAllocator;
+import jpainsertinto.jpa.PurgeConfig;
+import jpainsertinto.jpa.RetryPolicy;
+import jpainsertinto.jpa.SchemaRoutingMyObjectJpaDao;
+import jpainsertinto.jpa.UpsertBatchResult;
+import jpainsertinto.jpa.UpsertOutcome;
+import jpainsertinto.jpa.UpsertRowResult;
 import jpainsertinto.jpa.MyObjectJpa;
+import jpainsertinto.jpa.MyObjectPage;
+import jpainsertinto.jpa.MyObjectSnapshot;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.persistence.descriptors.changetracking.ChangeTracker;
+import org.eclipse.persistence.jpa.JpaHelper;
 import org.flywaydb.core.Flyway;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -11,23 +33,49 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import jpainsertinto.jpa.MyObjectJpaDao;
 import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import jpainsertinto.metrics.InMemoryMetricsRegistry;
+import jpainsertinto.model.MyObjectKey;
 import jpainsertinto.model.MyObjectPojo;
 
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
 
 @Slf4j
 public class TestMyObjectDaoITest {
 
     private static EntityManagerFactory emf;
+    private static DataSource pooledDataSource;
     private static MyObjectJpaDao myObjectDao;
     private static final String SCHEMA_NAME = "public";
 
@@ -40,6 +88,7 @@ public class TestMyObjectDaoITest {
     private static final LocalDate CREATED2 = CREATED1.plusDays(1L);
     private static final LocalDateTime UPDATED1 = LocalDateTime.now();
     private static final LocalDateTime UPDATED2 = UPDATED1.plusSeconds(1);
+    private static final long BYTES_PER_ROW_LIMIT = 1_500;
     private static MyObjectPojo myObjectPojo1;
     private static MyObjectPojo myObjectPojo2;
 
@@ -74,20 +123,20 @@ public class TestMyObjectDaoITest {
                 .load()
                 .migrate();
 
-        var jpaProps = new Properties();
-        jpaProps.putAll(Map.of(
-                "javax.persistence.jdbc.driver", "org.postgresql.Driver",
-                "javax.persistence.jdbc.url", "jdbc:postgresql://localhost:" + port + "/postgres",
-                "javax.persistence.jdbc.user", "postgres",
+        // one pool shared by EclipseLink and the native JDBC paths
+        pooledDataSource = ConnectionPools.create(ConnectionPoolConfig.builder()
+                .jdbcUrl("jdbc:postgresql://localhost:" + port + "/postgres")
+                .user("postgres")
+                .build());
+
+        emf = ConnectionPools.createEntityManagerFactory(pooledDataSource, Map.of(
                 "eclipselink.ddl-generation", "none",
                 "eclipselink.ddl-generation.output-mode", "database",
                 "eclipselink.logging.level", "FINE",
                 "eclipselink.logging.level.sql", "FINE",
                 "eclipselink.logging.parameters", "true"
         ));
-
-        emf = Persistence.createEntityManagerFactory("test_objects_pu", jpaProps);
-        myObjectDao = new MyObjectJpaDaoImpl(emf, "org.postgresql.Driver", "jdbc:postgresql://localhost:" + port + "/postgres", "postgres");
+        myObjectDao = new MyObjectJpaDaoImpl(emf, pooledDataSource);
     }
 
     @BeforeEach
@@ -289,6 +338,1364 @@ public class TestMyObjectDaoITest {
 
     }
 
+    /**
+     * With a warmed hash filter, find and merge skips the lookup for new hashes and still updates existing ones
+     */
+    @Test
+    void testUsingFindAndMergeWithHashFilter() {
+
+        myObjectDao.upsertAll(List.of(myObjectPojo1, otherPojo("def456")), ConflictMode.DO_NOTHING);
+
+        var hashFilter = new HashBloomFilter(1_000, 0.01);
+        var filteredDao = MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .hashFilter(hashFilter)
+                .build();
+
+        assertThat(filteredDao.warmUpHashFilter()).isEqualTo(2);
+
+        filteredDao.insertUsingFindAndMerge(otherPojo("ghi789"));
+        filteredDao.insertUsingFindAndMerge(myObjectPojo2);
+
+        // written behind the filter's back, falls back to the lookup
+        myObjectDao.insertUsingNativeJDBC(otherPojo("jkl012"));
+        filteredDao.insertUsingFindAndMerge(otherPojo("jkl012"));
+
+        assertThat(hashFilter.getNegativeLookups()).isEqualTo(2);
+        assertThat(hashFilter.mightContain("ghi789")).isTrue();
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+        assertThat(results).hasSize(4);
+        checkResultsStage(List.of(findByHash(results, HASH)), myObjectPojo2);
+
+    }
+
+    /**
+     * The entities are woven at build time, so a managed one reports its own changes and commits only what changed
+     */
+    @Test
+    void testStaticWeavingChangeTracking() {
+
+        assertThat(ChangeTracker.class.isAssignableFrom(MyObjectJpa.class)).isTrue();
+        emf.createEntityManager().close();
+        var descriptor = JpaHelper.getServerSession(emf).getDescriptor(MyObjectJpa.class);
+        assertThat(descriptor.getObjectChangePolicy().isAttributeChangeTrackingPolicy()).isTrue();
+
+        myObjectDao.upsertAll(List.of(myObjectPojo1, otherPojo("def456")), ConflictMode.DO_NOTHING);
+
+        var em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            var found = em.createQuery("SELECT P FROM TEST_OBJECTS P WHERE P.hash = :hash", MyObjectJpa.class)
+                    .setParameter("hash", HASH)
+                    .getSingleResult();
+            assertThat(((ChangeTracker) found)._persistence_getPropertyChangeListener()).isNotNull();
+            found.setColumn1(VALUE3);
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+        assertThat(findByHash(results, HASH).getColumn1()).isEqualTo(VALUE3);
+        assertThat(findByHash(results, "def456").getColumn1()).isEqualTo(otherPojo("def456").getColumn1());
+
+    }
+
+    /**
+     * Reads by hash are served from the cache until a write to that hash, through any path, drops the entry
+     */
+    @Test
+    void testFindByHashWithCache() {
+
+        var hashCache = new HashKeyedCache(2, Duration.ofMinutes(1));
+        var cachedDao = MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .hashCache(hashCache)
+                .build();
+
+        assertThat(cachedDao.findByHash(HASH)).isEmpty();
+
+        cachedDao.insertUsingNativeQueryWithDoNothing(myObjectPojo1);
+
+        assertThat(cachedDao.findByHash(HASH)).hasValueSatisfying(found ->
+                assertThat(found.getColumn1()).isEqualTo(VALUE1));
+        assertThat(cachedDao.findByHash(HASH)).isPresent();
+        assertThat(hashCache.getHitCount()).isEqualTo(1);
+
+        cachedDao.upsertAll(List.of(myObjectPojo2), ConflictMode.DO_UPDATE);
+
+        assertThat(cachedDao.findByHash(HASH)).hasValueSatisfying(found ->
+                assertThat(found.getColumn1()).isEqualTo(VALUE3));
+
+        cachedDao.insertUsingCopy(List.of(myObjectPojo1, otherPojo("def456"), otherPojo("ghi789")).iterator(),
+                ConflictMode.DO_UPDATE);
+
+        assertThat(cachedDao.findByHash(HASH)).hasValueSatisfying(found ->
+                assertThat(found.getColumn1()).isEqualTo(VALUE1));
+        assertThat(cachedDao.findByHash("def456")).isPresent();
+        assertThat(cachedDao.findByHash("ghi789")).isPresent();
+
+        assertThat(hashCache.getSize()).isLessThanOrEqualTo(2);
+        assertThat(hashCache.getEvictionCount()).isPositive();
+        assertThat(hashCache.getMissCount()).isEqualTo(6);
+
+    }
+
+    /**
+     * Many threads using the native JDBC path at once all borrow their connections from the one pool
+     */
+    @Test
+    @SneakyThrows
+    void testUsingNativeJDBCConcurrently() {
+
+        var executor = Executors.newFixedThreadPool(8);
+        for (var i = 0; i < 400; i++) {
+            var hash = "hash" + i;
+            executor.execute(() -> myObjectDao.insertUsingNativeJDBC(otherPojo(hash)));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+        assertThat(myObjectDao.getAllUsingNativeJDBC()).hasSize(400);
+
+    }
+
+    /**
+     * Ids handed out in blocks by the allocator, by EclipseLink's preallocation and by the ID column default
+     * all come from the same sequence and never overlap
+     */
+    @Test
+    @SneakyThrows
+    void testPooledIdAllocation() {
+
+        var idAllocator = new PooledIdAllocator(pooledDataSource);
+        var allocatedIds = Collections.synchronizedSet(new HashSet<Long>());
+
+        var executor = Executors.newFixedThreadPool(4);
+        for (var i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                for (var j = 0; j < 500; j++) {
+                    assertThat(allocatedIds.add(idAllocator.nextId())).isTrue();
+                }
+            });
+        }
+        for (var i = 0; i < 60; i++) {
+            myObjectDao.insertUsingQuery(otherPojo("jpa" + i));
+            myObjectDao.insertUsingNativeJDBC(otherPojo("native" + i));
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+        var rowIds = new HashSet<Long>();
+        myObjectDao.forEach(myObjectPojo -> rowIds.add(myObjectPojo.getId()));
+
+        assertThat(allocatedIds).hasSize(2_000);
+        assertThat(rowIds).hasSize(120)
+                .allMatch(id -> id > 0)
+                .doesNotContainAnyElementsOf(allocatedIds);
+
+    }
+
+    /**
+     * Uses multi-row INSERT INTO ... ON CONFLICT DO NOTHING statements for a whole batch
+     * The second batch only adds the new hash, the record with the existing hash is skipped
+     */
+    @Test
+    void testUpsertAllWithDoNothing() {
+
+        var result1 = myObjectDao.upsertAll(List.of(myObjectPojo1, otherPojo("def456"), otherPojo("ghi789")),
+                ConflictMode.DO_NOTHING, 2);
+
+        assertThat(result1.getRowsSubmitted()).isEqualTo(3);
+        assertThat(result1.getRowsAffected()).isEqualTo(3);
+        assertThat(result1.getStatementsExecuted()).isEqualTo(statementsFor(List.of(HASH, "def456", "ghi789"), 2));
+
+        var result2 = myObjectDao.upsertAll(List.of(myObjectPojo2, otherPojo("jkl012")),
+                ConflictMode.DO_NOTHING, 2);
+
+        assertThat(result2.getRowsAffected()).isEqualTo(1);
+        assertThat(result2.getRowsSkipped()).isEqualTo(1);
+        assertThat(result2.getRows()).extracting(UpsertRowResult::getHash, UpsertRowResult::getOutcome)
+                .containsExactly(tuple(HASH, UpsertOutcome.SKIPPED), tuple("jkl012", UpsertOutcome.INSERTED));
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+
+        log.info("*****************");
+        log.info("results: {}", results.toString());
+        log.info("*****************");
+
+        assertThat(results).hasSize(4);
+        checkResultsStage(List.of(findByHash(results, HASH)), myObjectPojo1);
+
+    }
+
+    /**
+     * Uses multi-row INSERT INTO ... ON CONFLICT DO UPDATE statements for a whole batch
+     * Duplicated hashes inside one batch are collapsed so the last record for a hash wins
+     */
+    @Test
+    void testUpsertAllWithDoUpdate() {
+
+        var result1 = myObjectDao.upsertAll(List.of(myObjectPojo1, otherPojo("def456")),
+                ConflictMode.DO_UPDATE);
+
+        assertThat(result1.getRowsAffected()).isEqualTo(2);
+        assertThat(result1.getStatementsExecuted()).isEqualTo(statementsFor(List.of(HASH, "def456"), 500));
+
+        var result2 = myObjectDao.upsertAll(List.of(myObjectPojo1, otherPojo("ghi789"), myObjectPojo2),
+                ConflictMode.DO_UPDATE);
+
+        assertThat(result2.getRowsSubmitted()).isEqualTo(3);
+        assertThat(result2.getRowsAffected()).isEqualTo(2);
+        assertThat(result2.getRowsUpdated()).isEqualTo(1);
+        assertThat(result2.getRowsInserted()).isEqualTo(1);
+        assertThat(result2.getRows()).extracting(UpsertRowResult::getHash, UpsertRowResult::getOutcome)
+                .containsExactly(tuple(HASH, UpsertOutcome.UPDATED), tuple("ghi789", UpsertOutcome.INSERTED));
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+
+        log.info("*****************");
+        log.info("results: {}", results.toString());
+        log.info("*****************");
+
+        assertThat(results).hasSize(3);
+        checkResultsStage(List.of(findByHash(results, HASH)), myObjectPojo2);
+
+    }
+
+    /**
+     * The upserts say what they did with each row and the id it has without reading it back
+     * Rows without a hash never conflict and are matched back up in the order they were sent
+     */
+    @Test
+    void testUpsertOutcomes() {
+
+        var inserted = myObjectDao.insertUsingNativeQueryWithDoNothing(myObjectPojo1);
+        assertThat(inserted.getOutcome()).isEqualTo(UpsertOutcome.INSERTED);
+        assertThat(inserted.getId()).isPositive();
+
+        var skipped = myObjectDao.insertUsingNativeQueryWithDoNothing(myObjectPojo2);
+        assertThat(skipped.getOutcome()).isEqualTo(UpsertOutcome.SKIPPED);
+        assertThat(skipped.getId()).isNull();
+
+        var updated = myObjectDao.insertUsingNativeQueryWithDoUpdate(myObjectPojo2);
+        assertThat(updated.getOutcome()).isEqualTo(UpsertOutcome.UPDATED);
+        assertThat(updated.getId()).isEqualTo(inserted.getId());
+
+        var result = myObjectDao.upsertAll(List.of(otherPojo(null), myObjectPojo1, otherPojo("def456"),
+                otherPojo(null)), ConflictMode.DO_UPDATE, 3);
+
+        assertThat(result.getRowsInserted()).isEqualTo(3);
+        assertThat(result.getRowsUpdated()).isEqualTo(1);
+        assertThat(result.getRows()).extracting(UpsertRowResult::getHash, UpsertRowResult::getOutcome)
+                .containsExactly(tuple(HASH, UpsertOutcome.UPDATED), tuple("def456", UpsertOutcome.INSERTED),
+                        tuple(null, UpsertOutcome.INSERTED), tuple(null, UpsertOutcome.INSERTED));
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+
+        assertThat(results).hasSize(4);
+        assertThat(result.getRows()).extracting(UpsertRowResult::getId)
+                .containsExactlyInAnyOrderElementsOf(results.stream()
+                        .map(myObjectJpa -> myObjectJpa.getId_pk().longValue())
+                        .collect(Collectors.toList()));
+
+    }
+
+    /**
+     * Streams the records with COPY into a staging table and merges them in with INSERT ... SELECT ... ON CONFLICT
+     * DO NOTHING keeps the first record for a hash, DO UPDATE the last one
+     */
+    @Test
+    void testInsertUsingCopy() {
+
+        var result1 = myObjectDao.insertUsingCopy(IntStream.range(0, 10_000)
+                .mapToObj(i -> otherPojo("hash" + i)), ConflictMode.DO_NOTHING);
+
+        assertThat(result1.getRowsSubmitted()).isEqualTo(10_000);
+        assertThat(result1.getRowsAffected()).isEqualTo(10_000);
+
+        var tricky = MyObjectPojo.builder()
+                .hash(HASH)
+                .column1("tab\there")
+                .column2("new\nline ü")
+                .created(CREATED2)
+                .updated(UPDATED2)
+                .build();
+
+        var result2 = myObjectDao.insertUsingCopy(List.of(myObjectPojo1, otherPojo("hash1"), tricky).iterator(),
+                ConflictMode.DO_NOTHING);
+
+        assertThat(result2.getRowsSubmitted()).isEqualTo(3);
+        assertThat(result2.getRowsAffected()).isEqualTo(1);
+        // DO NOTHING has nothing to count before the merge
+        assertThat(result2.getStatementsExecuted()).isEqualTo(3);
+        checkResultsStage(List.of(findByHash(myObjectDao.getAllUsingNativeJDBC(), HASH)), myObjectPojo1);
+
+        var result3 = myObjectDao.insertUsingCopy(List.of(myObjectPojo2, tricky).iterator(),
+                ConflictMode.DO_UPDATE);
+
+        assertThat(result3.getRowsAffected()).isEqualTo(1);
+        assertThat(result3.getRowsUpdated()).isEqualTo(1);
+        assertThat(result3.getStatementsExecuted()).isEqualTo(4);
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+
+        assertThat(results).hasSize(10_001);
+        checkResultsStage(List.of(findByHash(results, HASH)), tricky);
+
+    }
+
+    /**
+     * Reads everything back through a cursor a few rows at a time rather than in one list
+     */
+    @Test
+    void testStreamAllAndForEach() {
+
+        myObjectDao.upsertAll(IntStream.range(0, 2_500)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList()), ConflictMode.DO_NOTHING);
+
+        try (var rows = myObjectDao.streamAll(100)) {
+            assertThat(rows.map(MyObjectJpa::getHash).distinct().count()).isEqualTo(2_500);
+        }
+
+        var seen = new AtomicInteger();
+        var ids = new HashSet<Long>();
+        myObjectDao.forEach(100, myObjectPojo -> {
+            seen.incrementAndGet();
+            ids.add(myObjectPojo.getId());
+            assertThat(myObjectPojo.getColumn1()).isEqualTo(VALUE1);
+            assertThat(myObjectPojo.getCreated()).isEqualTo(CREATED1);
+        });
+
+        assertThat(seen).hasValue(2_500);
+        assertThat(ids).hasSize(2_500);
+
+    }
+
+    /**
+     * The projections read the same rows as the entities do but leave nothing behind in EclipseLink's shared cache
+     */
+    @Test
+    void testReadOnlyProjections() {
+
+        myObjectDao.upsertAll(IntStream.range(0, 2_500)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList()), ConflictMode.DO_NOTHING);
+        emf.getCache().evictAll();
+
+        var expected = new HashMap<Long, MyObjectPojo>();
+        myObjectDao.forEach(myObjectPojo -> expected.put(myObjectPojo.getId(), myObjectPojo));
+
+        var pojos = myObjectDao.getAllAsPojos();
+        assertThat(pojos).hasSize(2_500);
+        for (var pojo : pojos) {
+            var row = expected.get(pojo.getId());
+            assertThat(pojo.getHash()).isEqualTo(row.getHash());
+            assertThat(pojo.getColumn1()).isEqualTo(VALUE1);
+            assertThat(pojo.getColumn2()).isEqualTo(VALUE2);
+            assertThat(pojo.getCreated()).isEqualTo(CREATED1);
+            assertThat(pojo.getUpdated().toLocalTime().truncatedTo(ChronoUnit.SECONDS))
+                    .isEqualTo(row.getUpdated().toLocalTime().truncatedTo(ChronoUnit.SECONDS));
+        }
+
+        var keys = myObjectDao.getAllKeys();
+        assertThat(keys).hasSize(2_500);
+        assertThat(keys).allSatisfy(key -> assertThat(key.getHash()).isEqualTo(expected.get(key.getId()).getHash()));
+
+        var someId = BigInteger.valueOf(pojos.get(0).getId());
+        assertThat(emf.getCache().contains(MyObjectJpa.class, someId)).isFalse();
+
+        // whereas reading the entities caches every one of them
+        myObjectDao.getAll();
+        assertThat(emf.getCache().contains(MyObjectJpa.class, someId)).isTrue();
+        emf.getCache().evictAll();
+
+    }
+
+    /**
+     * Producers hand records to the write behind buffer and carry on, updates to the same hash between two
+     * flushes only reach the db once
+     */
+    @Test
+    @SneakyThrows
+    void testWriteBehindBuffer() {
+
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        try (var buffer = new WriteBehindBuffer(myObjectDao, 1_000, 500, Duration.ofMillis(50))) {
+            for (var i = 0; i < 5_000; i++) {
+                futures.add(buffer.submit(MyObjectPojo.builder()
+                        .hash("hot" + (i % 10))
+                        .column1("v" + i)
+                        .column2(VALUE2)
+                        .created(CREATED1)
+                        .updated(UPDATED1)
+                        .build()));
+                futures.add(buffer.submit(otherPojo("cold" + i)));
+            }
+            buffer.close();
+
+            assertThat(buffer.getRecordsSubmitted()).isEqualTo(10_000);
+            assertThat(buffer.getRecordsWritten()).isLessThan(10_000);
+            log.info("wrote {} of {} records in {} flushes", buffer.getRecordsWritten(),
+                    buffer.getRecordsSubmitted(), buffer.getFlushes());
+        }
+
+        assertThat(futures).allMatch(future -> future.isDone() && !future.isCompletedExceptionally());
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+        assertThat(results).hasSize(5_010);
+        for (var i = 0; i < 10; i++) {
+            assertThat(findByHash(results, "hot" + i).getColumn1()).isEqualTo("v" + (4_990 + i));
+        }
+
+    }
+
+    /**
+     * An Error from the dao fails only the flush it hit, the flusher carries on with the next one and a record
+     * submitted after close fails straight away
+     */
+    @Test
+    @SneakyThrows
+    void testWriteBehindBufferFailures() {
+
+        var failingDao = (MyObjectJpaDao) Proxy.newProxyInstance(MyObjectJpaDao.class.getClassLoader(),
+                new Class<?>[]{MyObjectJpaDao.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("upsertAll")
+                            && ((Collection<?>) args[0]).contains(otherPojo("boom"))) {
+                        throw new StackOverflowError("boom");
+                    }
+                    try {
+                        return method.invoke(myObjectDao, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        // a single permit, the second submit only gets in once the failed flush has given it back
+        var buffer = new WriteBehindBuffer(failingDao, 1, 1, Duration.ofMillis(50));
+        var failed = buffer.submit(otherPojo("boom"));
+        var written = buffer.submit(otherPojo("fine"));
+        assertThatThrownBy(() -> failed.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(StackOverflowError.class);
+        written.get(10, TimeUnit.SECONDS);
+        buffer.close();
+
+        var afterClose = buffer.submit(otherPojo("late"));
+        assertThat(afterClose).isCompletedExceptionally();
+        assertThatThrownBy(afterClose::join).hasCauseInstanceOf(IllegalStateException.class);
+
+        assertThat(myObjectDao.getAllUsingNativeJDBC()).extracting(MyObjectJpa::getHash).containsExactly("fine");
+
+    }
+
+    /**
+     * Writes spread over several lanes but every hash keeps the value submitted last
+     */
+    @Test
+    @SneakyThrows
+    void testPartitionedIngestionExecutor() {
+
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        try (var executor = new PartitionedIngestionExecutor(myObjectDao, ConflictMode.DO_UPDATE, 4, 200, 1_000)) {
+            for (var i = 0; i < 20_000; i++) {
+                futures.add(executor.submit(MyObjectPojo.builder()
+                        .hash("hash" + (i % 500))
+                        .column1(Integer.toString(i))
+                        .column2(VALUE2)
+                        .created(CREATED1)
+                        .updated(UPDATED1)
+                        .build()));
+            }
+        }
+
+        assertThat(futures).allMatch(future -> future.isDone() && !future.isCompletedExceptionally());
+
+        var results = myObjectDao.getAllUsingNativeJDBC();
+        assertThat(results).hasSize(500);
+        for (var i = 0; i < 500; i++) {
+            assertThat(findByHash(results, "hash" + i).getColumn1()).isEqualTo(Integer.toString(19_500 + i));
+        }
+
+    }
+
+    /**
+     * An Error from the dao only fails its own batch, and the lane goes on with the next one. Once closed, submit
+     * hands back a failed future rather than queueing on a lane that has gone
+     */
+    @Test
+    @SneakyThrows
+    void testPartitionedIngestionExecutorFailures() {
+
+        var failingDao = (MyObjectJpaDao) Proxy.newProxyInstance(MyObjectJpaDao.class.getClassLoader(),
+                new Class<?>[]{MyObjectJpaDao.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("upsertAll")
+                            && ((Collection<?>) args[0]).contains(otherPojo("boom"))) {
+                        throw new StackOverflowError("boom");
+                    }
+                    try {
+                        return method.invoke(myObjectDao, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        var executor = new PartitionedIngestionExecutor(failingDao, ConflictMode.DO_UPDATE, 1, 1, 10);
+        var failed = executor.submit(otherPojo("boom"));
+        var written = executor.submit(otherPojo("fine"));
+        assertThatThrownBy(() -> failed.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(StackOverflowError.class);
+        written.get(10, TimeUnit.SECONDS);
+        executor.close();
+
+        var afterClose = executor.submit(otherPojo("late"));
+        assertThat(afterClose).isCompletedExceptionally();
+        assertThatThrownBy(afterClose::join).hasCauseInstanceOf(IllegalStateException.class);
+
+        assertThat(myObjectDao.getAllUsingNativeJDBC()).extracting(MyObjectJpa::getHash).containsExactly("fine");
+
+    }
+
+    /**
+     * Measures what the upsertAll hot path allocates on this thread once warmed up
+     * The pojos are bound straight onto the statement so it stays at well under a couple of KB per row, most of
+     * it the driver encoding the parameters and decoding the RETURNING rows
+     */
+    @Test
+    void testUpsertAllAllocationsPerRow() {
+
+        var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var threadId = Thread.currentThread().getId();
+        var records = IntStream.range(0, 1_000)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList());
+
+        // class loading, statement preparation and the first inserts aren't what is being measured
+        for (var i = 0; i < 10; i++) {
+            myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE);
+        }
+
+        var rounds = 20;
+        var allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (var i = 0; i < rounds; i++) {
+            myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE);
+        }
+        var bytesPerRow = (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore)
+                / (rounds * records.size());
+
+        log.info("upsertAll allocated {} bytes per row", bytesPerRow);
+
+        assertThat(bytesPerRow).isLessThan(BYTES_PER_ROW_LIMIT);
+
+    }
+
+    /**
+     * Wraps the dao in the instrumentation and checks the per phase latencies and row outcomes get recorded
+     */
+    @Test
+    void testMetrics() {
+
+        var registry = new InMemoryMetricsRegistry();
+        var metrics = new DaoMetrics(registry);
+        var instrumentedDao = new InstrumentedMyObjectJpaDao(MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .metrics(metrics)
+                .build(), metrics);
+
+        instrumentedDao.insertUsingNativeQueryWithDoNothing(myObjectPojo1);
+        instrumentedDao.insertUsingNativeQueryWithDoNothing(myObjectPojo2);
+        instrumentedDao.upsertAll(List.of(myObjectPojo1, otherPojo("def456"), otherPojo("ghi789")),
+                ConflictMode.DO_NOTHING);
+
+        var histogramPrefix = "dao.insertUsingNativeQueryWithDoNothing.";
+        for (var phase : List.of("total", "begin", "mapping", "execute", "commit")) {
+            var histogram = registry.histogram(histogramPrefix + phase);
+            assertThat(histogram.getCount()).as(phase).isEqualTo(2);
+            assertThat(histogram.getMaxNanos()).as(phase).isPositive();
+        }
+        assertThat(registry.counter(histogramPrefix + "rows.inserted").getCount()).isEqualTo(1);
+        assertThat(registry.counter(histogramPrefix + "rows.skipped").getCount()).isEqualTo(1);
+
+        assertThat(registry.histogram("dao.upsertAll.total").getCount()).isEqualTo(1);
+        assertThat(registry.counter("dao.upsertAll.rows.inserted").getCount()).isEqualTo(2);
+        assertThat(registry.counter("dao.upsertAll.rows.skipped").getCount()).isEqualTo(1);
+
+        try {
+            instrumentedDao.upsertAll(List.of(myObjectPojo1), ConflictMode.DO_NOTHING, 0);
+        } catch (IllegalArgumentException e) {
+            log.info("expected: {}", e.getMessage());
+        }
+        assertThat(registry.counter("dao.upsertAll.exceptions").getCount()).isEqualTo(1);
+
+    }
+
+    /**
+     * TEST_OBJECTS is hash partitioned, the dao routes the rows to the same partitions postgres does and writes
+     * each partition with statements of its own. The partitions can then be read and vacuumed in parallel
+     */
+    @Test
+    @SneakyThrows
+    void testHashPartitionedWrites() {
+
+        var partitioning = ((MyObjectJpaDaoImpl) myObjectDao).getPartitioning();
+        assertThat(partitioning.getPartitionCount()).isEqualTo(16);
+
+        var records = new ArrayList<MyObjectPojo>();
+        IntStream.range(0, 2_000).forEach(i -> records.add(otherPojo("hash" + i)));
+        records.add(otherPojo("ünïcödé"));
+        records.add(otherPojo(null));
+
+        var result = myObjectDao.upsertAll(records, ConflictMode.DO_NOTHING, 100);
+
+        assertThat(result.getRowsInserted()).isEqualTo(records.size());
+        assertThat(result.getStatementsExecuted()).isEqualTo(statementsFor(records.stream()
+                .map(MyObjectPojo::getHash)
+                .collect(Collectors.toList()), 100));
+        // still in the order they were given
+        assertThat(result.getRows()).extracting(UpsertRowResult::getHash)
+                .containsExactlyElementsOf(records.stream().map(MyObjectPojo::getHash).collect(Collectors.toList()));
+
+        // these go through the parent table so postgres does the routing
+        IntStream.range(0, 200).forEach(i -> myObjectDao.insertUsingQuery(otherPojo("routed" + i)));
+
+        try (var conn = pooledDataSource.getConnection();
+             var statement = conn.createStatement();
+             var results = statement.executeQuery("SELECT HASH, tableoid::regclass::text FROM public.TEST_OBJECTS")) {
+            var rows = 0;
+            while (results.next()) {
+                assertThat(partitioning.getPartitionName(partitioning.partitionOf(results.getString(1))))
+                        .as(results.getString(1))
+                        .isEqualTo(results.getString(2));
+                rows++;
+            }
+            assertThat(rows).isEqualTo(records.size() + 200);
+        }
+
+        // the conflict on HASH still works across the partitions
+        var again = myObjectDao.upsertAll(records.subList(0, 100), ConflictMode.DO_UPDATE);
+        assertThat(again.getRowsUpdated()).isEqualTo(100);
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var rowsRead = new AtomicInteger();
+            var reads = IntStream.range(0, partitioning.getPartitionCount())
+                    .mapToObj(partition -> CompletableFuture.runAsync(() ->
+                            ((MyObjectJpaDaoImpl) myObjectDao).forEachInPartition(partition, 100, myObjectPojo -> {
+                                assertThat(partitioning.partitionOf(myObjectPojo.getHash())).isEqualTo(partition);
+                                rowsRead.incrementAndGet();
+                            }), executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(reads).get(30, TimeUnit.SECONDS);
+            assertThat(rowsRead.get()).isEqualTo(records.size() + 200);
+
+            ((MyObjectJpaDaoImpl) myObjectDao).vacuumAnalyzePartitions(executor).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+    }
+
+    /**
+     * The adaptive dao writes a batch with a plain INSERT, ON CONFLICT or COPY and every one of them leaves the same
+     * rows behind with the same result. Once rows start to conflict it stops trying the plain INSERT
+     */
+    @Test
+    void testAdaptiveUpsertAll() {
+
+        var adaptiveDao = AdaptiveMyObjectJpaDao.builder()
+                .delegate((MyObjectJpaDaoImpl) myObjectDao)
+                .copyMinRows(1_000)
+                .build();
+
+        var existing = IntStream.range(0, 50)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList());
+        var records = new ArrayList<MyObjectPojo>();
+        records.add(otherPojo(null));
+        IntStream.range(25, 75).forEach(i -> records.add(MyObjectPojo.builder()
+                .hash("hash" + i)
+                .column1(VALUE3)
+                .column2("v" + i)
+                .created(CREATED2)
+                .updated(UPDATED2)
+                .build()));
+        records.add(myObjectPojo1);
+        records.add(otherPojo(null));
+        records.add(myObjectPojo2);
+
+        for (var conflictMode : List.of(ConflictMode.DO_NOTHING, ConflictMode.DO_UPDATE)) {
+            var results = new ArrayList<List<?>>();
+            var stored = new ArrayList<List<?>>();
+            for (var strategy : AdaptiveMyObjectJpaDao.Strategy.values()) {
+                afterEach();
+                myObjectDao.upsertAll(existing, ConflictMode.DO_NOTHING);
+
+                var result = adaptiveDao.upsertAll(records, conflictMode, 20, strategy);
+
+                assertThat(result.getRowsSubmitted()).isEqualTo(records.size());
+                results.add(List.of(result.getRowsAffected(), result.getRowsInserted(), result.getRowsUpdated(),
+                        result.getRows().stream()
+                                .map(row -> tuple(row.getHash(), row.getOutcome(), row.getId() != null))
+                                .collect(Collectors.toList())));
+                stored.add(myObjectDao.getAllUsingNativeJDBC().stream()
+                        .map(myObjectJpa -> tuple(myObjectJpa.getHash(), myObjectJpa.getColumn1(),
+                                myObjectJpa.getColumn2()))
+                        .sorted(Comparator.comparing(Object::toString))
+                        .collect(Collectors.toList()));
+            }
+            assertThat(results).as(conflictMode.name()).containsOnly(results.get(0));
+            assertThat(stored).as(conflictMode.name()).containsOnly(stored.get(0));
+        }
+        // the plain INSERT ran into the existing hashes both times
+        assertThat(adaptiveDao.getFallbacks()).isEqualTo(2);
+
+        afterEach();
+        var fresh = IntStream.range(0, 100)
+                .mapToObj(i -> otherPojo("fresh" + i))
+                .collect(Collectors.toList());
+        adaptiveDao.upsertAll(fresh, ConflictMode.DO_UPDATE);
+        for (var i = 0; i < 10; i++) {
+            var result = adaptiveDao.upsertAll(fresh, ConflictMode.DO_UPDATE);
+            assertThat(result.getRowsUpdated()).isEqualTo(fresh.size());
+        }
+
+        assertThat(adaptiveDao.getConflictRatio()).isGreaterThan(0.5);
+        assertThat(adaptiveDao.chooseStrategy(fresh.size())).isEqualTo(AdaptiveMyObjectJpaDao.Strategy.UPSERT);
+        assertThat(adaptiveDao.getFallbacks()).isLessThanOrEqualTo(3);
+
+    }
+
+    /**
+     * A COPY held up by a lock looks far slower than it is, the adaptive dao still comes back to it once it hasn't
+     * run for exploreEvery batches and from then on goes by the new time
+     */
+    @Test
+    @SneakyThrows
+    void testAdaptiveUpsertAllRetriesSlowStrategy() {
+
+        var adaptiveDao = AdaptiveMyObjectJpaDao.builder()
+                .delegate((MyObjectJpaDaoImpl) myObjectDao)
+                .copyMinRows(100)
+                .exploreEvery(3)
+                .build();
+        var batch = new AtomicInteger();
+        Supplier<List<MyObjectPojo>> freshBatch = () -> IntStream.range(0, 200)
+                .mapToObj(i -> otherPojo("batch" + batch.get() + "-" + i))
+                .collect(Collectors.toList());
+
+        try (var lockHolder = pooledDataSource.getConnection()) {
+            lockHolder.setAutoCommit(false);
+            try (var statement = lockHolder.createStatement()) {
+                statement.execute("LOCK TABLE public.TEST_OBJECTS IN EXCLUSIVE MODE");
+            }
+            var release = CompletableFuture.runAsync(() -> {
+                try {
+                    lockHolder.commit();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, CompletableFuture.delayedExecutor(500, TimeUnit.MILLISECONDS));
+
+            adaptiveDao.upsertAll(freshBatch.get(), ConflictMode.DO_UPDATE, 500, AdaptiveMyObjectJpaDao.Strategy.COPY);
+            release.get(10, TimeUnit.SECONDS);
+        }
+        var slowCopy = adaptiveDao.getNanosPerRow(AdaptiveMyObjectJpaDao.Strategy.COPY);
+
+        // the plain INSERT and the upsert haven't been timed yet and go first, then COPY is due again
+        var chosen = new ArrayList<AdaptiveMyObjectJpaDao.Strategy>();
+        for (var i = 0; i < 3; i++) {
+            batch.incrementAndGet();
+            var records = freshBatch.get();
+            chosen.add(adaptiveDao.chooseStrategy(records.size()));
+            adaptiveDao.upsertAll(records, ConflictMode.DO_UPDATE);
+        }
+        log.info("per row after a slow copy of {}ns: {}", (long) slowCopy, Arrays.stream(
+                AdaptiveMyObjectJpaDao.Strategy.values())
+                .map(strategy -> strategy + " " + (long) adaptiveDao.getNanosPerRow(strategy) + "ns")
+                .collect(Collectors.toList()));
+
+        assertThat(chosen).containsExactly(AdaptiveMyObjectJpaDao.Strategy.INSERT,
+                AdaptiveMyObjectJpaDao.Strategy.UPSERT, AdaptiveMyObjectJpaDao.Strategy.COPY);
+        assertThat(adaptiveDao.getBatches(AdaptiveMyObjectJpaDao.Strategy.COPY)).isEqualTo(2);
+        // the held up batch is gone from the average rather than smoothed into it
+        assertThat(adaptiveDao.getNanosPerRow(AdaptiveMyObjectJpaDao.Strategy.COPY)).isLessThan(slowCopy / 5);
+        assertThat(myObjectDao.getAllKeys()).hasSize(800);
+
+    }
+
+    /**
+     * DO_UPDATE_IF_CHANGED only rewrites the rows whose values changed, the rest keep the same row version and are
+     * reported as unchanged. With a digest cache the unchanged records aren't even sent
+     */
+    @Test
+    @SneakyThrows
+    void testChangeDetectingUpserts() {
+
+        var records = IntStream.range(0, 10)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList());
+
+        var inserted = myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(inserted.getRowsInserted()).isEqualTo(10);
+        var versions = rowVersions();
+
+        var replayed = myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(replayed.getRowsAffected()).isZero();
+        assertThat(replayed.getRowsUnchanged()).isEqualTo(10);
+        assertThat(replayed.getRowsSkipped()).isZero();
+        assertThat(replayed.getRows()).extracting(UpsertRowResult::getOutcome)
+                .containsOnly(UpsertOutcome.UNCHANGED);
+        assertThat(rowVersions()).isEqualTo(versions);
+
+        var changed = new ArrayList<>(records);
+        changed.set(3, MyObjectPojo.builder()
+                .hash("hash3")
+                .column1(VALUE3)
+                .column2(VALUE4)
+                .created(CREATED1)
+                .updated(UPDATED1)
+                .build());
+        var result = myObjectDao.upsertAll(changed, ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(result.getRowsUpdated()).isEqualTo(1);
+        assertThat(result.getRowsUnchanged()).isEqualTo(9);
+        assertThat(result.getRows().get(3).getOutcome()).isEqualTo(UpsertOutcome.UPDATED);
+        assertThat(rowVersions()).hasSize(10).containsAllEntriesOf(Map.of("hash0", versions.get("hash0")))
+                .doesNotContainEntry("hash3", versions.get("hash3"));
+
+        var copied = myObjectDao.insertUsingCopy(changed.iterator(), ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(copied.getRowsAffected()).isZero();
+        assertThat(copied.getRowsUnchanged()).isEqualTo(10);
+
+        assertThat(myObjectDao.insertUsingNativeQuery(myObjectPojo1, ConflictMode.DO_UPDATE_IF_CHANGED).getOutcome())
+                .isEqualTo(UpsertOutcome.INSERTED);
+        var unchanged = myObjectDao.insertUsingNativeQuery(myObjectPojo1, ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(unchanged.getOutcome()).isEqualTo(UpsertOutcome.UNCHANGED);
+        assertThat(unchanged.getId()).isNull();
+        assertThat(myObjectDao.insertUsingNativeQuery(myObjectPojo2, ConflictMode.DO_UPDATE_IF_CHANGED).getOutcome())
+                .isEqualTo(UpsertOutcome.UPDATED);
+
+        // insertUsingNativeJDBC leaves an unchanged row alone too
+        versions = rowVersions();
+        myObjectDao.insertUsingNativeJDBC(myObjectPojo2);
+        assertThat(rowVersions()).isEqualTo(versions);
+        checkResultsStage(List.of(findByHash(myObjectDao.getAllUsingNativeJDBC(), HASH)), myObjectPojo2);
+
+        var digestCache = new ContentDigestCache(1_000, Duration.ofMinutes(1));
+        var cachingDao = MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .digestCache(digestCache)
+                .build();
+
+        // the cache only learns from what goes through the dao
+        assertThat(cachingDao.upsertAll(changed, ConflictMode.DO_UPDATE_IF_CHANGED).getStatementsExecuted())
+                .isPositive();
+        var cached = cachingDao.upsertAll(changed, ConflictMode.DO_UPDATE_IF_CHANGED);
+        assertThat(cached.getStatementsExecuted()).isZero();
+        assertThat(cached.getRowsUnchanged()).isEqualTo(10);
+        assertThat(digestCache.getUnchangedCount()).isEqualTo(10);
+
+        // a changed record still goes to the db, and DO_UPDATE ignores the cache
+        assertThat(cachingDao.upsertAll(records, ConflictMode.DO_UPDATE_IF_CHANGED).getRowsUpdated()).isEqualTo(1);
+        assertThat(cachingDao.upsertAll(records, ConflictMode.DO_UPDATE).getRowsUpdated()).isEqualTo(10);
+        assertThat(cachingDao.insertUsingNativeQuery(records.get(0), ConflictMode.DO_UPDATE_IF_CHANGED).getOutcome())
+                .isEqualTo(UpsertOutcome.UNCHANGED);
+        assertThat(digestCache.getUnchangedCount()).isEqualTo(20);
+
+        // a skipped record says nothing about the row that is there, so the hash is forgotten
+        cachingDao.insertUsingNativeQueryWithDoNothing(records.get(0));
+        assertThat(cachingDao.insertUsingNativeQuery(records.get(0), ConflictMode.DO_UPDATE_IF_CHANGED).getOutcome())
+                .isEqualTo(UpsertOutcome.UNCHANGED);
+        assertThat(digestCache.getUnchangedCount()).isEqualTo(20);
+
+    }
+
+    /**
+     * The row version of every row by hash, a row that is rewritten gets a new xmin even with the same values
+     */
+    @SneakyThrows
+    private static Map<String, String> rowVersions() {
+        var versions = new HashMap<String, String>();
+        try (var conn = pooledDataSource.getConnection();
+             var statement = conn.createStatement();
+             var results = statement.executeQuery("SELECT HASH, xmin::text FROM public.TEST_OBJECTS")) {
+            while (results.next()) {
+                versions.put(results.getString(1), results.getString(2));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Pages through the table by ID, each page picks up after the last ID of the one before rather than skipping an
+     * offset, with or without reading the next page ahead
+     */
+    @Test
+    @SneakyThrows
+    void testKeysetPagination() {
+
+        myObjectDao.upsertAll(IntStream.range(0, 2_500)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList()), ConflictMode.DO_NOTHING);
+
+        var ids = new ArrayList<Long>();
+        var pages = 0;
+        MyObjectPage page = null;
+        do {
+            page = myObjectDao.getPage(page == null ? null : page.getNextAfterId(), 100);
+            page.getRows().forEach(row -> ids.add(row.getId()));
+            pages++;
+        } while (!page.isLast());
+
+        // the last page is known to be the last without reading an empty one
+        assertThat(pages).isEqualTo(25);
+        assertThat(ids).hasSize(2_500).isSorted().doesNotHaveDuplicates();
+        assertThat(myObjectDao.getPage(page.getNextAfterId(), 100).getRows()).isEmpty();
+
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var prefetchedIds = new ArrayList<Long>();
+            myObjectDao.pages(null, 333, executor).forEachRemaining(prefetched ->
+                    prefetched.getRows().forEach(row -> prefetchedIds.add(row.getId())));
+            assertThat(prefetchedIds).isEqualTo(ids);
+        } finally {
+            executor.shutdown();
+        }
+
+        var range = myObjectDao.getRange(BigInteger.valueOf(ids.get(9)), BigInteger.valueOf(ids.get(49)), 1_000);
+        assertThat(range.isLast()).isTrue();
+        assertThat(range.getRows()).extracting(MyObjectPojo::getId).isEqualTo(ids.subList(10, 50));
+
+        // every partition is read through its index on ID, so a page deep into the table costs the same as the first
+        try (var conn = pooledDataSource.getConnection();
+             var statement = conn.createStatement()) {
+            statement.execute("ANALYZE public.TEST_OBJECTS");
+            var plan = new StringBuilder();
+            try (var results = statement.executeQuery("EXPLAIN SELECT * FROM public.TEST_OBJECTS WHERE ID > "
+                    + ids.get(2_000) + " ORDER BY ID LIMIT 101")) {
+                while (results.next()) {
+                    plan.append(results.getString(1)).append('\n');
+                }
+            }
+            assertThat(plan.toString()).contains("Merge Append", "test_objects_p00_id_idx")
+                    .doesNotContain("Seq Scan");
+        }
+
+    }
+
+    /**
+     * Polls the rows changed since the last watermark. A transaction that is still open holds the watermark back,
+     * so whatever it writes is picked up once it commits even though later transactions committed first
+     */
+    @Test
+    @SneakyThrows
+    void testChangeFeed() {
+
+        var changed = new ArrayList<String>();
+        var watermark = myObjectDao.streamChangedSince(0, row -> changed.add(row.getHash()));
+        assertThat(changed).isEmpty();
+
+        var records = IntStream.range(0, 100)
+                .mapToObj(i -> otherPojo("hash" + i))
+                .collect(Collectors.toList());
+        myObjectDao.upsertAll(records, ConflictMode.DO_UPDATE);
+
+        watermark = myObjectDao.streamChangedSince(watermark, 10, row -> changed.add(row.getHash()));
+        assertThat(changed).hasSize(100).containsExactlyInAnyOrderElementsOf(records.stream()
+                .map(MyObjectPojo::getHash)
+                .collect(Collectors.toList()));
+
+        changed.clear();
+        watermark = myObjectDao.streamChangedSince(watermark, row -> changed.add(row.getHash()));
+        assertThat(changed).isEmpty();
+
+        // only the rows that really changed, in the order they changed
+        var updates = new ArrayList<>(records);
+        updates.set(7, MyObjectPojo.builder().hash("hash7").column1(VALUE3).column2(VALUE4).build());
+        myObjectDao.upsertAll(updates, ConflictMode.DO_UPDATE_IF_CHANGED);
+        myObjectDao.insertUsingNativeQueryWithDoUpdate(otherPojo("hash3"));
+        watermark = myObjectDao.streamChangedSince(watermark, row -> changed.add(row.getHash()));
+        assertThat(changed).containsExactly("hash7", "hash3");
+
+        changed.clear();
+        try (var conn = pooledDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (var statement = conn.createStatement()) {
+                statement.executeUpdate("INSERT INTO public.TEST_OBJECTS (HASH) VALUES ('late')");
+            }
+            myObjectDao.upsertAll(List.of(otherPojo("early")), ConflictMode.DO_UPDATE);
+
+            var heldBack = myObjectDao.streamChangedSince(watermark, row -> changed.add(row.getHash()));
+            assertThat(changed).isEmpty();
+            assertThat(heldBack).isEqualTo(watermark);
+
+            conn.commit();
+        }
+        myObjectDao.streamChangedSince(watermark, row -> changed.add(row.getHash()));
+        assertThat(changed).containsExactly("late", "early");
+
+    }
+
+    /**
+     * Deletes the expired rows a chunk of IDs at a time. A run that hits its max runtime carries on from where it
+     * stopped, and a row someone else has locked is left for the next run rather than waited for. The hashes
+     * deleted don't go into the hash filter
+     */
+    @Test
+    @SneakyThrows
+    void testRetentionPurge() {
+
+        var registry = new InMemoryMetricsRegistry();
+        var metrics = new DaoMetrics(registry);
+        var hashFilter = new HashBloomFilter(10_000, 0.01);
+        var instrumentedDao = new InstrumentedMyObjectJpaDao(MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .hashFilter(hashFilter)
+                .metrics(metrics)
+                .build(), metrics);
+
+        var expired = CREATED1.minusYears(1);
+        myObjectDao.upsertAll(IntStream.range(0, 1_500)
+                .mapToObj(i -> MyObjectPojo.builder()
+                        .hash((i % 3 == 0 ? "new" : "old") + i)
+                        .column1(VALUE1)
+                        .column2(VALUE2)
+                        .created(i % 3 == 0 ? CREATED1 : expired)
+                        .updated(UPDATED1)
+                        .build())
+                .collect(Collectors.toList()), ConflictMode.DO_NOTHING);
+
+        try (var lockHolder = pooledDataSource.getConnection()) {
+            lockHolder.setAutoCommit(false);
+            try (var statement = lockHolder.createStatement()) {
+                statement.executeQuery("SELECT * FROM public.TEST_OBJECTS WHERE HASH = 'old7' FOR UPDATE").close();
+            }
+
+            var throttled = instrumentedDao.purgeOlderThan(CREATED1, null, PurgeConfig.builder()
+                    .chunkSize(100)
+                    .pause(Duration.ofMillis(200))
+                    .maxRuntime(Duration.ofMillis(500))
+                    .build());
+            assertThat(throttled.isFinished()).isFalse();
+            assertThat(throttled.getChunks()).isBetween(1L, 4L);
+            assertThat(throttled.getRowsDeleted()).isBetween(1L, 300L);
+
+            var resumed = instrumentedDao.purgeOlderThan(CREATED1, throttled.getNextAfterId(), PurgeConfig.builder()
+                    .chunkSize(100)
+                    .pause(Duration.ZERO)
+                    .build());
+            assertThat(resumed.isFinished()).isTrue();
+            assertThat(throttled.getChunks() + resumed.getChunks()).isEqualTo(15);
+            assertThat(throttled.getRowsDeleted() + resumed.getRowsDeleted()).isEqualTo(999);
+
+            lockHolder.commit();
+        }
+
+        var remaining = myObjectDao.getAllKeys();
+        assertThat(remaining).hasSize(501);
+        assertThat(remaining).extracting(MyObjectKey::getHash).contains("old7");
+
+        var lastRun = instrumentedDao.purgeOlderThan(CREATED1, null, PurgeConfig.builder().build());
+        assertThat(lastRun.getRowsDeleted()).isEqualTo(1);
+        assertThat(myObjectDao.getAllKeys()).extracting(MyObjectKey::getHash).allMatch(hash -> hash.startsWith("new"));
+        // only the odd false positive of an empty filter
+        assertThat(IntStream.range(0, 1_500).filter(i -> hashFilter.mightContain("old" + i)).count()).isLessThan(50);
+
+        assertThat(registry.counter("dao.purgeOlderThan.rows.deleted").getCount()).isEqualTo(1_000);
+        assertThat(registry.histogram("dao.purgeOlderThan.total").getCount()).isEqualTo(3);
+        assertThat(registry.histogram("dao.purgeOlderThan.execute").getCount())
+                .isEqualTo(15 + lastRun.getChunks());
+
+    }
+
+    /**
+     * Exports to a snapshot file and restores it into the emptied table. The rows come back with the same IDs and
+     * values, escapes, nulls and multi byte characters included, and new rows get IDs above the restored ones
+     */
+    @Test
+    @SneakyThrows
+    void testSnapshotExportAndRestore() {
+
+        var records = new ArrayList<MyObjectPojo>();
+        IntStream.range(0, 1_000).mapToObj(i -> otherPojo("snap" + i)).forEach(records::add);
+        records.add(MyObjectPojo.builder().hash("nulls").build());
+        records.add(MyObjectPojo.builder()
+                .hash("escapes")
+                .column1("tab\there\\")
+                .column2("line\nbreak\r")
+                .created(LocalDate.of(2024, 2, 29))
+                .updated(UPDATED1.withHour(23).withMinute(59).withSecond(59))
+                .build());
+        records.add(MyObjectPojo.builder()
+                .hash("multibyte")
+                .column1("Zürich ✓ 東京")
+                .column2("€€€€€€€€€€€€€€€")
+                .created(LocalDate.of(1900, 3, 1))
+                .updated(UPDATED1.truncatedTo(ChronoUnit.SECONDS))
+                .build());
+        myObjectDao.upsertAll(records, ConflictMode.DO_NOTHING);
+        var before = myObjectDao.getAllAsPojos().stream()
+                .collect(Collectors.toMap(MyObjectPojo::getHash, pojo -> pojo));
+
+        var file = Files.createTempFile("test_objects", ".snapshot");
+        try {
+            assertThat(myObjectDao.exportSnapshot(file, MyObjectSnapshot.UTF8_FIELD_BYTES)).isEqualTo(1_003);
+
+            var ids = new HashMap<String, Long>();
+            try (var snapshot = MyObjectSnapshot.open(file)) {
+                assertThat(snapshot.getRowCount()).isEqualTo(1_003);
+                snapshot.forEach(record -> {
+                    var pojo = record.toPojo();
+                    ids.put(pojo.getHash(), pojo.getId());
+                    var expected = before.get(pojo.getHash());
+                    assertThat(pojo.getColumn1()).isEqualTo(expected.getColumn1());
+                    assertThat(pojo.getColumn2()).isEqualTo(expected.getColumn2());
+                    assertThat(pojo.getCreated()).isEqualTo(expected.getCreated());
+                    // the snapshot keeps the micros, reads through java.sql.Time stop at millis
+                    assertThat(pojo.getUpdated() == null
+                            ? null
+                            : pojo.getUpdated().toLocalTime().truncatedTo(ChronoUnit.MILLIS))
+                            .isEqualTo(expected.getUpdated() == null ? null : expected.getUpdated().toLocalTime());
+                });
+            }
+            assertThat(ids).isEqualTo(myObjectDao.getAllKeys().stream()
+                    .collect(Collectors.toMap(MyObjectKey::getHash, MyObjectKey::getId)));
+
+            // with the sequence back at the start, restoring has to move it on past the IDs it brings back
+            try (var conn = pooledDataSource.getConnection();
+                 var statement = conn.createStatement()) {
+                statement.executeUpdate("TRUNCATE TABLE public.TEST_OBJECTS");
+                statement.executeQuery("SELECT setval('public.test_objects_id_pk_seq', 1)").close();
+            }
+            assertThat(myObjectDao.restoreSnapshot(file)).isEqualTo(1_003);
+
+            var after = myObjectDao.getAllAsPojos();
+            assertThat(after).hasSize(1_003);
+            assertThat(after).allSatisfy(pojo -> {
+                var expected = before.get(pojo.getHash());
+                assertThat(pojo.getId()).isEqualTo(expected.getId());
+                assertThat(pojo.getColumn1()).isEqualTo(expected.getColumn1());
+                assertThat(pojo.getColumn2()).isEqualTo(expected.getColumn2());
+                assertThat(pojo.getCreated()).isEqualTo(expected.getCreated());
+                assertThat(pojo.getUpdated()).isEqualTo(expected.getUpdated());
+            });
+
+            myObjectDao.upsertAll(List.of(otherPojo("afterRestore")), ConflictMode.DO_NOTHING);
+            assertThat(myObjectDao.getAllKeys().stream()
+                    .filter(key -> key.getHash().equals("afterRestore"))
+                    .findFirst().orElseThrow().getId())
+                    .isGreaterThan(Collections.max(ids.values()));
+
+            // restoring over the rows already there is refused before anything is loaded
+            assertThatThrownBy(() -> myObjectDao.restoreSnapshot(file)).isInstanceOf(IllegalStateException.class);
+            assertThat(myObjectDao.getAllKeys()).hasSize(1_004);
+
+            // 15 of € is 45 bytes of UTF-8, which slots sized for ASCII can't hold
+            assertThatThrownBy(() -> myObjectDao.exportSnapshot(file, MyObjectSnapshot.ASCII_FIELD_BYTES))
+                    .isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> MyObjectSnapshot.open(file)).isInstanceOf(IOException.class);
+
+            assertThat(myObjectDao.exportSnapshot(file, MyObjectSnapshot.UTF8_FIELD_BYTES)).isEqualTo(1_004);
+
+            // a row that takes one of the snapshot's IDs under another hash would end up with a twin
+            var lowestId = Collections.min(ids.values());
+            try (var conn = pooledDataSource.getConnection();
+                 var statement = conn.createStatement()) {
+                statement.executeUpdate("TRUNCATE TABLE public.TEST_OBJECTS");
+                statement.executeUpdate("INSERT INTO public.TEST_OBJECTS ( ID, HASH, COLUMN_1, COLUMN_2 )"
+                        + " VALUES ( " + lowestId + ", 'sameId', 'x', 'y' )");
+            }
+            assertThatThrownBy(() -> myObjectDao.restoreSnapshot(file)).isInstanceOf(IllegalStateException.class);
+            assertThat(myObjectDao.getAllKeys()).hasSize(1);
+
+            // IDs that are free but a hash that isn't fails the whole restore
+            try (var conn = pooledDataSource.getConnection();
+                 var statement = conn.createStatement()) {
+                statement.executeUpdate("UPDATE public.TEST_OBJECTS SET ID = " + (lowestId - 1) + ", HASH = 'snap0'");
+            }
+            assertThatThrownBy(() -> myObjectDao.restoreSnapshot(file)).isInstanceOf(SQLException.class);
+            assertThat(myObjectDao.getAllKeys()).hasSize(1);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+    }
+
+    /**
+     * Writers upserting overlapping hashes in any order don't deadlock each other, and a deadlock with someone
+     * else only retries the chunk it hit. The retries are counted and nothing is given up on
+     */
+    @Test
+    @SneakyThrows
+    void testUpsertAllWithRetry() {
+
+        var registry = new InMemoryMetricsRegistry();
+        var metrics = new DaoMetrics(registry);
+        var instrumentedDao = new InstrumentedMyObjectJpaDao(MyObjectJpaDaoImpl.builder()
+                .emf(emf)
+                .dataSource(pooledDataSource)
+                .metrics(metrics)
+                .build(), metrics);
+        var retryPolicy = RetryPolicy.builder().build();
+
+        // two hashes in one partition so they go in one chunk, which locks "contendedA" first
+        var partitioning = ((MyObjectJpaDaoImpl) myObjectDao).getPartitioning();
+        var first = "contendedA";
+        var second = IntStream.range(0, 1_000)
+                .mapToObj(i -> "contendedB" + i)
+                .filter(hash -> partitioning.partitionOf(hash) == partitioning.partitionOf(first))
+                .findFirst()
+                .orElseThrow();
+        myObjectDao.upsertAll(List.of(otherPojo(first), otherPojo(second)), ConflictMode.DO_NOTHING);
+
+        try (var lockHolder = pooledDataSource.getConnection()) {
+            lockHolder.setAutoCommit(false);
+            try (var statement = lockHolder.createStatement()) {
+                statement.executeUpdate("UPDATE public.TEST_OBJECTS SET COLUMN_1 = 'holder' WHERE HASH = '"
+                        + second + "'");
+                // the dao takes the first and waits for the second, taking the first here closes the cycle
+                var upsert = CompletableFuture.supplyAsync(() -> instrumentedDao.upsertAllWithRetry(List.of(
+                        MyObjectPojo.builder().hash(second).column1(VALUE3).column2(VALUE4).build(),
+                        MyObjectPojo.builder().hash(first).column1(VALUE3).column2(VALUE4).build()),
+                        ConflictMode.DO_UPDATE, 10, retryPolicy));
+                Thread.sleep(300);
+                statement.executeUpdate("UPDATE public.TEST_OBJECTS SET COLUMN_1 = 'holder' WHERE HASH = '"
+                        + first + "'");
+                lockHolder.commit();
+
+                var result = upsert.get(1, TimeUnit.MINUTES);
+                assertThat(result.getRowsUpdated()).isEqualTo(2);
+            }
+        }
+        assertThat(registry.counter("dao.upsertAllWithRetry.retries").getCount()).isEqualTo(1);
+        assertThat(myObjectDao.getAllAsPojos()).extracting(MyObjectPojo::getColumn1).containsOnly(VALUE3);
+
+        // every writer sends the same hashes in an order of its own
+        var hashes = IntStream.range(0, 200).mapToObj(i -> "shared" + i).collect(Collectors.toList());
+        var writers = Executors.newFixedThreadPool(8);
+        var writes = new ArrayList<CompletableFuture<UpsertBatchResult>>();
+        for (var i = 0; i < 32; i++) {
+            var batch = new ArrayList<>(hashes);
+            Collections.shuffle(batch);
+            var column1 = "writer" + i;
+            writes.add(CompletableFuture.supplyAsync(() -> instrumentedDao.upsertAllWithRetry(batch.stream()
+                    .map(hash -> MyObjectPojo.builder().hash(hash).column1(column1).column2(VALUE2).build())
+                    .collect(Collectors.toList()), ConflictMode.DO_UPDATE, 50, retryPolicy), writers));
+        }
+        for (var write : writes) {
+            assertThat(write.get(1, TimeUnit.MINUTES).getRowsAffected()).isEqualTo(200);
+        }
+        writers.shutdown();
+
+        assertThat(myObjectDao.getAllKeys()).hasSize(202);
+        assertThat(registry.counter("dao.upsertAllWithRetry.aborts").getCount()).isZero();
+        assertThat(registry.counter("dao.upsertAllWithRetry.exceptions").getCount()).isZero();
+
+    }
+
+    /**
+     * Each schema gets a factory and dao of its own, built on first use on the one pool. The JPA and native paths
+     * both stay in the schema, and a factory evicted while in use is only closed once the call has returned
+     */
+    @Test
+    @SneakyThrows
+    void testSchemaRouting() {
+
+        for (var schemaName : List.of("tenant_a", "tenant_b")) {
+            Flyway.configure()
+                    .schemas(schemaName)
+                    .dataSource(pooledDataSource)
+                    .load()
+                    .migrate();
+        }
+        var router = SchemaRoutingMyObjectJpaDao.builder()
+                .dataSource(pooledDataSource)
+                .jpaProperties(Map.of("eclipselink.logging.level", "WARNING"))
+                .maximumSchemas(1)
+                .build();
+        try {
+            router.inSchema("tenant_a", dao -> {
+                dao.upsertAll(List.of(otherPojo("a1"), otherPojo("a2")), ConflictMode.DO_UPDATE);
+                dao.insertUsingQuery(otherPojo("a3"));
+                return null;
+            });
+            router.inSchema("tenant_b", dao -> dao.upsertAll(List.of(otherPojo("b1")), ConflictMode.DO_UPDATE));
+
+            assertThat(router.inSchema("tenant_a", MyObjectJpaDao::getAll))
+                    .extracting(MyObjectJpa::getHash).containsExactlyInAnyOrder("a1", "a2", "a3");
+            assertThat(router.inSchema("tenant_b", MyObjectJpaDao::getAllKeys))
+                    .extracting(MyObjectKey::getHash).containsExactly("b1");
+            assertThat(myObjectDao.getAllKeys()).isEmpty();
+
+            // only one schema is kept, the other's factory is closed
+            awaitOpenFactories(router, 1);
+            assertThat(router.getSchemaCount()).isEqualTo(1);
+
+            router.inSchema("tenant_b", dao -> {
+                router.evict("tenant_b");
+                awaitOpenFactories(router, 1);
+                assertThat(dao.getAll()).hasSize(1);
+                return null;
+            });
+            awaitOpenFactories(router, 0);
+
+            assertThatThrownBy(() -> router.inSchema("Tenant; DROP", MyObjectJpaDao::getAll))
+                    .isInstanceOf(IllegalArgumentException.class);
+        } finally {
+            router.close();
+            try (var conn = pooledDataSource.getConnection();
+                 var statement = conn.createStatement()) {
+                statement.execute("DROP SCHEMA tenant_a, tenant_b CASCADE");
+            }
+        }
+        assertThat(router.getOpenFactoryCount()).isZero();
+
+    }
+
+    /**
+     * Evicted factories are closed by Caffeine's maintenance, which runs in the background
+     */
+    @SneakyThrows
+    private static void awaitOpenFactories(final SchemaRoutingMyObjectJpaDao router, final int expected) {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (router.getOpenFactoryCount() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(router.getOpenFactoryCount()).isEqualTo(expected);
+    }
+
+    /**
+     * How many statements upsertAll needs for the hashes when it writes each partition separately
+     */
+    private static int statementsFor(final List<String> hashes, final int batchSize) {
+        var partitioning = ((MyObjectJpaDaoImpl) myObjectDao).getPartitioning();
+        return hashes.stream()
+                .collect(Collectors.groupingBy(partitioning::partitionOf, Collectors.counting()))
+                .values().stream()
+                .mapToInt(rows -> (int) ((rows + batchSize - 1) / batchSize))
+                .sum();
+    }
+
+    private static MyObjectPojo otherPojo(final String hash) {
+        return MyObjectPojo.builder()
+                .hash(hash)
+                .column1(VALUE1)
+                .column2(VALUE2)
+                .created(CREATED1)
+                .updated(UPDATED1)
+                .build();
+    }
+
+    private static MyObjectJpa findByHash(final List<MyObjectJpa> results, final String hash) {
+        return results.stream()
+                .filter(myObjectJpa -> hash.equals(myObjectJpa.getHash()))
+                .findFirst()
+                .orElseThrow();
+    }
+
     private void checkResultsStage(List<MyObjectJpa> results, MyObjectPojo myObjectPojo) {
         assertThat(results).hasSize(1)
                 .allMatch(myObjectJpa -> myObjectJpa.getHash().equals(myObjectPojo.getHash()),
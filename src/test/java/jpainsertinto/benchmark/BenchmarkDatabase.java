@@ -0,0 +1,76 @@
+package jpainsertinto.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jpainsertinto.jpa.ConnectionPoolConfig;
+import jpainsertinto.jpa.ConnectionPools;
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import org.flywaydb.core.Flyway;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Map;
+
+/**
+ * An embedded postgres with the Flyway migrations applied and a dao on top of it, for benchmarks to start in
+ * their trial setup and close in their trial tear down.
+ */
+@Getter
+public class BenchmarkDatabase implements AutoCloseable {
+
+    private static final String SCHEMA_NAME = "public";
+
+    private final EmbeddedPostgres embeddedPostgres;
+    private final HikariDataSource dataSource;
+    private final EntityManagerFactory emf;
+    private final MyObjectJpaDaoImpl myObjectDao;
+
+    @SneakyThrows
+    public BenchmarkDatabase(final int maxPoolSize, final Map<String, ?> jpaProperties) {
+
+        embeddedPostgres = EmbeddedPostgres.start();
+        migrate(SCHEMA_NAME);
+
+        dataSource = ConnectionPools.create(ConnectionPoolConfig.builder()
+                .jdbcUrl("jdbc:postgresql://localhost:" + embeddedPostgres.getPort() + "/postgres")
+                .user("postgres")
+                .minIdle(maxPoolSize)
+                .maxPoolSize(maxPoolSize)
+                .build());
+
+        emf = ConnectionPools.createEntityManagerFactory(dataSource, jpaProperties);
+        myObjectDao = new MyObjectJpaDaoImpl(emf, dataSource);
+    }
+
+    public BenchmarkDatabase(final int maxPoolSize) {
+        this(maxPoolSize, Map.of("eclipselink.logging.level", "WARNING"));
+    }
+
+    /**
+     * Creates TEST_OBJECTS in the schema, creating the schema too if it isn't there.
+     */
+    public void migrate(final String schemaName) {
+        Flyway.configure()
+                .schemas(schemaName)
+                .dataSource(embeddedPostgres.getPostgresDatabase())
+                .load()
+                .migrate();
+    }
+
+    @SneakyThrows
+    public void truncate() {
+        try (var conn = dataSource.getConnection();
+             var statement = conn.createStatement()) {
+            statement.execute("TRUNCATE TABLE public.TEST_OBJECTS");
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+        emf.close();
+        dataSource.close();
+        embeddedPostgres.close();
+    }
+}
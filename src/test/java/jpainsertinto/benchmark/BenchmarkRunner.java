@@ -0,0 +1,51 @@
+package jpainsertinto.benchmark;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs the benchmarks once per thread count, JMH itself only takes a single thread count per run.
+ * Started by the benchmark profile in the pom, which passes:
+ * <ul>
+ *     <li>jmh.include - regex of the benchmarks to run</li>
+ *     <li>jmh.threads - comma separated thread counts</li>
+ *     <li>jmh.resultDir - where the JSON results go, one file per thread count</li>
+ * </ul>
+ * Any program arguments are passed on to JMH as its usual command line options.
+ */
+@Slf4j
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+
+        var include = System.getProperty("jmh.include", ".*");
+        var threadCounts = System.getProperty("jmh.threads", "1").split(",");
+        var resultDir = Paths.get(System.getProperty("jmh.resultDir", "target/jmh"));
+        Files.createDirectories(resultDir);
+
+        var commandLineOptions = new CommandLineOptions(args);
+
+        for (var threadCount : threadCounts) {
+            var threads = Integer.parseInt(threadCount.trim());
+            var resultFile = resultDir.resolve("jmh-result-t" + threads + ".json");
+
+            log.info("running {} with {} thread(s), results in {}", include, threads, resultFile);
+
+            var options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultFile.toString())
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package jpainsertinto.benchmark;
+
+import jpainsertinto.jpa.AdaptiveMyObjectJpaDao;
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import jpainsertinto.model.MyObjectPojo;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the insert strategies of {@link MyObjectJpaDaoImpl} against an embedded postgres that is started, and
+ * migrated, once per trial.
+ * Every operation writes batchSize records, so rows/sec is the reported ops/time multiplied by batchSize. The
+ * single record strategies are simply called batchSize times.
+ * Strategies that can't cope with a conflict (persist, merge) throw on them, those are counted as failures
+ * rather than ending the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class InsertStrategyBenchmark {
+
+    private static final int EXISTING_HASHES = 10_000;
+    private static final LocalDate CREATED = LocalDate.now();
+    private static final LocalDateTime UPDATED = LocalDateTime.now();
+
+    /** Share of the records written whose hash is already in the table */
+    @Param({"0.0", "0.5", "0.9"})
+    public double conflictRatio;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private BenchmarkDatabase database;
+    private MyObjectJpaDaoImpl myObjectDao;
+    private AdaptiveMyObjectJpaDao adaptiveDao;
+
+    @Setup(Level.Trial)
+    public void startDatabase(final BenchmarkParams params) {
+        database = new BenchmarkDatabase(params.getThreads() + 2);
+        myObjectDao = database.getMyObjectDao();
+        adaptiveDao = new AdaptiveMyObjectJpaDao(myObjectDao);
+        myObjectDao.insertUsingCopy(IntStream.range(0, EXISTING_HASHES)
+                .mapToObj(i -> record(existingHash(i))), ConflictMode.DO_NOTHING);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() {
+        database.close();
+    }
+
+    /**
+     * Hands out the records for each thread, new hashes are unique per thread so only the existing ones conflict.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Records {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        public long failures;
+
+        private final String prefix = "t" + THREADS.getAndIncrement() + "-";
+        private long sequence;
+
+        List<MyObjectPojo> next(final double conflictRatio, final int batchSize) {
+            var random = ThreadLocalRandom.current();
+            var records = new ArrayList<MyObjectPojo>(batchSize);
+            for (var i = 0; i < batchSize; i++) {
+                records.add(record(random.nextDouble() < conflictRatio
+                        ? existingHash(random.nextInt(EXISTING_HASHES))
+                        : prefix + Long.toString(sequence++, Character.MAX_RADIX)));
+            }
+            return records;
+        }
+
+        void eachRecord(final double conflictRatio, final int batchSize, final Consumer<MyObjectPojo> insert) {
+            for (var record : next(conflictRatio, batchSize)) {
+                try {
+                    insert.accept(record);
+                } catch (RuntimeException e) {
+                    failures++;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void insertUsingQuery(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingQuery);
+    }
+
+    @Benchmark
+    public void insertUsingNativeQueryWithDoNothing(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingNativeQueryWithDoNothing);
+    }
+
+    @Benchmark
+    public void insertUsingNativeQueryWithDoUpdate(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingNativeQueryWithDoUpdate);
+    }
+
+    @Benchmark
+    public void insertUsingMerge(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingMerge);
+    }
+
+    @Benchmark
+    public void insertUsingFindAndMerge(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingFindAndMerge);
+    }
+
+    @Benchmark
+    public void insertUsingNativeJDBC(final Records records) {
+        records.eachRecord(conflictRatio, batchSize, myObjectDao::insertUsingNativeJDBC);
+    }
+
+    @Benchmark
+    public Object upsertAllWithDoNothing(final Records records) {
+        return myObjectDao.upsertAll(records.next(conflictRatio, batchSize), ConflictMode.DO_NOTHING);
+    }
+
+    @Benchmark
+    public Object upsertAllWithDoUpdate(final Records records) {
+        return myObjectDao.upsertAll(records.next(conflictRatio, batchSize), ConflictMode.DO_UPDATE);
+    }
+
+    @Benchmark
+    public Object insertUsingCopyWithDoUpdate(final Records records) {
+        return myObjectDao.insertUsingCopy(records.next(conflictRatio, batchSize).iterator(), ConflictMode.DO_UPDATE);
+    }
+
+    @Benchmark
+    public Object upsertAllAdaptiveWithDoUpdate(final Records records) {
+        return adaptiveDao.upsertAll(records.next(conflictRatio, batchSize), ConflictMode.DO_UPDATE);
+    }
+
+    private static String existingHash(final int i) {
+        return "e-" + i;
+    }
+
+    private static MyObjectPojo record(final String hash) {
+        return MyObjectPojo.builder()
+                .hash(hash)
+                .column1("value1")
+                .column2("value2")
+                .created(CREATED)
+                .updated(UPDATED)
+                .build();
+    }
+}
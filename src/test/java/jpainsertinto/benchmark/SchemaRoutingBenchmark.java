@@ -0,0 +1,131 @@
+package jpainsertinto.benchmark;
+
+import jpainsertinto.jpa.SchemaRoutingMyObjectJpaDao;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a schema costs {@link SchemaRoutingMyObjectJpaDao}: the latency of the first call for a schema whose factory
+ * has to be built, against a call for one that is kept, and the heap each kept schema holds on to.
+ * All the schemas are migrated once per trial on the one embedded postgres.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SchemaRoutingBenchmark {
+
+    private static final String HOT_SCHEMA = "tenant_hot";
+
+    /** Schemas migrated and cycled through by the cold calls */
+    @Param({"20"})
+    public int schemas;
+
+    private BenchmarkDatabase database;
+    private SchemaRoutingMyObjectJpaDao router;
+    private int nextSchema;
+
+    @Setup(Level.Trial)
+    public void startDatabase() {
+        database = new BenchmarkDatabase(4);
+        database.migrate(HOT_SCHEMA);
+        for (var i = 0; i < schemas; i++) {
+            database.migrate(schemaName(i));
+        }
+        router = SchemaRoutingMyObjectJpaDao.builder()
+                .dataSource(database.getDataSource())
+                .jpaProperties(Map.of("eclipselink.logging.level", "WARNING"))
+                .maximumSchemas(schemas + 1)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() {
+        router.close();
+        database.close();
+    }
+
+    /**
+     * The schema of the next cold call, with its factory dropped so that the call has to build one.
+     */
+    @State(Scope.Thread)
+    public static class ColdSchema {
+
+        String schemaName;
+
+        @Setup(Level.Invocation)
+        public void evict(final SchemaRoutingBenchmark benchmark) {
+            schemaName = schemaName(benchmark.nextSchema++ % benchmark.schemas);
+            benchmark.router.evict(schemaName);
+        }
+    }
+
+    /**
+     * Heap held per kept schema, measured after a full gc with none and then with all of them kept.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapPerSchema {
+
+        public long bytesPerSchema;
+    }
+
+    @Benchmark
+    public Optional<?> coldSchemaFirstCall(final ColdSchema coldSchema) {
+        return router.inSchema(coldSchema.schemaName, dao -> dao.findByHash("missing"));
+    }
+
+    @Benchmark
+    public Optional<?> keptSchemaCall() {
+        return router.inSchema(HOT_SCHEMA, dao -> dao.findByHash("missing"));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long openEverySchema(final HeapPerSchema heap) {
+        for (var i = 0; i < schemas; i++) {
+            router.evict(schemaName(i));
+        }
+        router.evict(HOT_SCHEMA);
+        var before = usedHeapAfterGc();
+        for (var i = 0; i < schemas; i++) {
+            router.inSchema(schemaName(i), dao -> dao.findByHash("missing"));
+        }
+        heap.bytesPerSchema = (usedHeapAfterGc() - before) / schemas;
+        return router.getSchemaCount();
+    }
+
+    private static long usedHeapAfterGc() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        // a couple of rounds so what was only just let go of is gone too
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String schemaName(final int i) {
+        return "tenant_" + i;
+    }
+}
@@ -0,0 +1,185 @@
+package jpainsertinto.benchmark;
+
+import jpainsertinto.jpa.ConflictMode;
+import jpainsertinto.jpa.ConnectionPools;
+import jpainsertinto.jpa.MyObjectJpa;
+import jpainsertinto.jpa.MyObjectJpaDaoImpl;
+import jpainsertinto.model.MyObjectPojo;
+import org.eclipse.persistence.config.DescriptorCustomizer;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.changetracking.DeferredChangeDetectionPolicy;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The find and merge path and factory startup with the statically woven entities, changeTracking=attribute, against
+ * the same classes run as they were before they were woven, changeTracking=deferred: EclipseLink ignores the
+ * weaving and every object read into the unit of work is compared with a backup copy of it at commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class WeavingBenchmark {
+
+    private static final int EXISTING_HASHES = 10_000;
+    private static final LocalDate CREATED = LocalDate.now();
+    private static final LocalDateTime UPDATED = LocalDateTime.now();
+
+    @Param({"attribute", "deferred"})
+    public String changeTracking;
+
+    /** Objects read into the unit of work that is committed, only one of them is changed */
+    @Param({"1", "1000"})
+    public int readPerCommit;
+
+    private BenchmarkDatabase database;
+    private MyObjectJpaDaoImpl myObjectDao;
+    private int nextSession;
+
+    @Setup(Level.Trial)
+    public void startDatabase() {
+        database = new BenchmarkDatabase(4, jpaProperties());
+        myObjectDao = database.getMyObjectDao();
+        myObjectDao.insertUsingCopy(IntStream.range(0, EXISTING_HASHES)
+                .mapToObj(i -> record(existingHash(i))), ConflictMode.DO_NOTHING);
+
+        database.getEmf().createEntityManager().close();
+        var changePolicy = JpaHelper.getServerSession(database.getEmf())
+                .getDescriptor(MyObjectJpa.class).getObjectChangePolicy();
+        if (changePolicy.isAttributeChangeTrackingPolicy() != "attribute".equals(changeTracking)) {
+            throw new IllegalStateException("MyObjectJpa isn't woven, the build's process-classes phase weaves it");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDatabase() {
+        database.close();
+    }
+
+    @Benchmark
+    public void findAndMerge() {
+        var hash = existingHash(ThreadLocalRandom.current().nextInt(EXISTING_HASHES));
+        myObjectDao.insertUsingFindAndMerge(record(hash));
+    }
+
+    /**
+     * An open transaction with readPerCommit objects read into it, read before each call so that only the commit
+     * is measured.
+     */
+    @State(Scope.Thread)
+    public static class ReadObjects {
+
+        EntityManager em;
+        List<MyObjectJpa> read;
+
+        @Setup(Level.Invocation)
+        public void read(final WeavingBenchmark benchmark) {
+            var first = ThreadLocalRandom.current().nextInt(EXISTING_HASHES - benchmark.readPerCommit);
+            var hashes = IntStream.range(first, first + benchmark.readPerCommit)
+                    .mapToObj(WeavingBenchmark::existingHash)
+                    .collect(Collectors.toList());
+            em = benchmark.database.getEmf().createEntityManager();
+            em.getTransaction().begin();
+            read = em.createQuery("SELECT P FROM TEST_OBJECTS P WHERE P.hash IN :hashes", MyObjectJpa.class)
+                    .setParameter("hashes", hashes)
+                    .getResultList();
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    @Benchmark
+    public MyObjectJpa changeOneAndCommit(final ReadObjects readObjects) {
+        var changed = readObjects.read.get(0);
+        changed.setColumn1(Integer.toString(ThreadLocalRandom.current().nextInt(), 36));
+        readObjects.em.getTransaction().commit();
+        return changed;
+    }
+
+    /**
+     * Building and deploying a factory, which is where dynamic weaving would have been paid for.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public void startup() {
+        var properties = jpaProperties();
+        properties.put(PersistenceUnitProperties.SESSION_NAME, "weaving-startup-" + nextSession++);
+        var emf = ConnectionPools.createEntityManagerFactory(database.getDataSource(), properties);
+        try {
+            emf.createEntityManager().close();
+        } finally {
+            emf.close();
+        }
+    }
+
+    private Map<String, Object> jpaProperties() {
+        var properties = new HashMap<String, Object>(Map.of("eclipselink.logging.level", "WARNING"));
+        if ("deferred".equals(changeTracking)) {
+            properties.put(PersistenceUnitProperties.WEAVING, "false");
+            properties.put(PersistenceUnitProperties.DESCRIPTOR_CUSTOMIZER_ + MyObjectJpa.class.getName(),
+                    DeferredChangeDetection.class.getName());
+        }
+        return properties;
+    }
+
+    /**
+     * A woven entity keeps attribute change tracking even with weaving off, this puts it back to what it was.
+     */
+    public static class DeferredChangeDetection implements DescriptorCustomizer {
+
+        @Override
+        public void customize(final ClassDescriptor descriptor) {
+            descriptor.setObjectChangePolicy(new DeferredChangeDetectionPolicy());
+        }
+    }
+
+    private static String existingHash(final int i) {
+        return "e-" + i;
+    }
+
+    private static MyObjectPojo record(final String hash) {
+        return MyObjectPojo.builder()
+                .hash(hash)
+                .column1(Integer.toString(ThreadLocalRandom.current().nextInt(), 36))
+                .column2("value2")
+                .created(CREATED)
+                .updated(UPDATED)
+                .build();
+    }
+}
@@ -0,0 +1,41 @@
+package jpainsertinto.jpa;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashBloomFilterTest {
+
+    /**
+     * Everything put in is found again and hashes that were never put in are mostly answered without a lookup
+     */
+    @Test
+    void testNoFalseNegativesAndFalsePositivesNearTheTarget() {
+
+        var hashFilter = new HashBloomFilter(100_000, 0.01);
+
+        IntStream.range(0, 100_000).forEach(i -> hashFilter.put("hash" + i));
+
+        assertThat(IntStream.range(0, 100_000).allMatch(i -> hashFilter.mightContain("hash" + i))).isTrue();
+
+        var falsePositives = IntStream.range(0, 100_000)
+                .filter(i -> hashFilter.mightContain("other" + i))
+                .count();
+
+        assertThat(falsePositives).isLessThan(2_000);
+        assertThat(hashFilter.getExpectedFalsePositiveRate()).isBetween(0.005, 0.02);
+        assertThat(hashFilter.getNegativeLookups()).isEqualTo(100_000 - falsePositives);
+        assertThat(hashFilter.getMemoryFootprintBytes()).isBetween(100_000L, 150_000L);
+    }
+
+    @Test
+    void testEmptyFilterContainsNothing() {
+
+        var hashFilter = new HashBloomFilter(1_000, 0.01);
+
+        assertThat(hashFilter.mightContain("abc123")).isFalse();
+        assertThat(hashFilter.getExpectedFalsePositiveRate()).isZero();
+    }
+}
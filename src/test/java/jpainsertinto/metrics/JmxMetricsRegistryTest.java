@@ -0,0 +1,57 @@
+package jpainsertinto.metrics;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JmxMetricsRegistryTest {
+
+    /**
+     * Metrics show up over JMX as soon as they are first asked for and the same metric comes back for the same name
+     */
+    @Test
+    @SneakyThrows
+    void testMetricsArePublished() {
+
+        var mBeanServer = MBeanServerFactory.newMBeanServer();
+        var registry = new JmxMetricsRegistry(mBeanServer, "test");
+
+        var histogram = registry.histogram("dao.upsertAll.execute");
+        histogram.record(1_000);
+        histogram.record(2_000);
+        histogram.record(1_000_000);
+        registry.counter("dao.upsertAll.rows.inserted").add(42);
+
+        assertThat(registry.histogram("dao.upsertAll.execute")).isSameAs(histogram);
+
+        var histogramName = new ObjectName("test:type=Histogram,name=" + ObjectName.quote("dao.upsertAll.execute"));
+        assertThat(mBeanServer.getAttribute(histogramName, "Count")).isEqualTo(3L);
+        assertThat((Long) mBeanServer.getAttribute(histogramName, "P50Nanos")).isBetween(1_990L, 2_010L);
+        assertThat((Long) mBeanServer.getAttribute(histogramName, "MaxNanos")).isBetween(990_000L, 1_010_000L);
+
+        var counterName = new ObjectName("test:type=Counter,name="
+                + ObjectName.quote("dao.upsertAll.rows.inserted"));
+        assertThat(mBeanServer.getAttribute(counterName, "Count")).isEqualTo(42L);
+
+        mBeanServer.invoke(histogramName, "reset", null, null);
+        assertThat(histogram.getCount()).isZero();
+    }
+
+    /**
+     * Anything over a minute, or negative from a clock going backwards, is clamped rather than thrown
+     */
+    @Test
+    void testOutOfRangeValuesAreClamped() {
+
+        var histogram = new InMemoryMetricsRegistry().histogram("clamped");
+
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+
+        assertThat(histogram.getCount()).isEqualTo(2);
+    }
+}